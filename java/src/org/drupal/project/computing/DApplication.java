@@ -3,11 +3,14 @@ package org.drupal.project.computing;
 import org.apache.commons.lang3.StringUtils;
 import org.drupal.project.computing.exception.*;
 
+import javax.script.Bindings;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Properties;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -38,6 +41,16 @@ abstract public class DApplication {
      * @param applicationName The name of the application, which maps to Computing Record's "application" field.
      */
     public DApplication(String applicationName) {
+        this(applicationName, null);
+    }
+
+    /**
+     * Use the given DSite instead of the one specified in config.properties.
+     *
+     * @param applicationName The name of the application, which maps to Computing Record's "application" field.
+     * @param site The Drupal site, or null to initialize it with settings in config.properties.
+     */
+    protected DApplication(String applicationName, DSite site) {
         logger.finest("Create DApplication: " + applicationName);
         this.applicationName = applicationName;
 
@@ -48,11 +61,19 @@ abstract public class DApplication {
         this.commandMapping = this.buildCommandMapping();
         logger.finest("Built command mapping, allowed commands: " + StringUtils.join(commandMapping.propertyNames(), ","));
 
+        this.resultCache = DResultCache.loadDefault(config);
+        this.resultStore = DResultStore.loadDefault(config);
+
+        if (site != null) {
+            this.site = site;
+            return;
+        }
+
         switch (config.getProperty("dcomp.site.access", "drush")) {
             case "services":
                 logger.info("Using Services module for Drupal site access.");
                 try {
-                    site = DServicesSite.loadDefault();
+                    this.site = DServicesSite.loadDefault();
                 } catch (DConfigException e) {
                     logger.severe("Cannot get Services settings.");
                     throw new DRuntimeException(e);
@@ -61,23 +82,41 @@ abstract public class DApplication {
             case "drush":
             default:
                 logger.info("Initializing connection to Drupal via Drush.");
-                site = DDrushSite.loadDefault();
+                this.site = DDrushSite.loadDefault();
                 break;
         }
 
         // check connection.
-        if (!site.checkConnection()) {
+        if (!this.site.checkConnection()) {
             logger.severe("Drupal access is not validated.");
         }
     }
 
 
     /**
-     * Launch the application, and execute commands. By default use launchSingleThread(). Subclasses could use other
-     * ways to launch the application, perhaps using multi-thread.
+     * Launch the application, and execute commands. By default use launchSingleThread(), or launchMultiThread() if
+     * "dcomp.processing.threads" is more than 1, command pools are defined, or records run on virtual threads, or
+     * launchAsync() if "dcomp.processing.async" is true. Subclasses could use other ways to launch the application.
+     * Metrics are logged when processing stops, see DMetrics.
      */
     public void launch() {
-        launchSingleThread();
+        if (!prepareCommands() && DUtils.getInstance().getBoolean(config.getProperty("dcomp.processing.strict", "false"))) {
+            logger.severe("Command mapping has errors. Not processing any record.");
+            return;
+        }
+        int threads = Integer.parseInt(config.getProperty("dcomp.processing.threads", "1"));
+        try {
+            if (DUtils.getInstance().getBoolean(config.getProperty("dcomp.processing.async", "false"))) {
+                launchAsync(threads);
+            } else if (threads > 1 || !commandSettings.isEmpty() || isVirtualThreadMode()) {
+                int prefetch = Integer.parseInt(config.getProperty("dcomp.processing.prefetch", String.valueOf(threads)));
+                launchMultiThread(threads, prefetch);
+            } else {
+                launchSingleThread();
+            }
+        } finally {
+            DMetrics.getInstance().log(logger);
+        }
     }
 
 
@@ -120,6 +159,8 @@ abstract public class DApplication {
      */
     public void setCommandMapping(String commandName, String className) {
         this.commandMapping.put(commandName, className);
+        // the registry will be rebuilt with the new mapping next time.
+        this.commandRegistry = null;
     }
 
 
@@ -162,11 +203,56 @@ abstract public class DApplication {
      */
     protected Properties commandMapping;
 
+    /**
+     * Settings in command.properties that are not command mappings, i.e. "dcomp.*" keys such as command pools.
+     */
+    protected Properties commandSettings = new Properties();
+
+    /**
+     * Commands declared with @DCommandName and generated at build time, see DCommandProvider.
+     */
+    protected Map<String, DCommandFactory> generatedCommandFactories;
+
+    /**
+     * Resolved commands from commandMapping. Built when the first record is processed.
+     */
+    protected volatile DCommandRegistry commandRegistry;
+
     /**
      * Default configurations for the Agent.
      */
     protected DConfig config;
 
+    /**
+     * Cache of results of deterministic commands, or null if disabled.
+     */
+    protected DResultCache resultCache;
+
+    /**
+     * On-disk store of results of deterministic commands that survives agent restarts, or null if not configured.
+     */
+    protected DResultStore resultStore;
+
+    /**
+     * Runs commands with deadlines, see runCommand(). Abandoned commands keep their daemon thread until they stop.
+     */
+    protected ExecutorService commandExecutor;
+
+    /**
+     * Renews leases of records while the agent is processing records, or null if disabled.
+     */
+    protected DHeartbeat heartbeat;
+
+    /**
+     * Cancels commands of records cancelled in Drupal while the agent is processing records, or null if disabled.
+     */
+    protected DCancellationWatcher cancellationWatcher;
+
+    /**
+     * Batches finished records of worker threads, or null to finish records one by one.
+     */
+    protected DFinishBatcher finishBatcher;
+
 
     /**
      * This is the main execution point for each Computing Record. The parameter "record" will change before and after
@@ -184,20 +270,46 @@ abstract public class DApplication {
 
             // prepare the command
             logger.info("Preparing to executing command: " + record.getCommand() + ". ID: " + record.getId());
-            DCommand command = createCommand(record.getCommand());
+            DCommandFactory factory = getCommandRegistry().getFactory(record.getCommand());
+            DCommand command = factory.acquire();
             command.setContext(record, this.site, this, this.config);
-            command.prepare(record.getInput());
 
-            // execute it.
-            command.execute();
+            long timeout = getTimeout(record);
+            DResultCache.Entry result;
+            if (cancellationWatcher != null) {
+                cancellationWatcher.watch(record, command);
+            }
+            try {
+                result = (timeout > 0) ? runCommand(command, record, timeout) : runCommand(command, record);
+            } finally {
+                if (cancellationWatcher != null && cancellationWatcher.unwatch(record)) {
+                    throw new CancellationException("Record is cancelled in Drupal.");
+                }
+            }
 
             // retrieve results.
-            record.setMessage(command.getMessage());
-            record.setOutput(command.getResult());
+            if (result != null) {
+                record.setMessage(result.getMessage());
+                record.setOutput(result.getOutput());
+            } else {
+                record.setMessage(command.getMessage());
+                record.setOutput(command.getResult());
+            }
+            factory.release(command);
             // if no error found, set status to be successful. error will cause exception and out of the loop.
             record.setStatus(DRecord.Status.SCF);
             logger.info("Command execution accomplished.");
 
+        } catch (CancellationException e) {
+            logger.info("Command execution cancelled. ID: " + record.getId());
+            record.setMessage("Command execution cancelled. " + e.getMessage());
+            record.setStatus(DRecord.Status.ABD);
+
+        } catch (TimeoutException e) {
+            logger.warning("Command execution aborted. " + e.getMessage() + " ID: " + record.getId());
+            record.setMessage("Command execution aborted. " + e.getMessage());
+            record.setStatus(DRecord.Status.ABD);
+
         } catch (IllegalArgumentException e) {
             e.printStackTrace();
             record.setMessage("Input error. " + e.getMessage());
@@ -220,54 +332,545 @@ abstract public class DApplication {
     }
 
     /**
-     * Create a DCommand based on commandName string.
+     * Prepare and execute the command in the current thread.
+     *
+     * @param command the DCommand object with context set.
+     * @param record the DRecord to process.
+     * @return the result if the command is deterministic and results are cached, or null if the results are in the
+     *         DCommand object.
+     * @throws DCommandExecutionException
+     */
+    protected DResultCache.Entry runCommand(final DCommand command, DRecord record) throws DCommandExecutionException {
+        if ((resultCache != null || resultStore != null) && command.isDeterministic()) {
+            // the same command and input might have been computed before, or is being computed by another thread.
+            final Bindings input = record.getInput();
+            final String key = DResultCache.computeKey(record.getCommand(), input);
+            if (resultCache != null) {
+                return resultCache.get(key, new Callable<DResultCache.Entry>() {
+                    @Override
+                    public DResultCache.Entry call() throws Exception {
+                        return computeResult(command, input, key);
+                    }
+                });
+            } else {
+                return computeResult(command, input, key);
+            }
+        } else {
+            command.prepare(record.getInput());
+            command.execute();
+            return null;
+        }
+    }
+
+    /**
+     * Prepare and execute the command in a command thread, and wait at most "timeout" seconds. When the deadline
+     * passes, the command thread is interrupted and the caller returns right away, so a hanging command doesn't block
+     * the agent. Commands that run for long should check Thread.interrupted() and stop early.
+     *
+     * @param command the DCommand object with context set.
+     * @param record the DRecord to process.
+     * @param timeout seconds to wait for the command.
+     * @return the same as runCommand(command, record).
+     * @throws TimeoutException if the command doesn't finish in time.
+     * @throws DCommandExecutionException
+     */
+    protected DResultCache.Entry runCommand(final DCommand command, final DRecord record, long timeout) throws TimeoutException, DCommandExecutionException {
+        Future<DResultCache.Entry> future = getCommandExecutor().submit(new Callable<DResultCache.Entry>() {
+            @Override
+            public DResultCache.Entry call() throws Exception {
+                return runCommand(command, record);
+            }
+        });
+        try {
+            return future.get(timeout, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            DMetrics.getInstance().increment("processing.timeout");
+            throw new TimeoutException("Execution time exceeds " + timeout + " seconds.");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new DCommandExecutionException("Interrupted while waiting for the command.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DCommandExecutionException) {
+                throw (DCommandExecutionException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new DCommandExecutionException(cause);
+        }
+    }
+
+    /**
+     * Get the execution deadline of the record in seconds. The "_timeout" field in the record input takes precedence,
+     * then "dcomp.processing.timeout.[command]", then "dcomp.processing.timeout".
+     *
+     * @param record the DRecord to process.
+     * @return seconds, or 0 if there's no deadline.
+     */
+    protected long getTimeout(DRecord record) {
+        Bindings input = record.getInput();
+        if (input != null && input.get("_timeout") != null) {
+            try {
+                return DUtils.getInstance().getLong(input.get("_timeout"));
+            } catch (IllegalArgumentException e) {
+                logger.warning("Invalid _timeout in record input: " + input.get("_timeout"));
+            }
+        }
+        String timeout = config.getProperty("dcomp.processing.timeout." + record.getCommand(), null);
+        if (timeout == null) {
+            timeout = config.getProperty("dcomp.processing.timeout", "0");
+        }
+        return Long.parseLong(timeout.trim());
+    }
+
+    /**
+     * @return the executor that runs commands with deadlines, created on first use.
+     */
+    protected synchronized ExecutorService getCommandExecutor() {
+        if (commandExecutor == null && isVirtualThreadMode()) {
+            commandExecutor = DUtils.getInstance().newVirtualThreadExecutor("dcomp-command");
+        }
+        if (commandExecutor == null) {
+            commandExecutor = Executors.newCachedThreadPool(DUtils.getInstance().getDaemonThreadFactory("dcomp-command"));
+        }
+        return commandExecutor;
+    }
+
+    /**
+     * @return true if records run on virtual threads, i.e. "dcomp.processing.executor" is "virtual".
+     */
+    protected boolean isVirtualThreadMode() {
+        return "virtual".equals(config.getProperty("dcomp.processing.executor", "platform").trim());
+    }
+
+    /**
+     * @param commandName the DRecord command.
+     * @return true if the command is CPU-bound, or false if it is not or cannot be resolved.
+     */
+    protected boolean isCpuBound(String commandName) {
+        try {
+            return getCommandRegistry().getFactory(commandName).isCpuBound();
+        } catch (ClassNotFoundException | IllegalAccessException e) {
+            // processRecord() will report the error.
+            return false;
+        }
+    }
+
+
+    /**
+     * Startup phase before claiming any record: resolve and load all mapped DCommand classes in parallel, report
+     * misconfigured mappings, and if "dcomp.processing.warmup" is true, run DCommand.warmUp() of each command.
+     *
+     * @return true if all commands in the mapping are resolved.
+     */
+    protected boolean prepareCommands() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final DCommandRegistry registry = new DCommandRegistry(commandMapping, generatedCommandFactories, executor);
+            synchronized (this) {
+                commandRegistry = registry;
+            }
+
+            for (Map.Entry<String, Exception> error : registry.getErrors().entrySet()) {
+                logger.severe("Misconfigured command '" + error.getKey() + "': " + error.getValue().getMessage());
+            }
+            logger.info("Resolved commands: " + StringUtils.join(registry.getFactories().keySet(), ","));
+
+            if (DUtils.getInstance().getBoolean(config.getProperty("dcomp.processing.warmup", "false"))) {
+                List<Future<?>> warmUps = new ArrayList<>();
+                // several command names might map to the same class; warm up each class once.
+                Set<Class<? extends DCommand>> commandClasses = new HashSet<>();
+                for (final DCommandFactory factory : registry.getFactories().values()) {
+                    if (commandClasses.add(factory.getCommandClass())) {
+                        warmUps.add(executor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                long start = System.currentTimeMillis();
+                                factory.newInstance().warmUp();
+                                logger.fine("Warmed up " + factory.getCommandClass().getName() + " in " + (System.currentTimeMillis() - start) + "ms.");
+                                return null;
+                            }
+                        }));
+                    }
+                }
+                for (Future<?> warmUp : warmUps) {
+                    try {
+                        warmUp.get();
+                    } catch (ExecutionException e) {
+                        logger.warning("Command warm-up failed: " + e.getCause());
+                    }
+                }
+            }
+
+            return registry.getErrors().isEmpty();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+
+    /**
+     * Get the result of a deterministic command from the on-disk result store, or execute the command and save its
+     * result in the store.
+     *
+     * @param command the prepared DCommand object with context set.
+     * @param input the DRecord input.
+     * @param key the key from DResultCache.computeKey().
+     * @return the stored or computed result.
+     * @throws DCommandExecutionException
+     */
+    protected DResultCache.Entry computeResult(DCommand command, Bindings input, String key) throws DCommandExecutionException {
+        if (resultStore != null) {
+            DResultCache.Entry stored = resultStore.get(key);
+            if (stored != null) {
+                return stored;
+            }
+        }
+
+        command.prepare(input);
+        command.execute();
+        DResultCache.Entry computed = new DResultCache.Entry(command.getMessage(), command.getResult());
+
+        if (resultStore != null) {
+            try {
+                resultStore.put(key, computed);
+            } catch (IOException e) {
+                logger.warning("Cannot save result in result store: " + e.getMessage());
+            }
+        }
+        return computed;
+    }
+
+
+    /**
+     * Create a new DCommand based on commandName string. Note that processRecord() gets commands from the registry
+     * directly, so that resettable commands can be reused.
      *
      * @param commandName the command string
      * @return the DCommand object that was mapped from the command string.
      */
     protected DCommand createCommand(String commandName) throws ClassNotFoundException, IllegalAccessException, InstantiationException {
-        assert commandMapping != null;
+        return getCommandRegistry().getFactory(commandName).newInstance();
+    }
 
-        // the command class to be created.
-        String className;
-        if (commandMapping.containsKey(commandName)) {
-            className = commandMapping.getProperty(commandName);
-        } else {
-            className = commandName;
-        }
 
-        Class<DCommand> commandClass = (Class<DCommand>) Class.forName(className);
-        return commandClass.newInstance();
+    /**
+     * Get the registry of resolved commands, and build it from commandMapping if not built yet.
+     *
+     * @return the DCommandRegistry object.
+     */
+    protected DCommandRegistry getCommandRegistry() {
+        DCommandRegistry registry = commandRegistry;
+        if (registry == null) {
+            synchronized (this) {
+                registry = commandRegistry;
+                if (registry == null) {
+                    assert commandMapping != null;
+                    commandRegistry = registry = new DCommandRegistry(commandMapping, generatedCommandFactories);
+                }
+            }
+        }
+        return registry;
     }
 
 
     /**
      * Run DApplication in a single thread that process the queue of DRecord from DSite in a sequential manner. Process
-     * at most 100 DRecord at a time.
+     * at most "dcomp.processing.batch_size" DRecord at a time. Records are claimed on demand through DRecordPublisher
+     * and saved by DRecordFinisher, with one record in flight.
      */
     protected void launchSingleThread() {
         assert site != null;
+        int batchSize = Integer.parseInt(config.getProperty("dcomp.processing.batch_size", "100"));
 
-        DRecord record;
-        // do 100 records at most.
-        for (int i = 0; i < 100; i++) {
-            try {
-
-                record = site.claimRecord(applicationName);
-                processRecord(record);
-                site.finishRecord(record);
-
-            } catch (DSiteException e) {
+        startServices();
+        try {
+            // claim one record at a time, only after the previous one is finished.
+            DRecordFinisher finisher = new DRecordFinisher(site, 1) {
+                @Override
+                protected void finish(DRecord record) throws DSiteException {
+                    if (heartbeat != null) {
+                        heartbeat.register(record);
+                    }
+                    completeRecord(record);
+                }
+            };
+            newRecordPublisher(batchSize).subscribe(finisher);
+            finisher.await();
+            if (finisher.getError() != null) {
                 // most exceptions are handled within "processRecord()".
                 // we are not able to handle DSiteException here. just log a message and exit.
-                e.printStackTrace();
-                logger.severe("Drupal site error: " + e.getMessage());
-                break;
-            } catch (DNotFoundException e) {
-                // this exception is expected.
-                logger.info("No more record with READY status for application '" + applicationName + "'.");
-                break;
+                logger.severe("Drupal site error: " + finisher.getError().getMessage());
             }
+        } catch (InterruptedException e) {
+            logger.warning("Interrupted. Stop claiming records.");
+            Thread.currentThread().interrupt();
+        } finally {
+            stopServices();
+        }
+    }
+
+    /**
+     * Create a reactive stream of records claimed from Drupal on demand, to plug the application into other pipelines.
+     * Subscribe a DRecordFinisher to save processed records.
+     *
+     * @param limit maximum number of records to claim.
+     * @return the publisher of claimed records.
+     */
+    public DRecordPublisher newRecordPublisher(long limit) {
+        assert site != null;
+        return new DRecordPublisher(site, applicationName, limit);
+    }
+
+
+    /**
+     * Run DApplication with pools of worker threads. The current thread claims records and routes each to the pool of
+     * its command (see DBulkhead), or to the "default" pool with "threads" threads. Each pool buffers a limited number
+     * of claimed records waiting for a worker, and workers take records from the buffer by priority (see DRecordQueue)
+     * or by fair share among users (see DFairShareQueue). Claiming waits when the buffer of a pool is full. Process at
+     * most "dcomp.processing.batch_size" DRecord at a time. Records finished by workers at the same time are saved with
+     * one DSite.finishRecords() call (see DFinishBatcher). DSite needs to be thread-safe.
+     *
+     * @param threads number of worker threads of the "default" pool.
+     * @param prefetch number of claimed records to buffer in the "default" pool in addition to those being processed.
+     */
+    protected void launchMultiThread(int threads, int prefetch) {
+        assert site != null && threads > 0 && prefetch >= 0;
+        int batchSize = Integer.parseInt(config.getProperty("dcomp.processing.batch_size", "100"));
+
+        Map<String, DBulkhead> bulkheads = DBulkhead.loadAll(commandSettings, config, threads, prefetch);
+        for (DBulkhead bulkhead : bulkheads.values()) {
+            bulkhead.start();
+        }
+        DBulkhead.Handler handler = new DBulkhead.Handler() {
+            @Override
+            public void handle(DRecord record) {
+                try {
+                    completeRecord(record);
+                } catch (DSiteException e) {
+                    e.printStackTrace();
+                    logger.severe("Drupal site error: " + e.getMessage());
+                }
+            }
+        };
+
+        finishBatcher = new DFinishBatcher(site);
+        startServices();
+        try {
+            for (int i = 0; i < batchSize; i++) {
+                DRecord record;
+                try {
+                    record = site.claimRecord(applicationName);
+                } catch (DSiteException e) {
+                    e.printStackTrace();
+                    logger.severe("Drupal site error: " + e.getMessage());
+                    break;
+                } catch (DNotFoundException e) {
+                    logger.info("No more record with READY status for application '" + applicationName + "'.");
+                    break;
+                }
+                if (heartbeat != null) {
+                    heartbeat.register(record);
+                }
+                DBulkhead bulkhead = DBulkhead.route(bulkheads, record.getCommand(), isCpuBound(record.getCommand()));
+                bulkhead.acquire();
+                bulkhead.submit(record, handler);
+            }
+            for (DBulkhead bulkhead : bulkheads.values()) {
+                bulkhead.shutdown();
+            }
+
+        } catch (InterruptedException e) {
+            logger.warning("Interrupted. Stop claiming records.");
+            for (DBulkhead bulkhead : bulkheads.values()) {
+                bulkhead.shutdownNow();
+            }
+            Thread.currentThread().interrupt();
+        } finally {
+            stopServices();
+            finishBatcher = null;
+        }
+    }
+
+
+    /**
+     * Run DApplication with asynchronous site access (see DAsyncSite): "inflight" chains of claim, execute and finish
+     * run at the same time, and each chain starts over with a new claim when its record is finished. Threads are only
+     * used while calling Drupal or executing commands, not while waiting. Process at most "dcomp.processing.batch_size"
+     * DRecord at a time.
+     *
+     * @param inflight number of records being claimed, executed or finished at the same time.
+     */
+    protected void launchAsync(final int inflight) {
+        assert site != null && inflight > 0;
+        final int batchSize = Integer.parseInt(config.getProperty("dcomp.processing.batch_size", "100"));
+        final DAsyncSite asyncSite = DAsyncSite.loadDefault(site, config);
+        ExecutorService executor = isVirtualThreadMode() ? DUtils.getInstance().newVirtualThreadExecutor("dcomp-worker") : null;
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(inflight, DUtils.getInstance().getDaemonThreadFactory("dcomp-worker"));
+        }
+        final ExecutorService commandExecutor = executor;
+        final AtomicInteger claimed = new AtomicInteger();
+        final CountDownLatch chains = new CountDownLatch(inflight);
+
+        startServices();
+        try {
+            for (int i = 0; i < inflight; i++) {
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        if (claimed.incrementAndGet() > batchSize) {
+                            chains.countDown();
+                            return;
+                        }
+                        final Runnable chain = this;
+                        processAsync(asyncSite, commandExecutor).addListener(new DFuture.Listener<DRecord>() {
+                            @Override
+                            public void onSuccess(DRecord record) {
+                                chain.run();
+                            }
+
+                            @Override
+                            public void onFailure(Throwable failure) {
+                                if (failure instanceof DNotFoundException) {
+                                    logger.info("No more record with READY status for application '" + applicationName + "'.");
+                                } else {
+                                    logger.severe("Drupal site error: " + failure.getMessage());
+                                }
+                                chains.countDown();
+                            }
+                        });
+                    }
+                }.run();
+            }
+            chains.await();
+
+        } catch (InterruptedException e) {
+            logger.warning("Interrupted. Stop claiming records.");
+            Thread.currentThread().interrupt();
+        } finally {
+            commandExecutor.shutdown();
+            asyncSite.shutdown();
+            stopServices();
+        }
+    }
+
+    /**
+     * Claim a record, process it in the executor, and save the results to Drupal, without blocking the current thread.
+     *
+     * @param asyncSite the Drupal site.
+     * @param executor the executor to run processRecord().
+     * @return the future of the finished record, which fails with DNotFoundException if no record is available, or
+     *         DSiteException if Drupal access fails.
+     */
+    public DFuture<DRecord> processAsync(final DAsyncSite asyncSite, final Executor executor) {
+        return asyncSite.claimRecord(applicationName).thenAsync(new DFuture.AsyncTransform<DRecord, DRecord>() {
+            @Override
+            public DFuture<DRecord> apply(final DRecord record) {
+                if (heartbeat != null) {
+                    heartbeat.register(record);
+                }
+                return DFuture.submit(executor, new Callable<DRecord>() {
+                    @Override
+                    public DRecord call() {
+                        try {
+                            processRecord(record);
+                        } finally {
+                            if (heartbeat != null) {
+                                heartbeat.unregister(record);
+                            }
+                        }
+                        return record;
+                    }
+                });
+            }
+        }).thenAsync(new DFuture.AsyncTransform<DRecord, DRecord>() {
+            @Override
+            public DFuture<DRecord> apply(final DRecord record) {
+                if (cancellationWatcher != null && cancellationWatcher.isCancelled(record)) {
+                    // don't overwrite the status set in Drupal.
+                    logger.info("Discarded results of cancelled record. ID: " + record.getId());
+                    return DFuture.completed(record);
+                }
+                return asyncSite.finishRecord(record).then(new DFuture.Transform<Void, DRecord>() {
+                    @Override
+                    public DRecord apply(Void result) {
+                        return record;
+                    }
+                });
+            }
+        });
+    }
+
+
+    /**
+     * Process a claimed record and save the results to Drupal, unless it's cancelled in Drupal meanwhile.
+     *
+     * @param record the claimed record.
+     * @throws DSiteException
+     */
+    protected void completeRecord(DRecord record) throws DSiteException {
+        try {
+            processRecord(record);
+        } finally {
+            if (heartbeat != null) {
+                heartbeat.unregister(record);
+            }
+        }
+        if (cancellationWatcher != null && cancellationWatcher.isCancelled(record)) {
+            // don't overwrite the status set in Drupal.
+            logger.info("Discarded results of cancelled record. ID: " + record.getId());
+            return;
+        }
+        DFinishBatcher batcher = finishBatcher;
+        if (batcher == null) {
+            site.finishRecord(record);
+            return;
+        }
+        try {
+            batcher.finish(record).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DSiteException) {
+                throw (DSiteException) e.getCause();
+            }
+            throw new DSiteException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DSiteException("Interrupted while finishing record: " + record.getId(), e);
+        }
+    }
+
+    /**
+     * Start the background services used while processing records: heartbeats and cancellation checks.
+     */
+    protected void startServices() {
+        heartbeat = DHeartbeat.loadDefault(site, applicationName, config);
+        if (heartbeat != null) {
+            heartbeat.start();
+        }
+        cancellationWatcher = DCancellationWatcher.loadDefault(site, config);
+        if (cancellationWatcher != null) {
+            cancellationWatcher.start();
+        }
+    }
+
+    protected void stopServices() {
+        if (heartbeat != null) {
+            heartbeat.stop();
+            heartbeat = null;
+        }
+        if (cancellationWatcher != null) {
+            cancellationWatcher.stop();
+            cancellationWatcher = null;
         }
     }
 
@@ -276,7 +879,8 @@ abstract public class DApplication {
      * Retrieve the mapping from DRecord "command" name to a DCommand class.
      * <ol>
      *     <li>Get all mappings from code.</li>
-     *     <li>Get mappings from command.properties, which will override anything defined in #1.</li>
+     *     <li>Get mappings generated from @DCommandName at build time, which will override #1.</li>
+     *     <li>Get mappings from command.properties, which will override anything defined in #1 and #2.</li>
      * </ol>
      *
      * @return Command mapping with the key as DRecord "command" field, and value as DCommand class name.
@@ -287,6 +891,12 @@ abstract public class DApplication {
         // first, get properties from code.
         commandMapping.putAll(declareCommandMapping());
 
+        // then the generated registry, which doesn't need reflection to create commands.
+        generatedCommandFactories = DCommandRegistry.loadGeneratedFactories();
+        for (Map.Entry<String, DCommandFactory> entry : generatedCommandFactories.entrySet()) {
+            commandMapping.put(entry.getKey(), entry.getValue().getCommandClass().getName());
+        }
+
         // second, check mapping from command.properties.
         String commandFileName = config.getProperty("dcomp.command.file", "command.properties");
         Properties commandMappingOverride = new Properties();
@@ -301,6 +911,14 @@ abstract public class DApplication {
             logger.warning("Cannot read command mapping file: " + commandFileName);
         }
         
+        // "dcomp.*" keys are settings, e.g. command pools (see DBulkhead), instead of commands.
+        for (String key : commandMappingOverride.stringPropertyNames()) {
+            if (key.startsWith("dcomp.")) {
+                commandSettings.setProperty(key, commandMappingOverride.getProperty(key));
+                commandMappingOverride.remove(key);
+            }
+        }
+
         if (!commandMappingOverride.isEmpty()) {
             commandMapping.putAll(commandMappingOverride);
         }
@@ -0,0 +1,202 @@
+package org.drupal.project.computing;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * <p>Asynchronous counterpart of DSite: each operation returns a DFuture right away instead of blocking the calling
+ * thread, so that DApplication can chain claim, execute and finish of many records with a few threads (see
+ * DApplication.launchAsync()).</p>
+ *
+ * <p>By default, operations call the blocking DSite methods in an executor. With virtual threads (Java 21+,
+ * "dcomp.processing.executor = virtual"), each outstanding call only costs a virtual thread. Sub-classes could
+ * override operations with non-blocking implementations.</p>
+ */
+public class DAsyncSite {
+
+    protected Logger logger = DUtils.getInstance().getPackageLogger();
+
+    protected final DSite site;
+    protected final ExecutorService executor;
+    protected final DFinishBatcher finishBatcher;
+
+    /**
+     * Constructor.
+     *
+     * @param site the blocking DSite.
+     * @param executor the executor to run blocking calls.
+     */
+    public DAsyncSite(DSite site, ExecutorService executor) {
+        assert site != null && executor != null;
+        this.site = site;
+        this.executor = executor;
+        this.finishBatcher = new DFinishBatcher(site, executor);
+    }
+
+    /**
+     * Factory method. Run blocking calls in virtual threads if "dcomp.processing.executor" is "virtual" and the JVM
+     * supports it, or in a pool of "dcomp.site.async_threads" threads otherwise.
+     *
+     * @param site the blocking DSite.
+     * @param config the agent configuration.
+     * @return the DAsyncSite object.
+     */
+    public static DAsyncSite loadDefault(DSite site, DConfig config) {
+        ExecutorService executor = null;
+        if ("virtual".equals(config.getProperty("dcomp.processing.executor", "platform").trim())) {
+            executor = DUtils.getInstance().newVirtualThreadExecutor("dcomp-site");
+        }
+        if (executor == null) {
+            int threads = Integer.parseInt(config.getProperty("dcomp.site.async_threads", "4"));
+            executor = Executors.newFixedThreadPool(threads, DUtils.getInstance().getDaemonThreadFactory("dcomp-site"));
+        }
+        return new DAsyncSite(site, executor);
+    }
+
+    /**
+     * @return the blocking DSite.
+     */
+    public DSite getSite() {
+        return site;
+    }
+
+    /**
+     * Run a blocking call in the executor.
+     */
+    protected <V> DFuture<V> call(Callable<V> task) {
+        return DFuture.submit(executor, task);
+    }
+
+
+    /**
+     * @see DSite#claimRecord(String)
+     * @return the future of the claimed record, which fails with DNotFoundException if no record is available.
+     */
+    public DFuture<DRecord> claimRecord(final String appName) {
+        return call(new Callable<DRecord>() {
+            @Override
+            public DRecord call() throws Exception {
+                return site.claimRecord(appName);
+            }
+        });
+    }
+
+    /**
+     * Records finished at the same time are saved with one DSite.finishRecords() call, see DFinishBatcher.
+     *
+     * @see DSite#finishRecord(DRecord)
+     */
+    public DFuture<Void> finishRecord(final DRecord record) {
+        return finishBatcher.finish(record);
+    }
+
+    /**
+     * @see DSite#updateRecord(DRecord)
+     */
+    public DFuture<Void> updateRecord(final DRecord record) {
+        return call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                site.updateRecord(record);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see DSite#updateRecordField(DRecord, String)
+     */
+    public DFuture<Void> updateRecordField(final DRecord record, final String fieldName) {
+        return call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                site.updateRecordField(record, fieldName);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see DSite#touchRecords(Collection)
+     */
+    public DFuture<Void> touchRecords(final Collection<DRecord> records) {
+        return call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                site.touchRecords(records);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see DSite#createRecord(DRecord)
+     */
+    public DFuture<Long> createRecord(final DRecord record) {
+        return call(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return site.createRecord(record);
+            }
+        });
+    }
+
+    /**
+     * @see DSite#loadRecord(long)
+     */
+    public DFuture<DRecord> loadRecord(final long id) {
+        return call(new Callable<DRecord>() {
+            @Override
+            public DRecord call() throws Exception {
+                return site.loadRecord(id);
+            }
+        });
+    }
+
+    /**
+     * @see DSite#loadRecordStatuses(Collection)
+     */
+    public DFuture<Map<Long, DRecord.Status>> loadRecordStatuses(final Collection<Long> ids) {
+        return call(new Callable<Map<Long, DRecord.Status>>() {
+            @Override
+            public Map<Long, DRecord.Status> call() throws Exception {
+                return site.loadRecordStatuses(ids);
+            }
+        });
+    }
+
+    /**
+     * @see DSite#releaseStaleRecords(String, long)
+     */
+    public DFuture<Integer> releaseStaleRecords(final String appName, final long lease) {
+        return call(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return site.releaseStaleRecords(appName, lease);
+            }
+        });
+    }
+
+    /**
+     * @see DSite#getTimestamp()
+     */
+    public DFuture<Long> getTimestamp() {
+        return call(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return site.getTimestamp();
+            }
+        });
+    }
+
+    /**
+     * Stop the executor after outstanding calls finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
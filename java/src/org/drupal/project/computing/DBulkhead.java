@@ -0,0 +1,286 @@
+package org.drupal.project.computing;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * <p>An execution pool for a group of commands, with its own worker threads and bounded buffer of claimed records, so
+ * that a burst of slow or memory-hungry records can't take all the agent's threads (see
+ * DApplication.launchMultiThread()). Commands not assigned to any pool run in the "default" pool.</p>
+ *
+ * <p>Pools are defined next to the command mapping in command.properties:</p>
+ * <pre>
+ * dcomp.pool.heavy.commands = Render,Analyze
+ * dcomp.pool.heavy.threads = 2
+ * dcomp.pool.heavy.queue = 4
+ * dcomp.pool.heavy.memory = 512
+ * </pre>
+ *
+ * <p>"queue" is the number of claimed records buffered in addition to those being processed; when the buffer is full,
+ * claiming waits. "memory" is a hint of megabytes used by each record: the number of threads is reduced to fit in
+ * the JVM's maximum heap.</p>
+ *
+ * <p>With "dcomp.processing.executor = virtual", each record of a pool runs in its own virtual thread, and "threads"
+ * is the number of records processed at the same time. Records of CPU-bound commands (see DCommand.isCpuBound()) that
+ * are not assigned to a pool run in the "cpu" pool of platform threads, one per processor. A pool could set
+ * "dcomp.pool.[name].executor" to "platform" or "virtual" too.</p>
+ */
+public class DBulkhead {
+
+    public static final String DEFAULT = "default";
+    public static final String CPU = "cpu";
+    public static final String PREFIX = "dcomp.pool.";
+
+    protected Logger logger = DUtils.getInstance().getPackageLogger();
+
+    private final String name;
+    private final int threads;
+    private final int queueSize;
+    private final Set<String> commands;
+    private final DRecordQueue queue;
+    private final Semaphore slots;
+    private final Semaphore running;
+    private final boolean virtual;
+    private ExecutorService executor;
+
+    /**
+     * Constructor.
+     *
+     * @param name the pool name.
+     * @param threads number of worker threads.
+     * @param queueSize number of claimed records buffered in addition to those being processed.
+     * @param memory megabytes each record might use, or 0 if unknown.
+     * @param commands the command names assigned to the pool.
+     * @param queue the buffer of claimed records.
+     */
+    public DBulkhead(String name, int threads, int queueSize, long memory, Set<String> commands, DRecordQueue queue) {
+        this(name, threads, queueSize, memory, commands, queue, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name the pool name.
+     * @param threads number of records processed at the same time.
+     * @param queueSize number of claimed records buffered in addition to those being processed.
+     * @param memory megabytes each record might use, or 0 if unknown.
+     * @param commands the command names assigned to the pool.
+     * @param queue the buffer of claimed records.
+     * @param virtual whether to run each record in a virtual thread, if supported by the JVM.
+     */
+    public DBulkhead(String name, int threads, int queueSize, long memory, Set<String> commands, DRecordQueue queue, boolean virtual) {
+        assert name != null && threads > 0 && queueSize >= 0 && memory >= 0 && commands != null && queue != null;
+        if (memory > 0) {
+            long maxMemory = Runtime.getRuntime().maxMemory() / (1024 * 1024);
+            if (threads * memory > maxMemory) {
+                int fit = (int) Math.max(1, maxMemory / memory);
+                logger.warning("Pool '" + name + "' needs " + (threads * memory) + "MB for " + threads + " threads, more than " + maxMemory + "MB heap. Use " + fit + " threads.");
+                threads = fit;
+            }
+        }
+        this.name = name;
+        this.threads = threads;
+        this.queueSize = queueSize;
+        this.commands = Collections.unmodifiableSet(new HashSet<>(commands));
+        this.queue = queue;
+        this.slots = new Semaphore(threads + queueSize);
+        this.running = new Semaphore(threads);
+        this.virtual = virtual;
+    }
+
+    /**
+     * Factory method. Create the "default" pool and the pools defined in "dcomp.pool.*" settings.
+     *
+     * @param settings "dcomp.pool.*" settings, usually from command.properties.
+     * @param config the agent configuration, to create DRecordQueue of each pool.
+     * @param threads number of threads of the "default" pool.
+     * @param prefetch queue size of the "default" pool.
+     * @return pool name => DBulkhead.
+     */
+    public static Map<String, DBulkhead> loadAll(Properties settings, DConfig config, int threads, int prefetch) {
+        boolean virtual = "virtual".equals(config.getProperty("dcomp.processing.executor", "platform").trim());
+        Map<String, DBulkhead> bulkheads = new LinkedHashMap<>();
+        bulkheads.put(DEFAULT, new DBulkhead(DEFAULT, threads, prefetch, 0, Collections.<String>emptySet(), DRecordQueue.loadDefault(config), virtual));
+        if (virtual) {
+            int processors = Runtime.getRuntime().availableProcessors();
+            bulkheads.put(CPU, new DBulkhead(CPU, processors, processors, 0, Collections.<String>emptySet(), DRecordQueue.loadDefault(config), false));
+        }
+
+        Set<String> names = new TreeSet<>();
+        for (String key : settings.stringPropertyNames()) {
+            if (key.startsWith(PREFIX) && key.indexOf('.', PREFIX.length()) > 0) {
+                names.add(key.substring(PREFIX.length(), key.indexOf('.', PREFIX.length())));
+            }
+        }
+        for (String name : names) {
+            String prefix = PREFIX + name + ".";
+            int poolThreads = Integer.parseInt(settings.getProperty(prefix + "threads", "1").trim());
+            int queueSize = Integer.parseInt(settings.getProperty(prefix + "queue", String.valueOf(poolThreads)).trim());
+            long memory = Long.parseLong(settings.getProperty(prefix + "memory", "0").trim());
+            boolean poolVirtual = "virtual".equals(settings.getProperty(prefix + "executor", virtual ? "virtual" : "platform").trim());
+            Set<String> commands = new HashSet<>();
+            for (String command : settings.getProperty(prefix + "commands", "").split(",")) {
+                if (!command.trim().isEmpty()) {
+                    commands.add(command.trim());
+                }
+            }
+            if (name.equals(DEFAULT) || name.equals(CPU)) {
+                // allow overriding the built-in pools, but they still take commands by default.
+                commands.clear();
+            }
+            bulkheads.put(name, new DBulkhead(name, poolThreads, queueSize, memory, commands, DRecordQueue.loadDefault(config), poolVirtual));
+        }
+        return bulkheads;
+    }
+
+    /**
+     * Find the pool of the command.
+     *
+     * @param bulkheads the pools from loadAll().
+     * @param commandName the DRecord command.
+     * @return the pool of the command, or the "default" pool.
+     */
+    public static DBulkhead route(Map<String, DBulkhead> bulkheads, String commandName) {
+        return route(bulkheads, commandName, false);
+    }
+
+    /**
+     * Find the pool of the command.
+     *
+     * @param bulkheads the pools from loadAll().
+     * @param commandName the DRecord command.
+     * @param cpuBound whether the command is CPU-bound, see DCommand.isCpuBound().
+     * @return the pool the command is assigned to, or the "cpu" pool for CPU-bound commands if it exists, or the
+     *         "default" pool.
+     */
+    public static DBulkhead route(Map<String, DBulkhead> bulkheads, String commandName, boolean cpuBound) {
+        for (DBulkhead bulkhead : bulkheads.values()) {
+            if (bulkhead.commands.contains(commandName)) {
+                return bulkhead;
+            }
+        }
+        if (cpuBound && bulkheads.containsKey(CPU)) {
+            return bulkheads.get(CPU);
+        }
+        return bulkheads.get(DEFAULT);
+    }
+
+
+    /**
+     * Start the worker threads.
+     */
+    public synchronized void start() {
+        if (executor == null && virtual) {
+            executor = DUtils.getInstance().newVirtualThreadExecutor("dcomp-pool-" + name);
+            if (executor == null) {
+                logger.warning("Virtual threads are not supported by this JVM. Pool '" + name + "' uses platform threads.");
+            }
+        }
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads, DUtils.getInstance().getDaemonThreadFactory("dcomp-pool-" + name));
+        }
+    }
+
+    /**
+     * Wait for a free slot in the pool's buffer.
+     *
+     * @throws InterruptedException
+     */
+    public void acquire() throws InterruptedException {
+        slots.acquire();
+    }
+
+    /**
+     * Buffer the record and run a task in a worker thread, which processes whichever record in the buffer has the
+     * highest priority. Call acquire() first.
+     *
+     * @param record the claimed record.
+     * @param handler processes a record.
+     */
+    public void submit(DRecord record, final Handler handler) {
+        assert executor != null;
+        queue.offer(record);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // virtual threads are not limited by the executor.
+                    running.acquire();
+                    try {
+                        DRecord next = queue.take();
+                        try {
+                            handler.handle(next);
+                        } finally {
+                            queue.done(next);
+                        }
+                    } finally {
+                        running.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    slots.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop accepting records, and wait for buffered records to finish.
+     *
+     * @throws InterruptedException
+     */
+    public void shutdown() throws InterruptedException {
+        ExecutorService running;
+        synchronized (this) {
+            running = executor;
+            executor = null;
+        }
+        if (running != null) {
+            running.shutdown();
+            running.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop worker threads right away.
+     */
+    public synchronized void shutdownNow() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public Set<String> getCommands() {
+        return commands;
+    }
+
+
+    /**
+     * Processes a record in a worker thread.
+     */
+    public interface Handler {
+        void handle(DRecord record);
+    }
+}
@@ -0,0 +1,195 @@
+package org.drupal.project.computing;
+
+import org.drupal.project.computing.exception.DSiteException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * <p>Watches records being processed, and cancels their commands when the records are cancelled in Drupal, i.e. their
+ * status is not "RUN" anymore (usually set to "ABD" by an editor) or they are deleted. The statuses of all watched
+ * records are polled in one DSite.loadRecordStatuses() call.</p>
+ *
+ * <p>A cancelled command is signalled with DCommand.cancel(), and the thread processing the record is interrupted.
+ * The agent then skips DSite.finishRecord() so that the status set in Drupal is not overwritten.</p>
+ */
+public class DCancellationWatcher {
+
+    protected Logger logger = DUtils.getInstance().getPackageLogger();
+
+    protected final DSite site;
+    private final long interval;
+
+    /**
+     * Records being processed: record ID => Watch.
+     */
+    private final ConcurrentMap<Long, Watch> watched = new ConcurrentHashMap<>();
+
+    /**
+     * IDs of cancelled records whose results are not discarded yet, see isCancelled().
+     */
+    private final Set<Long> cancelled = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor.
+     *
+     * @param site the Drupal site of the records.
+     * @param interval seconds between polls.
+     */
+    public DCancellationWatcher(DSite site, long interval) {
+        assert site != null && interval > 0;
+        this.site = site;
+        this.interval = interval;
+    }
+
+    /**
+     * Factory method. Create the watcher with "dcomp.processing.cancel_check" setting.
+     *
+     * @param site the Drupal site of the records.
+     * @param config the agent configuration.
+     * @return the DCancellationWatcher object, or null if disabled.
+     */
+    public static DCancellationWatcher loadDefault(DSite site, DConfig config) {
+        long interval = Long.parseLong(config.getProperty("dcomp.processing.cancel_check", "30"));
+        return interval > 0 ? new DCancellationWatcher(site, interval) : null;
+    }
+
+
+    /**
+     * Start polling record statuses in a background thread.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(DUtils.getInstance().getDaemonThreadFactory("dcomp-cancel"));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop polling.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+
+    /**
+     * Start watching the record while the current thread runs its command.
+     *
+     * @param record the claimed record.
+     * @param command the DCommand object processing the record.
+     */
+    public void watch(DRecord record, DCommand command) {
+        assert !record.isNew();
+        watched.put(record.getId(), new Watch(command, Thread.currentThread()));
+    }
+
+    /**
+     * Stop watching the record, after which the thread is not interrupted anymore. Call it from the same thread as
+     * watch(), right after the command finishes.
+     *
+     * @param record the watched record.
+     * @return true if the record was cancelled while watched.
+     */
+    public boolean unwatch(DRecord record) {
+        Watch watch = watched.remove(record.getId());
+        if (watch == null) {
+            return false;
+        }
+        synchronized (watch) {
+            watch.done = true;
+            if (watch.cancelled) {
+                // clear the interrupt flag, in case the command didn't check it.
+                Thread.interrupted();
+            }
+            return watch.cancelled;
+        }
+    }
+
+    /**
+     * Check whether the record was cancelled, and forget about it.
+     *
+     * @param record the processed record.
+     * @return true if the record was cancelled and its results should not be saved.
+     */
+    public boolean isCancelled(DRecord record) {
+        return cancelled.remove(record.getId());
+    }
+
+
+    /**
+     * Poll the statuses of all watched records in one call, and cancel those not running anymore. Errors are logged,
+     * and the next poll will try again.
+     */
+    public void poll() {
+        List<Long> ids = new ArrayList<>(watched.keySet());
+        if (ids.isEmpty()) {
+            return;
+        }
+        Map<Long, DRecord.Status> statuses;
+        try {
+            statuses = site.loadRecordStatuses(ids);
+        } catch (DSiteException | RuntimeException e) {
+            logger.warning("Cannot check status of running records: " + e.getMessage());
+            return;
+        }
+        for (long id : ids) {
+            DRecord.Status status = statuses.get(id);
+            if (status != DRecord.Status.RUN) {
+                logger.info("Record " + id + " is " + (status == null ? "deleted" : status) + " in Drupal. Cancelling its command.");
+                cancel(id);
+            }
+        }
+    }
+
+    /**
+     * Cancel the command of a watched record.
+     *
+     * @param id the record ID.
+     */
+    public void cancel(long id) {
+        Watch watch = watched.get(id);
+        if (watch == null) {
+            return;
+        }
+        synchronized (watch) {
+            if (watch.done || watch.cancelled) {
+                return;
+            }
+            watch.cancelled = true;
+            cancelled.add(id);
+            watch.command.cancel();
+            watch.thread.interrupt();
+        }
+        DMetrics.getInstance().increment("processing.cancelled");
+    }
+
+
+    private static class Watch {
+        final DCommand command;
+        final Thread thread;
+        boolean cancelled = false;
+        boolean done = false;
+
+        Watch(DCommand command, Thread thread) {
+            this.command = command;
+            this.thread = thread;
+        }
+    }
+}
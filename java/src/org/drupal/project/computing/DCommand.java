@@ -125,6 +125,88 @@ abstract public class DCommand implements Runnable, Callable<Void> {
     protected DConfig config;
 
 
+    /**
+     * Optional warm-up routine, called once on a fresh object at agent startup if "dcomp.processing.warmup" is set, so
+     * that classes are loaded and hot code is compiled by the JIT before the first record is claimed. Sub-classes could
+     * override this to run prepare() and execute() on representative input. Does nothing by default. The object is
+     * discarded afterwards.
+     *
+     * @throws DCommandExecutionException if the warm-up fails, which is logged but doesn't stop the agent.
+     */
+    public void warmUp() throws DCommandExecutionException {
+        // do nothing by default.
+    }
+
+
+    /**
+     * Whether the command always gives the same result (message and output) for the same input, regardless of when
+     * and where it runs. Deterministic commands opt in to DResultCache: records with the same command and input are
+     * answered from the cache without running the command again. Returns false by default.
+     *
+     * @return true if the results only depend on the input.
+     */
+    public boolean isDeterministic() {
+        return false;
+    }
+
+
+    /**
+     * Whether the command spends most of its time computing rather than waiting on I/O (drush, HTTP, JDBC, etc).
+     * When the agent runs records on virtual threads ("dcomp.processing.executor = virtual"), records of CPU-bound
+     * commands run on a platform thread pool sized to the number of processors instead. Returns false by default.
+     *
+     * @return true if the command is CPU-bound.
+     */
+    public boolean isCpuBound() {
+        return false;
+    }
+
+
+    /**
+     * Whether this DCommand object can be reused for another record after reset(). Returns false by default, which
+     * means a new object is created for each record. Sub-classes that are expensive to construct could override this
+     * to return true, and override reset() to clear their own states.
+     *
+     * @return true if the object can be reused.
+     */
+    public boolean isResettable() {
+        return false;
+    }
+
+    /**
+     * Set when the record is cancelled in Drupal (see DCancellationWatcher) while the command is running. The thread
+     * running execute() is interrupted too. Long-running commands should check isCancelled() or Thread.interrupted()
+     * between steps and stop early; their results will be discarded anyway.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * Signal the command to stop. Called from another thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return true if the record of the command is cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+
+    /**
+     * Clear all states from the previous execution so that the object can be prepared again. Sub-classes overriding
+     * this should call super.reset(). Results are replaced rather than cleared because the caller might still hold them.
+     */
+    public void reset() {
+        message = new StringBuffer();
+        result = new SimpleBindings();
+        cancelled = false;
+        setContext(null, null, null, null);
+    }
+
+
     /**
      * Set the contextual data.
      *
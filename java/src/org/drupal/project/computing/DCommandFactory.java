@@ -0,0 +1,158 @@
+package org.drupal.project.computing;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Creates DCommand objects of one DCommand class. The class and its default constructor are resolved once when the
+ * factory is created, so creating a command for each record doesn't need Class.forName() or reflection.</p>
+ *
+ * <p>If the DCommand declares itself resettable (see DCommand.isResettable()), released command objects are kept in a
+ * small pool and reused for later records after DCommand.reset().</p>
+ */
+public class DCommandFactory {
+
+    /**
+     * Maximum number of idle command objects kept for reuse.
+     */
+    public static final int POOL_SIZE = 16;
+
+    protected final Class<? extends DCommand> commandClass;
+    private final MethodHandle constructor;
+
+    private final Queue<DCommand> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger poolCount = new AtomicInteger();
+    private volatile Boolean cpuBound;
+
+    /**
+     * Resolve the default constructor of the DCommand class.
+     *
+     * @param commandClass the DCommand class, which needs to have a public default constructor.
+     * @throws IllegalAccessException if the default constructor is not accessible.
+     */
+    public DCommandFactory(Class<? extends DCommand> commandClass) throws IllegalAccessException {
+        this(commandClass, resolveConstructor(commandClass));
+    }
+
+    private DCommandFactory(Class<? extends DCommand> commandClass, MethodHandle constructor) {
+        assert commandClass != null;
+        this.commandClass = commandClass;
+        this.constructor = constructor;
+    }
+
+    private static MethodHandle resolveConstructor(Class<? extends DCommand> commandClass) throws IllegalAccessException {
+        try {
+            return MethodHandles.publicLookup()
+                    .findConstructor(commandClass, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(DCommand.class));
+        } catch (NoSuchMethodException e) {
+            throw new IllegalAccessException("DCommand class has no public default constructor: " + commandClass.getName());
+        }
+    }
+
+    /**
+     * Factory method. Load the DCommand class by name and resolve its constructor.
+     *
+     * @param className the DCommand class name.
+     * @return the DCommandFactory object.
+     * @throws ClassNotFoundException if the class cannot be found, or is not a DCommand sub-class.
+     * @throws IllegalAccessException if the class doesn't have a public default constructor.
+     */
+    public static DCommandFactory forName(String className) throws ClassNotFoundException, IllegalAccessException {
+        Class<?> loadedClass = Class.forName(className);
+        if (!DCommand.class.isAssignableFrom(loadedClass)) {
+            throw new ClassNotFoundException("Class is not a DCommand: " + className);
+        }
+        return new DCommandFactory(loadedClass.asSubclass(DCommand.class));
+    }
+
+
+    /**
+     * Get a DCommand object ready to prepare(), either reused from the pool or newly created.
+     *
+     * @return the DCommand object.
+     * @throws InstantiationException if the constructor throws an exception.
+     */
+    public DCommand acquire() throws InstantiationException {
+        DCommand command = pool.poll();
+        if (command != null) {
+            poolCount.decrementAndGet();
+            return command;
+        }
+        return newInstance();
+    }
+
+    /**
+     * Return the DCommand object after its results are retrieved. Only resettable commands are kept for reuse.
+     *
+     * @param command the DCommand object created by this factory.
+     */
+    public void release(DCommand command) {
+        assert command != null && command.getClass() == commandClass;
+        if (command.isResettable() && poolCount.incrementAndGet() <= POOL_SIZE) {
+            command.reset();
+            pool.offer(command);
+        } else if (command.isResettable()) {
+            poolCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Always create a new DCommand object.
+     *
+     * @return the new DCommand object.
+     * @throws InstantiationException if the constructor throws an exception.
+     */
+    public DCommand newInstance() throws InstantiationException {
+        try {
+            return (DCommand) constructor.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            InstantiationException ie = new InstantiationException("Cannot instantiate command: " + commandClass.getName());
+            ie.initCause(e);
+            throw ie;
+        }
+    }
+
+    /**
+     * Whether commands of this factory are CPU-bound, see DCommand.isCpuBound(). Checked once on a new object.
+     *
+     * @return true if the command is CPU-bound, or false if it cannot be instantiated.
+     */
+    public boolean isCpuBound() {
+        Boolean result = cpuBound;
+        if (result == null) {
+            try {
+                result = newInstance().isCpuBound();
+            } catch (InstantiationException | RuntimeException e) {
+                result = false;
+            }
+            cpuBound = result;
+        }
+        return result;
+    }
+
+    public Class<? extends DCommand> getCommandClass() {
+        return commandClass;
+    }
+
+
+    /**
+     * Base class for factories that call the DCommand constructor directly instead of through a MethodHandle, such as
+     * the factories generated by DCommandNameProcessor.
+     */
+    public abstract static class Direct extends DCommandFactory {
+
+        protected Direct(Class<? extends DCommand> commandClass) {
+            super(commandClass, null);
+        }
+
+        @Override
+        public abstract DCommand newInstance();
+    }
+}
@@ -0,0 +1,24 @@
+package org.drupal.project.computing;
+
+import java.lang.annotation.*;
+
+/**
+ * <p>Declares the DRecord "command" names handled by a DCommand class, e.g. <code>@DCommandName("echo")</code>.</p>
+ *
+ * <p>When computing.jar is in the compiler's CLASSPATH, DCommandNameProcessor picks up the annotated classes and
+ * generates a DCommandProvider at build time, which DApplication prefers over the reflection-based command mapping.
+ * The annotated class has to be a public, non-abstract DCommand sub-class with a public default constructor, or the
+ * build fails.</p>
+ *
+ * @see org.drupal.project.computing.processor.DCommandNameProcessor
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface DCommandName {
+
+    /**
+     * @return the command names, as in DRecord "command" field.
+     */
+    String[] value();
+}
@@ -0,0 +1,16 @@
+package org.drupal.project.computing;
+
+import java.util.Map;
+
+/**
+ * Provides pre-resolved DCommandFactory objects for DRecord "command" names. Implementations are usually generated by
+ * DCommandNameProcessor from @DCommandName annotations, and are found with java.util.ServiceLoader through
+ * META-INF/services/org.drupal.project.computing.DCommandProvider.
+ */
+public interface DCommandProvider {
+
+    /**
+     * @return command name => DCommandFactory.
+     */
+    public Map<String, DCommandFactory> getCommandFactories();
+}
@@ -0,0 +1,199 @@
+package org.drupal.project.computing;
+
+import org.drupal.project.computing.exception.DRuntimeException;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * <p>Maps DRecord "command" names to resolved DCommandFactory objects. The registry is built once from the command
+ * mapping (see DApplication.buildCommandMapping()) into an immutable map, so looking up a command for each record is a
+ * plain HashMap read without locking or reflection, and is safe to use from multiple threads.</p>
+ *
+ * <p>Like DApplication used to do, a command name that is not in the mapping is treated as a DCommand class name. Those
+ * are resolved on first use and cached, including failures (negative caching), so a record with an unknown command
+ * doesn't trigger class loading again.</p>
+ */
+public final class DCommandRegistry {
+
+    private final Logger logger = DUtils.getInstance().getPackageLogger();
+
+    private final Map<String, DCommandFactory> factories;
+
+    /**
+     * Misconfigured mappings: command name => the error when resolving its class.
+     */
+    private final Map<String, Exception> errors;
+
+    /**
+     * Command names not in the mapping, resolved as class names on demand.
+     */
+    private final ConcurrentMap<String, Object> adhoc = new ConcurrentHashMap<>();
+
+
+    /**
+     * Resolve all commands in the mapping.
+     *
+     * @param commandMapping key as DRecord "command" field, and value as DCommand class name.
+     */
+    public DCommandRegistry(Properties commandMapping) {
+        this(commandMapping, Collections.<String, DCommandFactory>emptyMap());
+    }
+
+    /**
+     * Resolve all commands in the mapping, and use the pre-resolved factories (usually generated at build time) where
+     * the mapping agrees with them, so that no reflection is needed for those commands.
+     *
+     * @param commandMapping key as DRecord "command" field, and value as DCommand class name.
+     * @param generatedFactories pre-resolved factories, see loadGeneratedFactories().
+     */
+    public DCommandRegistry(Properties commandMapping, Map<String, DCommandFactory> generatedFactories) {
+        this(commandMapping, generatedFactories, null);
+    }
+
+    /**
+     * Resolve all commands in the mapping in parallel, which loads and initializes the DCommand classes. Used to
+     * validate the mapping at startup, before any record is claimed.
+     *
+     * @param commandMapping key as DRecord "command" field, and value as DCommand class name.
+     * @param generatedFactories pre-resolved factories, see loadGeneratedFactories().
+     * @param executor the executor to resolve classes in parallel, or null to resolve them in the current thread.
+     */
+    public DCommandRegistry(Properties commandMapping, final Map<String, DCommandFactory> generatedFactories, ExecutorService executor) {
+        Map<String, Future<Object>> resolving = new HashMap<>();
+        for (final String commandName : commandMapping.stringPropertyNames()) {
+            final String className = commandMapping.getProperty(commandName).trim();
+            Callable<Object> task = new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return resolve(commandName, className, generatedFactories.get(commandName));
+                }
+            };
+            FutureTask<Object> future = new FutureTask<>(task);
+            if (executor != null) {
+                executor.execute(future);
+            } else {
+                future.run();
+            }
+            resolving.put(commandName, future);
+        }
+
+        Map<String, DCommandFactory> factories = new HashMap<>();
+        Map<String, Exception> errors = new HashMap<>();
+        for (Map.Entry<String, Future<Object>> entry : resolving.entrySet()) {
+            Object resolved;
+            try {
+                resolved = entry.getValue().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DRuntimeException(e);
+            } catch (ExecutionException e) {
+                resolved = new ClassNotFoundException("Cannot resolve command: " + entry.getKey(), e.getCause());
+            }
+            if (resolved instanceof DCommandFactory) {
+                factories.put(entry.getKey(), (DCommandFactory) resolved);
+            } else {
+                errors.put(entry.getKey(), (Exception) resolved);
+            }
+        }
+        this.factories = Collections.unmodifiableMap(factories);
+        this.errors = Collections.unmodifiableMap(errors);
+    }
+
+    /**
+     * @return either a DCommandFactory or the Exception when resolving the class.
+     */
+    private Object resolve(String commandName, String className, DCommandFactory generated) {
+        if (generated != null && generated.getCommandClass().getName().equals(className)) {
+            return generated;
+        }
+        try {
+            return DCommandFactory.forName(className);
+        } catch (ClassNotFoundException | IllegalAccessException e) {
+            logger.warning("Cannot resolve command '" + commandName + "' as class " + className + ": " + e);
+            return e;
+        } catch (LinkageError e) {
+            logger.warning("Cannot resolve command '" + commandName + "' as class " + className + ": " + e);
+            return new ClassNotFoundException(e.toString(), e);
+        }
+    }
+
+
+    /**
+     * Find all DCommandProvider implementations (usually generated by DCommandNameProcessor) in CLASSPATH.
+     *
+     * @return command name => DCommandFactory from all providers.
+     */
+    public static Map<String, DCommandFactory> loadGeneratedFactories() {
+        Map<String, DCommandFactory> factories = new HashMap<>();
+        try {
+            for (DCommandProvider provider : ServiceLoader.load(DCommandProvider.class)) {
+                factories.putAll(provider.getCommandFactories());
+            }
+        } catch (ServiceConfigurationError e) {
+            DUtils.getInstance().getPackageLogger().warning("Cannot load generated command provider: " + e.getMessage());
+        }
+        return factories;
+    }
+
+
+    /**
+     * Get the factory of the command.
+     *
+     * @param commandName the command string in computing record's "command" field, or a DCommand class name.
+     * @return the DCommandFactory to create the DCommand object.
+     * @throws ClassNotFoundException if the command cannot be resolved.
+     * @throws IllegalAccessException if the DCommand class cannot be instantiated.
+     */
+    public DCommandFactory getFactory(String commandName) throws ClassNotFoundException, IllegalAccessException {
+        DCommandFactory factory = factories.get(commandName);
+        if (factory != null) {
+            return factory;
+        }
+        if (errors.containsKey(commandName)) {
+            throwError(errors.get(commandName));
+        }
+
+        Object resolved = adhoc.get(commandName);
+        if (resolved == null) {
+            try {
+                resolved = DCommandFactory.forName(commandName);
+            } catch (ClassNotFoundException | IllegalAccessException e) {
+                resolved = e;
+            } catch (LinkageError e) {
+                resolved = new ClassNotFoundException(e.getMessage(), e);
+            }
+            Object existing = adhoc.putIfAbsent(commandName, resolved);
+            if (existing != null) {
+                resolved = existing;
+            }
+        }
+        if (resolved instanceof Exception) {
+            throwError((Exception) resolved);
+        }
+        return (DCommandFactory) resolved;
+    }
+
+    private void throwError(Exception e) throws ClassNotFoundException, IllegalAccessException {
+        if (e instanceof IllegalAccessException) {
+            throw (IllegalAccessException) e;
+        }
+        throw (ClassNotFoundException) e;
+    }
+
+
+    /**
+     * @return resolved commands in the mapping: command name => DCommandFactory.
+     */
+    public Map<String, DCommandFactory> getFactories() {
+        return factories;
+    }
+
+    /**
+     * @return commands in the mapping that cannot be resolved: command name => error.
+     */
+    public Map<String, Exception> getErrors() {
+        return errors;
+    }
+}
@@ -1,14 +1,790 @@
 package org.drupal.project.computing;
 
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.drupal.project.computing.exception.DConfigException;
+import org.drupal.project.computing.exception.DNotFoundException;
+import org.drupal.project.computing.exception.DRuntimeException;
+
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
- * <p><em>Not implemented yet.</em></p>
+ * <p>Direct JDBC access to the Drupal database, mostly for DCommand classes that need to scan large tables (node, field
+ * data, watchdog, etc) or write back lots of per-entity results, which would be too expensive to pass through drush or
+ * services in one JSON blob.</p>
+ *
+ * <p>Queries are read through server-side cursors: rows are fetched from the database "fetchSize" rows at a time, so
+ * memory usage stays flat regardless of the size of the table. Optionally a background thread reads ahead so that
+ * processing the current batch overlaps with fetching the next one. Writes go through BulkWriter, which buffers a
+ * bounded number of rows and sends them in multi-row INSERT (or upsert) statements.</p>
+ *
+ * <p>Each cursor reads on a connection of its own, which is closed with the cursor, so that a command could stream
+ * rows from a cursor and write results back with a BulkWriter at the same time: BulkWriter commits on the shared
+ * connection (see getConnection()) don't end the transaction that holds the cursor open.</p>
+ *
+ * <p>The JDBC driver itself (MySQL Connector/J, PostgreSQL JDBC, etc) is not shipped with the library and needs to be
+ * in CLASSPATH.</p>
+ *
  * <p>See Drupal Computing documentation about recommended approach to access Drupal database.</p>
  *
- * @see DConfig().getDatabaseUrl()
- * @see DConfig().getDatabaseProperties()
+ * @see DConfig#getDatabaseUrl()
+ * @see DConfig#getDatabaseProperties()
  */
-public class DDatabase {
+public class DDatabase implements AutoCloseable {
+
     protected Logger logger = DUtils.getInstance().getPackageLogger();
+
+    protected final String url;
+    protected final Properties properties;
+
+    /**
+     * Number of rows to fetch from the database server in one round trip.
+     */
+    protected int fetchSize = 1000;
+
+    /**
+     * Number of fetched batches a background thread keeps ahead of the consumer. 0 means no read-ahead.
+     */
+    protected int readAhead = 0;
+
+    /**
+     * Number of rows BulkWriter buffers before sending them to the database in one JDBC batch.
+     */
+    protected int batchSize = 5000;
+
+    /**
+     * Number of rows BulkWriter packs into one multi-row "INSERT ... VALUES (...), (...)" statement.
+     */
+    protected int rowsPerStatement = 500;
+
+    /**
+     * Number of rows BulkWriter writes in one transaction. 0 means using auto-commit.
+     */
+    protected int commitSize = 0;
+
+    private Connection connection;
+
+
+    /**
+     * Constructor. Doesn't connect to the database until the first query.
+     *
+     * @param url JDBC database url.
+     * @param properties extra connection properties, e.g. "user" and "password". Could be empty.
+     */
+    public DDatabase(String url, Properties properties) {
+        assert StringUtils.isNotBlank(url) && properties != null;
+        this.url = url;
+        this.properties = new Properties();
+        this.properties.putAll(properties);
+
+        // MySQL Connector/J would read the whole result set into memory unless we ask for server-side cursors.
+        if (url.startsWith("jdbc:mysql:") && !this.properties.containsKey("useCursorFetch")) {
+            this.properties.setProperty("useCursorFetch", "true");
+        }
+    }
+
+    /**
+     * Factory method. Create DDatabase using "dcomp.database.*" settings in config.properties.
+     *
+     * @return Default DDatabase object.
+     * @throws DConfigException
+     */
+    public static DDatabase loadDefault() throws DConfigException {
+        DConfig config = DConfig.loadDefault();
+        Properties properties;
+        try {
+            properties = config.getDatabaseProperties();
+        } catch (DNotFoundException e) {
+            properties = new Properties();
+        }
+
+        DDatabase database = new DDatabase(config.getDatabaseUrl(), properties);
+        database.setFetchSize(Integer.parseInt(config.getProperty("dcomp.database.fetch_size", "1000")));
+        database.setReadAhead(Integer.parseInt(config.getProperty("dcomp.database.read_ahead", "0")));
+        database.setBatchSize(Integer.parseInt(config.getProperty("dcomp.database.batch_size", "5000")));
+        database.setRowsPerStatement(Integer.parseInt(config.getProperty("dcomp.database.rows_per_statement", "500")));
+        database.setCommitSize(Integer.parseInt(config.getProperty("dcomp.database.commit_size", "0")));
+        return database;
+    }
+
+
+    /**
+     * Get the JDBC connection, and connect if not connected yet.
+     *
+     * @return the JDBC connection.
+     * @throws SQLException
+     */
+    public synchronized Connection getConnection() throws SQLException {
+        if (connection == null || connection.isClosed()) {
+            logger.fine("Connecting to database: " + url);
+            connection = DriverManager.getConnection(url, properties);
+        }
+        return connection;
+    }
+
+
+    /**
+     * Run a SELECT query and stream the results on a new connection. Caller is responsible to close the cursor,
+     * preferably with try-with-resources, which closes the connection too.
+     *
+     * @param sql the SQL query, with "?" as placeholders.
+     * @param params the parameters for the placeholders.
+     * @return a Cursor to iterate through the results.
+     * @throws SQLException
+     */
+    public Cursor query(String sql, Object... params) throws SQLException {
+        assert StringUtils.isNotBlank(sql);
+        logger.finest("Connecting to database for cursor: " + url);
+        Connection conn = DriverManager.getConnection(url, properties);
+        try {
+            // PostgreSQL only uses server-side cursors when not in auto-commit mode.
+            conn.setAutoCommit(false);
+            PreparedStatement statement = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(fetchSize);
+            for (int i = 0; i < params.length; i++) {
+                statement.setObject(i + 1, params[i]);
+            }
+            logger.finest("Streaming query: " + sql);
+            return new Cursor(statement, statement.executeQuery(), readAhead);
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Create a BulkWriter to insert rows into a table. Caller is responsible to close the writer, which flushes the
+     * remaining rows.
+     *
+     * @param table the table name, e.g. "computing_record". Not escaped.
+     * @param columns the columns to insert, in the order of the values passed to BulkWriter.add().
+     * @return the BulkWriter object.
+     * @throws SQLException
+     */
+    public BulkWriter insert(String table, String... columns) throws SQLException {
+        return new BulkWriter(table, columns, null);
+    }
+
+
+    /**
+     * Create a BulkWriter to insert rows into a table, or update the existing rows on conflict of unique keys. Only
+     * MySQL ("ON DUPLICATE KEY UPDATE"), PostgreSQL and SQLite ("ON CONFLICT ... DO UPDATE") are supported.
+     *
+     * @param table the table name. Not escaped.
+     * @param keyColumns the primary key or unique key columns. Required by PostgreSQL to detect conflicts.
+     * @param columns all columns to insert, including the key columns.
+     * @return the BulkWriter object.
+     * @throws SQLFeatureNotSupportedException if the database doesn't support upsert.
+     * @throws SQLException
+     */
+    public BulkWriter upsert(String table, String[] keyColumns, String... columns) throws SQLException {
+        assert keyColumns != null && keyColumns.length > 0;
+        if (!isMySql() && !isOnConflict()) {
+            throw new SQLFeatureNotSupportedException("Upsert is not supported for database: " + url);
+        }
+        return new BulkWriter(table, columns, keyColumns);
+    }
+
+    private boolean isMySql() {
+        return url.startsWith("jdbc:mysql:") || url.startsWith("jdbc:mariadb:");
+    }
+
+    private boolean isOnConflict() {
+        return url.startsWith("jdbc:postgresql:") || url.startsWith("jdbc:sqlite:");
+    }
+
+
+    /**
+     * Close the database connection.
+     */
+    @Override
+    public synchronized void close() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.warning("Cannot close database connection: " + e.getMessage());
+            }
+            connection = null;
+        }
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        assert fetchSize > 0;
+        this.fetchSize = fetchSize;
+    }
+
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    public void setReadAhead(int readAhead) {
+        assert readAhead >= 0;
+        this.readAhead = readAhead;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        assert batchSize > 0;
+        this.batchSize = batchSize;
+    }
+
+    public int getRowsPerStatement() {
+        return rowsPerStatement;
+    }
+
+    public void setRowsPerStatement(int rowsPerStatement) {
+        assert rowsPerStatement > 0;
+        this.rowsPerStatement = rowsPerStatement;
+    }
+
+    public int getCommitSize() {
+        return commitSize;
+    }
+
+    public void setCommitSize(int commitSize) {
+        assert commitSize >= 0;
+        this.commitSize = commitSize;
+    }
+
+
+    /**
+     * Write rows into a table with multi-row INSERT statements sent in JDBC batches. At most "batchSize" rows are held
+     * in memory, so a command can write millions of result rows. If "commitSize" is set, rows are committed in
+     * transactions of that size; otherwise each batch is committed by auto-commit.
+     *
+     * Rows are removed from the buffer as soon as the statement that writes them succeeds. If a flush fails, the
+     * writer is failed: the rows that were not written are dropped, and close() only rolls back the uncommitted
+     * transaction (if "commitSize" is set) instead of sending anything again.
+     */
+    public class BulkWriter implements AutoCloseable {
+
+        private final String table;
+        private final String[] columns;
+        private final String[] keyColumns;
+        private final int statementRows;
+
+        private final Object[][] buffer;
+        private int buffered = 0;
+        private long written = 0;
+        private long uncommitted = 0;
+
+        private PreparedStatement fullStatement;
+        private final boolean restoreAutoCommit;
+        private boolean closed = false;
+        private boolean failed = false;
+
+        private BulkWriter(String table, String[] columns, String[] keyColumns) throws SQLException {
+            assert StringUtils.isNotBlank(table) && columns.length > 0;
+            this.table = table;
+            this.columns = columns;
+            this.keyColumns = keyColumns;
+            // JDBC drivers usually allow at most 65535 placeholders in one statement.
+            this.statementRows = Math.max(1, Math.min(rowsPerStatement, 65535 / columns.length));
+            this.buffer = new Object[Math.max(batchSize, statementRows)][];
+
+            Connection conn = getConnection();
+            restoreAutoCommit = commitSize > 0 && conn.getAutoCommit();
+            if (restoreAutoCommit) {
+                conn.setAutoCommit(false);
+            }
+        }
+
+        /**
+         * Add one row. The row is sent to the database when the buffer is full, or when flush() or close() is called.
+         *
+         * @param values the values in the same order as the columns.
+         * @throws SQLException
+         */
+        public void add(Object... values) throws SQLException {
+            if (closed || failed) {
+                throw new IllegalStateException(closed ? "BulkWriter is closed." : "BulkWriter failed to flush.");
+            }
+            if (values.length != columns.length) {
+                throw new IllegalArgumentException("Expected " + columns.length + " values, got " + values.length);
+            }
+            buffer[buffered++] = values;
+            if (buffered == buffer.length) {
+                flush();
+            }
+        }
+
+        /**
+         * Send all buffered rows to the database.
+         *
+         * @throws SQLException
+         */
+        public void flush() throws SQLException {
+            if (failed) {
+                throw new IllegalStateException("BulkWriter failed to flush.");
+            }
+            if (buffered == 0) {
+                return;
+            }
+            Connection conn = getConnection();
+
+            try {
+                // full statements go in one JDBC batch; the remainder goes in a statement of its own size.
+                int fullRows = buffered / statementRows * statementRows;
+                if (fullRows > 0) {
+                    if (fullStatement == null) {
+                        fullStatement = conn.prepareStatement(buildSql(statementRows));
+                    }
+                    for (int offset = 0; offset < fullRows; offset += statementRows) {
+                        bindRows(fullStatement, offset, statementRows);
+                        fullStatement.addBatch();
+                    }
+                    fullStatement.executeBatch();
+                    advance(fullRows);
+                }
+                if (buffered > 0) {
+                    try (PreparedStatement statement = conn.prepareStatement(buildSql(buffered))) {
+                        bindRows(statement, 0, buffered);
+                        statement.executeUpdate();
+                    }
+                    advance(buffered);
+                }
+
+                if (commitSize > 0 && uncommitted >= commitSize) {
+                    conn.commit();
+                    uncommitted = 0;
+                }
+            } catch (SQLException e) {
+                failed = true;
+                Arrays.fill(buffer, 0, buffered, null);
+                buffered = 0;
+                throw e;
+            }
+            logger.finest("Bulk written rows into " + table + ": " + written);
+        }
+
+        /**
+         * Remove the first rows, which are written, from the buffer.
+         */
+        private void advance(int rows) {
+            System.arraycopy(buffer, rows, buffer, 0, buffered - rows);
+            Arrays.fill(buffer, buffered - rows, buffered, null);
+            buffered -= rows;
+            written += rows;
+            uncommitted += rows;
+        }
+
+        /**
+         * @return number of rows sent to the database so far.
+         */
+        public long getWritten() {
+            return written;
+        }
+
+        /**
+         * Flush the remaining rows, commit, and release the statements. If a flush fails (now or before), the
+         * uncommitted transaction chunk is rolled back.
+         *
+         * @throws SQLException
+         */
+        @Override
+        public void close() throws SQLException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            Connection conn = getConnection();
+            try {
+                if (!failed) {
+                    flush();
+                }
+                if (commitSize > 0) {
+                    if (failed) {
+                        conn.rollback();
+                    } else if (uncommitted > 0) {
+                        conn.commit();
+                    }
+                }
+            } catch (SQLException e) {
+                if (commitSize > 0) {
+                    conn.rollback();
+                }
+                throw e;
+            } finally {
+                if (fullStatement != null) {
+                    fullStatement.close();
+                }
+                if (restoreAutoCommit) {
+                    conn.setAutoCommit(true);
+                }
+            }
+        }
+
+        private void bindRows(PreparedStatement statement, int offset, int count) throws SQLException {
+            int index = 1;
+            for (int r = offset; r < offset + count; r++) {
+                for (Object value : buffer[r]) {
+                    statement.setObject(index++, value);
+                }
+            }
+        }
+
+        private String buildSql(int rows) {
+            StringBuilder sql = new StringBuilder();
+            sql.append("INSERT INTO ").append(table).append(" (").append(StringUtils.join(columns, ", ")).append(") VALUES ");
+            String placeholders = "(" + StringUtils.repeat("?", ", ", columns.length) + ")";
+            sql.append(StringUtils.repeat(placeholders, ", ", rows));
+
+            // upsert() checks that the database is supported.
+            if (keyColumns != null) {
+                if (isMySql()) {
+                    sql.append(" ON DUPLICATE KEY UPDATE ");
+                    appendUpdates(sql, "VALUES(%s)");
+                } else {
+                    sql.append(" ON CONFLICT (").append(StringUtils.join(keyColumns, ", ")).append(") DO ");
+                    if (columns.length > keyColumns.length) {
+                        sql.append("UPDATE SET ");
+                        appendUpdates(sql, "EXCLUDED.%s");
+                    } else {
+                        sql.append("NOTHING");
+                    }
+                }
+            }
+            return sql.toString();
+        }
+
+        private void appendUpdates(StringBuilder sql, String valueFormat) {
+            boolean first = true;
+            for (String column : columns) {
+                if (ArrayUtils.contains(keyColumns, column) && columns.length > keyColumns.length) {
+                    continue;
+                }
+                if (!first) {
+                    sql.append(", ");
+                }
+                sql.append(column).append(" = ").append(String.format(valueFormat, column));
+                first = false;
+            }
+        }
+    }
+
+
+    /**
+     * A forward-only cursor over query results. The Row object returned by next() is reused: its values are only valid
+     * until the next call of next(). Copy the values out if you need to keep them.
+     */
+    public class Cursor implements Iterator<Row>, Iterable<Row>, AutoCloseable {
+
+        private final PreparedStatement statement;
+        private final ResultSet resultSet;
+        private final int columnCount;
+        private final Row row;
+
+        // read-ahead states, only used when readAhead > 0.
+        private final BlockingQueue<Object[][]> batches;
+        private Thread reader;
+        private Object[][] currentBatch;
+        private int batchPosition;
+        private volatile SQLException readerError;
+        private volatile boolean stopped = false;
+
+        private Boolean hasNext;
+        private boolean closed = false;
+
+        private Cursor(PreparedStatement statement, ResultSet resultSet, int readAhead) throws SQLException {
+            this.statement = statement;
+            this.resultSet = resultSet;
+            this.columnCount = resultSet.getMetaData().getColumnCount();
+            this.row = new Row(resultSet);
+
+            if (readAhead > 0) {
+                batches = new ArrayBlockingQueue<>(readAhead);
+                startReader();
+            } else {
+                batches = null;
+            }
+        }
+
+        /**
+         * Read batches of rows in the background, and wait when "readAhead" batches are waiting to be consumed.
+         * An empty batch marks the end of results. The reader is never interrupted, because some JDBC drivers close
+         * the connection when interrupted: it checks "stopped" between rows and while waiting instead.
+         */
+        private void startReader() {
+            reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!stopped) {
+                            Object[][] batch = new Object[fetchSize][];
+                            int n = 0;
+                            while (n < fetchSize && !stopped && resultSet.next()) {
+                                Object[] values = new Object[columnCount];
+                                for (int i = 0; i < columnCount; i++) {
+                                    values[i] = resultSet.getObject(i + 1);
+                                }
+                                batch[n++] = values;
+                            }
+                            if (n < fetchSize) {
+                                Object[][] lastBatch = new Object[n][];
+                                System.arraycopy(batch, 0, lastBatch, 0, n);
+                                if (n > 0) {
+                                    publish(lastBatch);
+                                }
+                                publish(new Object[0][]);
+                                return;
+                            }
+                            publish(batch);
+                        }
+                    } catch (SQLException e) {
+                        readerError = e;
+                        batches.offer(new Object[0][]);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "dcomp-db-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Wait until the consumer takes the batch, or the cursor is closed.
+         */
+        private void publish(Object[][] batch) throws InterruptedException {
+            while (!stopped && !batches.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                // check "stopped" again.
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (closed) {
+                return false;
+            }
+            if (hasNext == null) {
+                try {
+                    hasNext = (batches == null) ? resultSet.next() : advanceBatch();
+                } catch (SQLException e) {
+                    throw new DRuntimeException(e);
+                }
+                if (!hasNext) {
+                    close();
+                }
+            }
+            return hasNext;
+        }
+
+        private boolean advanceBatch() throws SQLException {
+            if (currentBatch != null && ++batchPosition < currentBatch.length) {
+                row.values = currentBatch[batchPosition];
+                return true;
+            }
+            try {
+                currentBatch = batches.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DRuntimeException(e);
+            }
+            if (readerError != null) {
+                throw readerError;
+            }
+            if (currentBatch.length == 0) {
+                return false;
+            }
+            batchPosition = 0;
+            row.values = currentBatch[0];
+            return true;
+        }
+
+        @Override
+        public Row next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            hasNext = null;
+            return row;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Iterator<Row> iterator() {
+            return this;
+        }
+
+        /**
+         * Release the database cursor and its connection. Called automatically when results are exhausted.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (reader != null) {
+                // wait until the reader leaves resultSet.next(): JDBC objects are not thread-safe.
+                stopped = true;
+                boolean interrupted = false;
+                while (reader.isAlive()) {
+                    try {
+                        reader.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            try {
+                Connection conn = statement.getConnection();
+                try {
+                    resultSet.close();
+                    statement.close();
+                    // nothing to commit: the transaction only holds the cursor.
+                    conn.rollback();
+                } finally {
+                    conn.close();
+                }
+            } catch (SQLException e) {
+                logger.warning("Cannot close database cursor: " + e.getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * A row in the query results, with primitive accessors to avoid boxing. Column index starts with 1 as in JDBC.
+     */
+    public static class Row {
+
+        private final ResultSet resultSet;
+        // set when rows are read ahead; otherwise values are read directly from resultSet.
+        private Object[] values;
+        private boolean wasNull;
+
+        private Row(ResultSet resultSet) {
+            this.resultSet = resultSet;
+        }
+
+        public long getLong(int column) throws SQLException {
+            if (values == null) {
+                return resultSet.getLong(column);
+            }
+            Object value = values[column - 1];
+            return (wasNull = value == null) ? 0L : toLong(value);
+        }
+
+        public int getInt(int column) throws SQLException {
+            if (values == null) {
+                return resultSet.getInt(column);
+            }
+            return (int) getLong(column);
+        }
+
+        public double getDouble(int column) throws SQLException {
+            if (values == null) {
+                return resultSet.getDouble(column);
+            }
+            Object value = values[column - 1];
+            if (wasNull = value == null) {
+                return 0.0;
+            }
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            } else if (value instanceof Boolean) {
+                return (Boolean) value ? 1.0 : 0.0;
+            }
+            try {
+                return Double.parseDouble(toText(value).trim());
+            } catch (NumberFormatException e) {
+                throw new SQLException("Cannot convert column " + column + " to double: " + value, e);
+            }
+        }
+
+        public boolean getBoolean(int column) throws SQLException {
+            if (values == null) {
+                return resultSet.getBoolean(column);
+            }
+            Object value = values[column - 1];
+            if (wasNull = value == null) {
+                return false;
+            }
+            if (value instanceof Boolean) {
+                return (Boolean) value;
+            }
+            if (!(value instanceof Number)) {
+                String text = toText(value).trim();
+                if (text.equalsIgnoreCase("true") || text.equalsIgnoreCase("false")) {
+                    return Boolean.parseBoolean(text);
+                }
+            }
+            return toLong(value) != 0;
+        }
+
+        /**
+         * Convert a value read ahead with ResultSet.getObject() the way ResultSet.getLong() would, so that accessors
+         * return the same with or without read-ahead, e.g. for MySQL tinyint(1) read as Boolean.
+         */
+        private static long toLong(Object value) throws SQLException {
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            } else if (value instanceof Boolean) {
+                return (Boolean) value ? 1L : 0L;
+            } else if (value instanceof String || value instanceof byte[]) {
+                String text = toText(value).trim();
+                try {
+                    return new BigDecimal(text).longValue();
+                } catch (NumberFormatException e) {
+                    throw new SQLException("Cannot convert to number: " + text, e);
+                }
+            }
+            throw new SQLException("Cannot convert " + value.getClass().getSimpleName() + " to number.");
+        }
+
+        private static String toText(Object value) {
+            return (value instanceof byte[]) ? new String((byte[]) value) : value.toString();
+        }
+
+        public String getString(int column) throws SQLException {
+            if (values == null) {
+                return resultSet.getString(column);
+            }
+            Object value = values[column - 1];
+            wasNull = value == null;
+            return (value == null) ? null : toText(value);
+        }
+
+        public Object getObject(int column) throws SQLException {
+            if (values == null) {
+                return resultSet.getObject(column);
+            }
+            Object value = values[column - 1];
+            wasNull = value == null;
+            return value;
+        }
+
+        /**
+         * @return true if the last column read was SQL NULL, as in ResultSet.wasNull().
+         */
+        public boolean wasNull() throws SQLException {
+            return (values == null) ? resultSet.wasNull() : wasNull;
+        }
+    }
 }
@@ -8,17 +8,33 @@ import org.drupal.project.computing.exception.DSystemExecutionException;
 
 import javax.script.Bindings;
 import javax.script.SimpleBindings;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
  * This is the utility class to run drush command. You need to specify "dcomp.drush.command" (default "drush") and
  * "dcomp.drush.site" (default "@self") to be able to access Drush. This class interact with Drupal Computing drush
  * "computing-call" and "computing-eval" to execute any Drupal functions.
+ *
+ * "dcomp.drush.site" could list several aliases of the same site separated by commas, e.g. one for each web head.
+ * Calls are then balanced across the aliases, see DDrushBalancer.
  */
 public class DDrush {
 
     private String drushCommand;
     private String drushSiteAlias;
+    private DDrushBalancer balancer;
+
+    /**
+     * computingCall() parameters longer than this in total are sent through STDIN instead of command line arguments.
+     */
+    private int payloadThreshold = 32768;
 
     private Logger logger = DUtils.getInstance().getPackageLogger();
 
@@ -28,13 +44,25 @@ public class DDrush {
      * This is the only initialization code. Need to specify drush command and siteAlias.
      *
      * @param drushCommand drush executable command
-     * @param drushSiteAlias drush site alias
+     * @param drushSiteAlias drush site alias, or several aliases separated by commas.
      */
     public DDrush(String drushCommand, String drushSiteAlias) {
-        assert StringUtils.isNotBlank(drushCommand) && StringUtils.isNotBlank(drushSiteAlias);
+        this(drushCommand, drushSiteAlias, new DDrushBalancer(DDrushBalancer.parseAliases(drushSiteAlias), 3, 30000));
+    }
+
+    /**
+     * Constructor with the balancer of the site aliases.
+     *
+     * @param drushCommand drush executable command
+     * @param drushSiteAlias drush site aliases separated by commas.
+     * @param balancer the balancer of the same aliases.
+     */
+    public DDrush(String drushCommand, String drushSiteAlias, DDrushBalancer balancer) {
+        assert StringUtils.isNotBlank(drushCommand) && StringUtils.isNotBlank(drushSiteAlias) && balancer != null;
         // TODO: check "drush cc" and existence of computing module.
         this.drushCommand = drushCommand;
         this.drushSiteAlias = drushSiteAlias;
+        this.balancer = balancer;
     }
 
     /**
@@ -45,7 +73,21 @@ public class DDrush {
     public static DDrush loadDefault() {
         // might need to check validity.
         DConfig config = DConfig.loadDefault();
-        return new DDrush(config.getDrushCommand(), config.getDrushSiteAlias());
+        DDrush drush = new DDrush(config.getDrushCommand(), config.getDrushSiteAlias(),
+                DDrushBalancer.loadDefault(config.getDrushSiteAlias(), config));
+        drush.setPayloadThreshold(Integer.parseInt(config.getProperty("dcomp.drush.payload_threshold", "32768").trim()));
+        return drush;
+    }
+
+    /**
+     * Set the total length of computingCall() parameters above which they are sent through STDIN with computing-eval,
+     * instead of command line arguments that are limited by the OS (ARG_MAX) and need escaping.
+     *
+     * @param payloadThreshold number of characters, or 0 to always use STDIN.
+     */
+    public void setPayloadThreshold(int payloadThreshold) {
+        assert payloadThreshold >= 0;
+        this.payloadThreshold = payloadThreshold;
     }
 
 
@@ -68,24 +110,150 @@ public class DDrush {
      * @throws org.drupal.project.computing.exception.DSiteException
      */
     public String execute(String[] command, String input) throws DSiteException {
-        try {
-            // initialize command line
-            CommandLine cmdLine = new CommandLine(drushCommand);
-            cmdLine.addArgument(drushSiteAlias);
-            //CommandLine cmdLine = CommandLine.parse(drushExec);
-
-            // 2nd parameter is crucial. without it, there would be escaping problems.
-            // false means we didn't escape the params and we want CommandLine to escape for us.
-            cmdLine.addArguments(command, false);
+        return execute(command, input, stringParser);
+    }
 
+    /**
+     * Execute Drush command, and parse STDOUT while drush runs, e.g. with DUtils.getJsonParser() to decode JSON without
+     * buffering the whole output as a string.
+     *
+     * @param command The drush command to execute, ignoring drush binary and site alias.
+     * @param input Input stream, could be null.
+     * @param parser reads STDOUT.
+     * @return the parsed STDOUT.
+     * @throws DSiteException
+     */
+    public <T> T execute(String[] command, String input, DUtils.StreamParser<T> parser) throws DSiteException {
+        DDrushBalancer.Call call = balancer.acquire();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            byte[] inputBytes = (input == null) ? null : input.getBytes();
             //System.out.println(cmdLine.toString());
-            return DUtils.getInstance().executeShell(cmdLine, input);
+            T result = DUtils.getInstance().executeShell(buildCommandLine(call.getName(), command), null, inputBytes, parser, Charset.defaultCharset());
+            success = true;
+            return result;
 
         } catch (DSystemExecutionException e) {
+            // errors of the called code don't count against the alias.
+            success = !isAliasFailure(e);
             throw new DSiteException("Cannot execute drush.", e);
+        } finally {
+            balancer.release(call, success, System.nanoTime() - start);
         }
     }
 
+    /**
+     * Messages in STDERR of failures to reach the host or bootstrap Drupal, in lower case.
+     */
+    private static final String[] ALIAS_FAILURES = {"bootstrap", "could not find a drupal", "ssh:", "connection refused",
+            "connection timed out", "connection reset", "could not resolve", "no route to host", "permission denied ("};
+
+    /**
+     * Whether the failed drush call means the site alias is unhealthy, see DDrushBalancer: drush can't start, times out,
+     * can't reach the host, or can't bootstrap Drupal. Errors of the called code, e.g. an exception thrown by a Drupal
+     * function, and output that can't be parsed mean the alias works.
+     *
+     * @param e the failure of DUtils.executeShell().
+     * @return true if the failure should count against the alias.
+     */
+    protected boolean isAliasFailure(DSystemExecutionException e) {
+        if (e.getCause() instanceof InterruptedException) {
+            // the caller gave up.
+            return false;
+        }
+        return e.getResult() == null || isAliasFailure(e.getResult());
+    }
+
+    /**
+     * @see #isAliasFailure(DSystemExecutionException)
+     */
+    protected boolean isAliasFailure(DProcessResult result) {
+        if (result.isTimedOut()) {
+            return true;
+        } else if (result.getExitValue() == 0) {
+            // output can't be parsed.
+            return false;
+        } else if (result.getExitValue() == 126 || result.getExitValue() == 127) {
+            // drush or ssh can't run.
+            return true;
+        }
+        String stderr = result.getStderr(Charset.defaultCharset()).toLowerCase();
+        for (String message : ALIAS_FAILURES) {
+            if (stderr.contains(message)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final DUtils.StreamParser<String> stringParser = new DUtils.StreamParser<String>() {
+        @Override
+        public String parse(InputStream stdout) throws IOException {
+            // decode while reading, without keeping a copy of the bytes.
+            Reader reader = new InputStreamReader(stdout, Charset.defaultCharset());
+            StringBuilder content = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                content.append(buffer, 0, read);
+            }
+            return content.toString();
+        }
+    };
+
+    /**
+     * Execute Drush command without blocking, so that many drush calls could run at the same time. See
+     * DUtils.executeShellAsync().
+     *
+     * @param command The drush command to execute, ignoring drush binary and site alias.
+     * @param input Input stream, could be null.
+     * @return the future of STDOUT results, which fails with DSiteException if drush fails.
+     */
+    public DFuture<String> executeAsync(String[] command, String input) {
+        final DDrushBalancer.Call call = balancer.acquire();
+        final long start = System.nanoTime();
+        final CommandLine cmdLine = buildCommandLine(call.getName(), command);
+        logger.finest("Shell command to run: " + cmdLine.toString());
+        byte[] inputBytes = (input == null) ? null : input.getBytes();
+        return DUtils.getInstance().executeShellAsync(cmdLine, null, inputBytes).addListener(new DFuture.Listener<DProcessResult>() {
+            @Override
+            public void onSuccess(DProcessResult result) {
+                balancer.release(call, result.isSuccessful() || !isAliasFailure(result), System.nanoTime() - start);
+            }
+
+            @Override
+            public void onFailure(Throwable failure) {
+                boolean success = failure instanceof DSystemExecutionException && !isAliasFailure((DSystemExecutionException) failure);
+                balancer.release(call, success, System.nanoTime() - start);
+            }
+        }).then(new DFuture.Transform<DProcessResult, String>() {
+            @Override
+            public String apply(DProcessResult result) throws DSiteException {
+                if (ArrayUtils.isNotEmpty(result.getStderr())) {
+                    logger.warning("Shell command error stream message: " + result.getStderr(Charset.defaultCharset()));
+                }
+                try {
+                    return result.check().getStdout(Charset.defaultCharset());
+                } catch (DSystemExecutionException e) {
+                    throw new DSiteException("Cannot execute drush.", e);
+                }
+            }
+        });
+    }
+
+    private CommandLine buildCommandLine(String siteAlias, String[] command) {
+        // initialize command line
+        CommandLine cmdLine = new CommandLine(drushCommand);
+        cmdLine.addArgument(siteAlias);
+        //CommandLine cmdLine = CommandLine.parse(drushExec);
+
+        // 2nd parameter is crucial. without it, there would be escaping problems.
+        // false means we didn't escape the params and we want CommandLine to escape for us.
+        cmdLine.addArguments(command, false);
+        return cmdLine;
+    }
+
 
     public String execute(String[] command) throws DSiteException {
         return execute(command, null);
@@ -107,6 +275,13 @@ public class DDrush {
     }
 
 
+    /**
+     * @return the balancer of the site aliases.
+     */
+    public DDrushBalancer getBalancer() {
+        return balancer;
+    }
+
     public String getDrushString() {
         return drushCommand + ' ' + drushSiteAlias;
     }
@@ -165,20 +340,59 @@ public class DDrush {
     }
 
 
+    /**
+     * Execute PHP code through computing-eval without blocking. See computingEval().
+     *
+     * @param phpCode Should not use "<?php ... ?>"
+     * @return the future of execution results in JSON.
+     */
+    public DFuture<String> computingEvalAsync(final String phpCode) {
+        return executeAsync(new String[] {"computing-eval", "--pipe", "-"}, phpCode).addListener(new DFuture.Listener<String>() {
+            @Override
+            public void onSuccess(String result) {}
+
+            @Override
+            public void onFailure(Throwable failure) {
+                logger.severe("Error executing PHP code through computing-eval: " + phpCode);
+            }
+        });
+    }
+
     /**
      * Call any Drupal functions and returns results in json.
      *
      * @param params First param is the function name; the rest are parameters in json.
      *   Callers are responsible to wrap the params in json, but not responsible to escape them as command line args.
+     *   Large params (see setPayloadThreshold()) are sent through STDIN with computingCallPayload().
      * @return Execution results in JSON.
      * @throws DSiteException
      */
     public String computingCall(String[] params) throws DSiteException {
-        String result;
+        return computingCall(params, stringParser);
+    }
+
+    /**
+     * Call any Drupal functions and parse the results while drush runs.
+     *
+     * @param params First param is the function name; the rest are parameters in json.
+     * @param parser reads STDOUT.
+     * @return the parsed execution results.
+     * @throws DSiteException
+     */
+    public <T> T computingCall(String[] params, DUtils.StreamParser<T> parser) throws DSiteException {
+        int length = 0;
+        for (int i = 1; i < params.length; i++) {
+            length += params[i].length();
+        }
+        if (params.length > 1 && length > payloadThreshold) {
+            return computingCallPayload(params, parser);
+        }
+
+        T result;
         try {
             String[] args = {"computing-call", "--pipe"};
             args = ArrayUtils.addAll(args, params);
-            result = execute(args);
+            result = execute(args, null, parser);
         } catch (Exception e) {
             logger.severe("Error executing function call through computing-call: " + ArrayUtils.toString(params));
             throw new DSiteException("Cannot execute computing-call.", e);
@@ -186,6 +400,60 @@ public class DDrush {
         return result;
     }
 
+    /**
+     * Call the Drupal function with parameters streamed through computing-eval's STDIN, which has no size limit and
+     * needs no escaping. The function name and parameters are sent as JSON in a PHP nowdoc string, see phpPayload(),
+     * so no user data ends up in PHP code, and an unknown function fails with DSiteException as with computing-call.
+     *
+     * @param params First param is the function name; the rest are parameters in json.
+     * @param parser reads STDOUT.
+     * @return the parsed execution results.
+     * @throws DSiteException
+     */
+    protected <T> T computingCallPayload(String[] params, DUtils.StreamParser<T> parser) throws DSiteException {
+        StringBuilder json = new StringBuilder("[").append(DUtils.Json.getInstance().toJson(params[0])).append(",[");
+        for (int i = 1; i < params.length; i++) {
+            json.append(i > 1 ? "," : "").append(params[i]);
+        }
+        json.append("]]");
+        StringBuilder phpCode = phpPayload(json);
+        phpCode.append("$dcomp_call = json_decode($dcomp_payload, TRUE);\n");
+        phpCode.append("if (!is_array($dcomp_call) || !is_string($dcomp_call[0]) || !function_exists($dcomp_call[0])) { throw new Exception('Invalid function call.'); }\n");
+        phpCode.append("return call_user_func_array($dcomp_call[0], $dcomp_call[1]);");
+        logger.finest("Sending computing-call parameters through STDIN: " + phpCode.length() + " characters.");
+
+        try {
+            return execute(new String[] {"computing-eval", "--pipe", "-"}, phpCode.toString(), parser);
+        } catch (DSiteException e) {
+            logger.severe("Error executing function call through computing-eval: " + params[0]);
+            throw new DSiteException("Cannot execute computing-call.", e);
+        }
+    }
+
+    /**
+     * Line breaks in JSON can only be whitespace between tokens (line breaks in strings are escaped), so they are
+     * replaced with spaces, e.g. in pretty-printed parameters, and the JSON can't end the nowdoc early.
+     *
+     * @return PHP code that assigns the JSON string to $dcomp_payload with a nowdoc.
+     */
+    private StringBuilder phpPayload(CharSequence json) {
+        StringBuilder phpCode = new StringBuilder(json.length() + 400);
+        phpCode.append("$dcomp_payload = <<<'DCOMP_PAYLOAD'\n");
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            phpCode.append(c == '\n' || c == '\r' ? ' ' : c);
+        }
+        phpCode.append("\nDCOMP_PAYLOAD;\n");
+        return phpCode;
+    }
+
+    /**
+     * @return a new batch to call several Drupal functions in one drush process.
+     */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
     /**
      * Utility function to use with the first computingCall().
      * @param function the name of the Drupal function to call.
@@ -194,12 +462,29 @@ public class DDrush {
      * @throws DSiteException
      */
     public String computingCall(String function, Object... funcParams) throws DSiteException {
+        return computingCall(encodeParams(function, funcParams));
+    }
+
+    /**
+     * Call the Drupal function, and decode the JSON results while drush runs, without buffering the whole output.
+     * Use it for calls with large results, e.g. loading or claiming records.
+     *
+     * @param function the name of the Drupal function to call.
+     * @param funcParams the parameters not encoded in JSON.
+     * @return Execution results as from DUtils.Json.fromJson(), usually Bindings.
+     * @throws DSiteException
+     */
+    public Object computingCallJson(String function, Object... funcParams) throws DSiteException {
+        return computingCall(encodeParams(function, funcParams), DUtils.getInstance().getJsonParser());
+    }
+
+    private String[] encodeParams(String function, Object... funcParams) {
         String[] params = new String[funcParams.length + 1];
         params[0] = function;
         for (int i = 0; i < funcParams.length; i ++) {
             params[i + 1] = DUtils.Json.getInstance().toJson(funcParams[i]);
         }
-        return computingCall(params);
+        return params;
     }
 
 
@@ -225,4 +510,140 @@ public class DDrush {
 //            return checkComputing(false);
 //        }
 
+
+    /**
+     * <p>Queue of Drupal function calls that are sent together in one computing-eval call through STDIN, so that the
+     * cost of drush and Drupal bootstrap is paid once for the whole batch instead of once per call. Each call gets its
+     * own result or error: a failed call doesn't stop the others.</p>
+     *
+     * <pre>
+     * DDrush.Batch batch = drush.newBatch();
+     * batch.add("variable_get", "site_name", "");
+     * batch.add("computing_update_field", 12, "message", "Hello");
+     * List&lt;DDrush.BatchResult&gt; results = batch.flush();
+     * </pre>
+     *
+     * <p>Not thread-safe: each thread should use its own batch.</p>
+     */
+    public class Batch {
+
+        private final List<String> calls = new ArrayList<>();
+
+        private Batch() {}
+
+        /**
+         * Queue a function call.
+         *
+         * @param function the name of the Drupal function to call.
+         * @param funcParams the parameters not encoded in JSON.
+         * @return the index of the call's result in flush().
+         */
+        public int add(String function, Object... funcParams) {
+            String[] params = encodeParams(function, funcParams);
+            return addEncoded(params);
+        }
+
+        /**
+         * Queue a function call with parameters already encoded in JSON, as in computingCall(String[]).
+         *
+         * @param params First param is the function name; the rest are parameters in json.
+         * @return the index of the call's result in flush().
+         */
+        public int addEncoded(String[] params) {
+            StringBuilder call = new StringBuilder("[").append(DUtils.Json.getInstance().toJson(params[0])).append(",[");
+            for (int i = 1; i < params.length; i++) {
+                call.append(i > 1 ? "," : "").append(params[i]);
+            }
+            calls.add(call.append("]]").toString());
+            return calls.size() - 1;
+        }
+
+        public int size() {
+            return calls.size();
+        }
+
+        /**
+         * Run all queued calls in one drush process, and clear the queue.
+         *
+         * @return results of the calls in the order they were added.
+         * @throws DSiteException if drush fails, not if some calls fail.
+         */
+        public List<BatchResult> flush() throws DSiteException {
+            List<BatchResult> results = new ArrayList<>();
+            if (calls.isEmpty()) {
+                return results;
+            }
+            StringBuilder json = new StringBuilder("[");
+            for (int i = 0; i < calls.size(); i++) {
+                json.append(i > 0 ? "," : "").append(calls.get(i));
+            }
+            json.append("]");
+            int size = calls.size();
+            calls.clear();
+
+            StringBuilder phpCode = phpPayload(json);
+            phpCode.append("$dcomp_results = array();\n");
+            phpCode.append("foreach (json_decode($dcomp_payload, TRUE) as $dcomp_call) {\n");
+            phpCode.append("  try {\n");
+            phpCode.append("    if (!function_exists($dcomp_call[0])) { throw new Exception('Function not found: ' . $dcomp_call[0]); }\n");
+            phpCode.append("    $dcomp_results[] = array('result' => call_user_func_array($dcomp_call[0], $dcomp_call[1]));\n");
+            phpCode.append("  } catch (Exception $e) {\n");
+            phpCode.append("    $dcomp_results[] = array('error' => $e->getMessage());\n");
+            phpCode.append("  }\n");
+            phpCode.append("}\n");
+            phpCode.append("return $dcomp_results;");
+            logger.finest("Sending a batch of " + size + " calls through STDIN: " + phpCode.length() + " characters.");
+
+            Object output;
+            try {
+                output = execute(new String[] {"computing-eval", "--pipe", "-"}, phpCode.toString(), DUtils.getInstance().getJsonParser());
+            } catch (DSiteException e) {
+                logger.severe("Error executing a batch of " + size + " calls through computing-eval.");
+                throw new DSiteException("Cannot execute computing-eval batch.", e);
+            }
+            if (!(output instanceof List) || ((List) output).size() != size) {
+                throw new DSiteException("Unexpected result from computing-eval batch: " + output);
+            }
+            for (Object item : (List) output) {
+                if (!(item instanceof Bindings)) {
+                    throw new DSiteException("Unexpected result from computing-eval batch: " + item);
+                }
+                Bindings bindings = (Bindings) item;
+                results.add(new BatchResult(bindings.get("result"), bindings.containsKey("error") ? String.valueOf(bindings.get("error")) : null));
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Result or error of a call in a Batch.
+     */
+    public static class BatchResult {
+        private final Object result;
+        private final String error;
+
+        public BatchResult(Object result, String error) {
+            this.result = result;
+            this.error = error;
+        }
+
+        public boolean isError() {
+            return error != null;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return the result of the function call, as from DUtils.Json.fromJson().
+         * @throws DSiteException if the function call failed.
+         */
+        public Object get() throws DSiteException {
+            if (error != null) {
+                throw new DSiteException("Drupal function call failed in batch: " + error);
+            }
+            return result;
+        }
+    }
 }
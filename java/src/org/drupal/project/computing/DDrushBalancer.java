@@ -0,0 +1,221 @@
+package org.drupal.project.computing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * <p>Spreads drush calls across several site aliases of the same Drupal site, e.g. one alias for each web head, so that
+ * the PHP bootstrap cost doesn't fall on one host. Each call goes to the alias with the fewest outstanding calls, and
+ * among those to the one with the lowest average latency.</p>
+ *
+ * <p>An alias that fails "maxFailures" calls in a row (including timeouts) is ejected for "ejectTime" milliseconds.
+ * Only failures of the alias count, e.g. drush can't reach the host or bootstrap Drupal, not errors of the called code
+ * (see DDrush.isAliasFailure()). After the eject time, one probe call is sent to the alias: it's re-admitted if the
+ * probe succeeds, and ejected again otherwise. Calls sent before the alias was ejected don't change that when they
+ * finish. If all aliases are ejected, calls go to the one that will be re-admitted first rather than fail right
+ * away.</p>
+ *
+ * <p>The class is thread-safe. See DDrush.</p>
+ */
+public class DDrushBalancer {
+
+    protected Logger logger = DUtils.getInstance().getPackageLogger();
+
+    private final List<Alias> aliases = new ArrayList<>();
+    private final int maxFailures;
+    private final long ejectTime;
+    private int next = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param aliases drush site aliases, e.g. "@web1".
+     * @param maxFailures number of failed calls in a row to eject an alias.
+     * @param ejectTime milliseconds before probing an ejected alias.
+     */
+    public DDrushBalancer(List<String> aliases, int maxFailures, long ejectTime) {
+        assert !aliases.isEmpty() && maxFailures > 0 && ejectTime >= 0;
+        for (String name : aliases) {
+            this.aliases.add(new Alias(name));
+        }
+        this.maxFailures = maxFailures;
+        this.ejectTime = ejectTime;
+    }
+
+    /**
+     * Factory method.
+     *
+     * @param siteAliases comma separated drush site aliases, e.g. "@web1,@web2".
+     * @param config the agent configuration to read "dcomp.drush.eject_failures" (default 3) and
+     *               "dcomp.drush.eject_time" (in seconds, default 30).
+     * @return the DDrushBalancer object.
+     */
+    public static DDrushBalancer loadDefault(String siteAliases, DConfig config) {
+        int maxFailures = Integer.parseInt(config.getProperty("dcomp.drush.eject_failures", "3").trim());
+        long ejectTime = Long.parseLong(config.getProperty("dcomp.drush.eject_time", "30").trim()) * 1000;
+        return new DDrushBalancer(parseAliases(siteAliases), maxFailures, ejectTime);
+    }
+
+    /**
+     * @param siteAliases comma separated drush site aliases.
+     * @return the list of aliases.
+     */
+    public static List<String> parseAliases(String siteAliases) {
+        List<String> aliases = new ArrayList<>();
+        for (String alias : siteAliases.split(",")) {
+            if (!alias.trim().isEmpty()) {
+                aliases.add(alias.trim());
+            }
+        }
+        if (aliases.isEmpty()) {
+            throw new IllegalArgumentException("No drush site alias: " + siteAliases);
+        }
+        return aliases;
+    }
+
+
+    /**
+     * Pick the alias for a call. Call release() when the call is done.
+     *
+     * @return the call to the alias.
+     */
+    public synchronized Call acquire() {
+        long now = System.currentTimeMillis();
+        Alias best = null;
+        for (int i = 0; i < aliases.size(); i++) {
+            // start from a different alias each time to spread ties.
+            Alias alias = aliases.get((next + i) % aliases.size());
+            if (!alias.isAvailable(now)) {
+                continue;
+            }
+            if (best == null || alias.outstanding < best.outstanding
+                    || (alias.outstanding == best.outstanding && alias.latency < best.latency)) {
+                best = alias;
+            }
+        }
+        next = (next + 1) % aliases.size();
+
+        if (best == null) {
+            // all aliases are ejected or being probed: use the one re-admitted first.
+            for (Alias alias : aliases) {
+                if (best == null || alias.ejectedUntil < best.ejectedUntil) {
+                    best = alias;
+                }
+            }
+            logger.warning("All drush site aliases are ejected. Use " + best.name);
+        }
+        boolean probe = false;
+        if (best.ejectedUntil > 0 && best.isAvailable(now)) {
+            logger.info("Probing drush site alias " + best.name);
+            best.probing = true;
+            probe = true;
+        }
+        best.outstanding++;
+        return new Call(best, probe, best.ejections);
+    }
+
+    /**
+     * Record the outcome of a call.
+     *
+     * @param call the call from acquire().
+     * @param success whether the call succeeded, or failed for reasons other than the alias.
+     * @param latency nanoseconds the call took.
+     */
+    public synchronized void release(Call call, boolean success, long latency) {
+        Alias alias = call.alias;
+        alias.outstanding--;
+        if (call.probe) {
+            // calls sent before the alias was ejected don't end the probe.
+            alias.probing = false;
+        }
+        // exponentially weighted moving average, in milliseconds.
+        double millis = latency / 1000000.0;
+        alias.latency = alias.calls == 0 ? millis : 0.8 * alias.latency + 0.2 * millis;
+        alias.calls++;
+
+        if (alias.ejectedUntil > 0 && call.ejections != alias.ejections) {
+            // sent before the alias was ejected: only the probe decides whether to re-admit it.
+            return;
+        }
+        if (success) {
+            if (alias.ejectedUntil > 0) {
+                logger.info("Drush site alias " + alias.name + " is re-admitted.");
+            }
+            alias.failures = 0;
+            alias.ejectedUntil = 0;
+        } else {
+            alias.failures++;
+            if (aliases.size() > 1 && (alias.failures >= maxFailures || alias.ejectedUntil > 0)) {
+                logger.warning("Drush site alias " + alias.name + " failed " + alias.failures + " times. Eject for " + ejectTime + "ms.");
+                alias.ejectedUntil = System.currentTimeMillis() + ejectTime;
+                alias.ejections++;
+                DMetrics.getInstance().increment("drush.ejected");
+            }
+        }
+    }
+
+    /**
+     * @return names of the aliases that are not ejected.
+     */
+    public synchronized List<String> getHealthy() {
+        List<String> healthy = new ArrayList<>();
+        for (Alias alias : aliases) {
+            if (alias.ejectedUntil == 0) {
+                healthy.add(alias.name);
+            }
+        }
+        return Collections.unmodifiableList(healthy);
+    }
+
+
+    /**
+     * A call to an alias, from acquire() to release().
+     */
+    public static class Call {
+        private final Alias alias;
+        private final boolean probe;
+        private final int ejections;
+
+        Call(Alias alias, boolean probe, int ejections) {
+            this.alias = alias;
+            this.probe = probe;
+            this.ejections = ejections;
+        }
+
+        public String getName() {
+            return alias.name;
+        }
+
+        /**
+         * @return whether the call is the probe of an ejected alias.
+         */
+        public boolean isProbe() {
+            return probe;
+        }
+    }
+
+    /**
+     * A drush site alias and its statistics.
+     */
+    private static class Alias {
+        private final String name;
+        private int outstanding = 0;
+        private long calls = 0;
+        private double latency = 0;
+        private int failures = 0;
+        private long ejectedUntil = 0;
+        private int ejections = 0;
+        private boolean probing = false;
+
+        Alias(String name) {
+            this.name = name;
+        }
+
+        private boolean isAvailable(long now) {
+            // an ejected alias gets one probe call after the eject time.
+            return ejectedUntil == 0 || (now >= ejectedUntil && !probing);
+        }
+    }
+}
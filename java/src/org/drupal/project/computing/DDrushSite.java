@@ -7,6 +7,11 @@ import org.drupal.project.computing.exception.DNotFoundException;
 import org.drupal.project.computing.exception.DSiteException;
 
 import javax.script.Bindings;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -123,20 +128,24 @@ public class DDrushSite extends DSite implements DSiteExtended {
 
     @Override
     public DRecord loadRecord(long id) throws DSiteException {
-        String jsonResult = drush.computingCall("computing_load", id);
+        // decode JSON while drush runs, since records could be large.
+        Object jsonObj = drush.computingCallJson("computing_load", id);
+        if (!(jsonObj instanceof Bindings)) {
+            throw new DSiteException("Cannot parse JSON result: " + jsonObj);
+        }
         try {
-            return DRecord.fromJson(jsonResult);
+            return DRecord.fromBindings((Bindings) jsonObj);
         } catch (JsonSyntaxException | IllegalArgumentException e) {
-            throw new DSiteException("Cannot parse JSON result: " + jsonResult, e);
+            throw new DSiteException("Cannot parse JSON result: " + jsonObj, e);
         }
     }
 
 
     @Override
     public DRecord claimRecord(String appName) throws DSiteException, DNotFoundException {
-        String jsonResult = drush.computingCall("computing_claim", appName);
+        // decode JSON while drush runs, since records could be large.
+        Object jsonObj = drush.computingCallJson("computing_claim", appName);
         try {
-            Object jsonObj = DUtils.Json.getInstance().fromJson(jsonResult);
             if (jsonObj instanceof Boolean && !((Boolean) jsonObj)) {
                 // this is also expected when no item is available.
                 throw new DNotFoundException("No record available to be claimed.");
@@ -164,6 +173,36 @@ public class DDrushSite extends DSite implements DSiteExtended {
         }
     }
 
+    /**
+     * Finish all records with one drush call, see DDrush.Batch.
+     */
+    @Override
+    public void finishRecords(Collection<DRecord> records) throws DSiteException {
+        DDrush.Batch batch = drush.newBatch();
+        List<DRecord> list = new ArrayList<>(records);
+        for (DRecord record : list) {
+            assert !record.isNew();
+            batch.add("computing_finish", record.getId(), record.getStatus().toString(), record.getMessage(), record.getOutput());
+        }
+        List<DDrush.BatchResult> results = batch.flush();
+        List<Long> failed = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i).isError() || !Boolean.TRUE.equals(results.get(i).get())) {
+                failed.add(list.get(i).getId());
+            }
+        }
+        if (!failed.isEmpty()) {
+            throw new DSiteException("Errors running finishRecords function on records: " + StringUtils.join(failed, ","));
+        }
+    }
+
+    /**
+     * @return a new batch of Drupal function calls, see DDrush.Batch.
+     */
+    public DDrush.Batch newBatch() {
+        return drush.newBatch();
+    }
+
 //    @Override @Deprecated
 //    public List<DRecord> queryReadyRecords(String appName) throws DSiteException {
 //        String phpCode = String.format("return computing_query_active_records('%s');", appName);
@@ -214,6 +253,66 @@ public class DDrushSite extends DSite implements DSiteExtended {
     }
 
 
+    @Override
+    public void touchRecords(Collection<DRecord> records) throws DSiteException {
+        if (records.isEmpty()) {
+            return;
+        }
+        List<Long> ids = new ArrayList<>();
+        for (DRecord record : records) {
+            assert !record.isNew();
+            ids.add(record.getId());
+        }
+        // one drush call for all records, instead of one updateRecordField() call for each.
+        String phpCode = String.format("return db_update('computing_record')->fields(array('changed' => time()))" +
+                "->condition('id', array(%s), 'IN')->condition('status', 'RUN')->execute();", StringUtils.join(ids, ","));
+        String jsonResult = drush.computingEval(phpCode).trim();
+        logger.finest("Touched records: " + jsonResult);
+    }
+
+    @Override
+    public Map<Long, DRecord.Status> loadRecordStatuses(Collection<Long> ids) throws DSiteException {
+        Map<Long, DRecord.Status> statuses = new HashMap<>();
+        if (ids.isEmpty()) {
+            return statuses;
+        }
+        String phpCode = String.format("return db_select('computing_record', 'c')->fields('c', array('id', 'status'))" +
+                "->condition('id', array(%s), 'IN')->execute()->fetchAllKeyed();", StringUtils.join(ids, ","));
+        String jsonResult = drush.computingEval(phpCode).trim();
+        try {
+            Object jsonObj = DUtils.Json.getInstance().fromJson(jsonResult);
+            // PHP encodes an empty array as [] instead of {}.
+            if (jsonObj instanceof Bindings) {
+                for (Map.Entry<String, Object> entry : ((Bindings) jsonObj).entrySet()) {
+                    statuses.put(Long.valueOf(entry.getKey()), DRecord.Status.valueOf((String) entry.getValue()));
+                }
+            }
+        } catch (JsonParseException | IllegalArgumentException | ClassCastException e) {
+            throw new DSiteException("Cannot parse JSON result: " + jsonResult, e);
+        }
+        return statuses;
+    }
+
+    @Override
+    public int releaseStaleRecords(String appName, long lease) throws DSiteException {
+        String phpCode = String.format("return db_update('computing_record')->fields(array('status' => 'RDY', 'changed' => time()))" +
+                "->condition('application', %s)->condition('status', 'RUN')->condition('changed', time() - %d, '<')->execute();",
+                phpString(appName), lease);
+        String jsonResult = drush.computingEval(phpCode).trim();
+        try {
+            return DUtils.Json.getInstance().fromJson(jsonResult, Integer.class);
+        } catch (JsonSyntaxException e) {
+            throw new DSiteException("Cannot parse JSON result: " + jsonResult, e);
+        }
+    }
+
+    /**
+     * @return the string as a single-quoted PHP string literal.
+     */
+    private String phpString(String value) {
+        return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+
     @Override
     public boolean checkConnection() {
         try {
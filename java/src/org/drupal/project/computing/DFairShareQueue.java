@@ -0,0 +1,162 @@
+package org.drupal.project.computing;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * <p>Local dispatch queue that shares the agent's worker threads fairly among tenants, so that one Drupal user
+ * submitting thousands of records doesn't hold up everybody else. A tenant is a "uid", a "command", or a
+ * "uid:command" pair, depending on the "by" parameter. Within a tenant, records are dispatched by priority as in
+ * DRecordQueue.</p>
+ *
+ * <p>Tenants are served by stride scheduling, a form of weighted fair queuing: each dispatch advances the tenant's
+ * "pass" by 1/share, and the tenant with the smallest pass goes next. So a tenant with share 2 gets twice the
+ * dispatches of a tenant with share 1 while both have records waiting. A tenant that becomes active starts at the
+ * current virtual time, so it can't build up credit while idle. A tenant can also be capped to a number of records
+ * processed at the same time.</p>
+ *
+ * <p>Settings: "dcomp.fairshare.share" and "dcomp.fairshare.cap" are the defaults for all tenants (1 and 0 for no
+ * cap), and "dcomp.fairshare.share.[tenant]" and "dcomp.fairshare.cap.[tenant]" override them, e.g.
+ * "dcomp.fairshare.cap.12 = 2" for uid 12. Records without uid belong to tenant "0".</p>
+ */
+public class DFairShareQueue extends DRecordQueue {
+
+    protected Logger logger = DUtils.getInstance().getPackageLogger();
+
+    private final long aging;
+    private final boolean byUid;
+    private final boolean byCommand;
+    private final DConfig config;
+
+    /**
+     * Active tenants: tenant name => Tenant, in the order they become active. Idle tenants are removed.
+     */
+    private final Map<String, Tenant> tenants = new LinkedHashMap<>();
+
+    /**
+     * The pass of the last dispatched tenant.
+     */
+    private double virtualTime = 0;
+    private int size = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param aging milliseconds of waiting that offset one unit of weight within a tenant, or 0 to disable aging.
+     * @param by "uid", "command", or "uid,command".
+     * @param config the agent configuration to read shares and caps of tenants.
+     */
+    public DFairShareQueue(long aging, String by, DConfig config) {
+        super(aging);
+        this.aging = aging;
+        this.byUid = by.contains("uid");
+        this.byCommand = by.contains("command");
+        if (!byUid && !byCommand) {
+            throw new IllegalArgumentException("Invalid fair share setting: " + by);
+        }
+        this.config = config;
+    }
+
+    /**
+     * @param record a claimed record.
+     * @return the tenant name of the record.
+     */
+    protected String getTenantName(DRecord record) {
+        String uid = String.valueOf(record.getUid() == null ? 0 : record.getUid());
+        if (byUid && byCommand) {
+            return uid + ":" + record.getCommand();
+        }
+        return byUid ? uid : record.getCommand();
+    }
+
+
+    @Override
+    protected void enqueue(DRecord record) {
+        String name = getTenantName(record);
+        Tenant tenant = tenants.get(name);
+        if (tenant == null) {
+            tenant = new Tenant(name);
+            tenants.put(name, tenant);
+        }
+        if (tenant.isIdle()) {
+            tenant.pass = Math.max(tenant.pass, virtualTime);
+        }
+        tenant.queue.offer(record);
+        size++;
+    }
+
+    @Override
+    protected DRecord dequeue() {
+        Tenant next = null;
+        for (Tenant tenant : tenants.values()) {
+            if (!tenant.queue.isEmpty() && (tenant.cap <= 0 || tenant.running < tenant.cap)
+                    && (next == null || tenant.pass < next.pass)) {
+                next = tenant;
+            }
+        }
+        if (next == null) {
+            return null;
+        }
+        virtualTime = next.pass;
+        next.pass += 1.0 / next.share;
+        next.running++;
+        size--;
+        return next.queue.poll();
+    }
+
+    @Override
+    protected void release(DRecord record) {
+        Tenant tenant = tenants.get(getTenantName(record));
+        if (tenant != null) {
+            tenant.running--;
+        }
+        // forget idle tenants, which will restart from the virtual time when active again.
+        Iterator<Tenant> iterator = tenants.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isIdle()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @param name the tenant name.
+     * @return number of records of the tenant being processed.
+     */
+    public synchronized int getRunning(String name) {
+        Tenant tenant = tenants.get(name);
+        return tenant == null ? 0 : tenant.running;
+    }
+
+
+    private class Tenant {
+        final DRecordQueue queue = new DRecordQueue(aging);
+        final double share;
+        final int cap;
+        double pass = 0;
+        int running = 0;
+
+        Tenant(String name) {
+            double share = Double.parseDouble(config.getProperty("dcomp.fairshare.share." + name,
+                    config.getProperty("dcomp.fairshare.share", "1")));
+            if (share <= 0) {
+                logger.warning("Invalid share for tenant " + name + ": " + share);
+                share = 1;
+            }
+            this.share = share;
+            this.cap = Integer.parseInt(config.getProperty("dcomp.fairshare.cap." + name,
+                    config.getProperty("dcomp.fairshare.cap", "0")));
+        }
+
+        boolean isIdle() {
+            return running == 0 && queue.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.drupal.project.computing;
+
+import org.drupal.project.computing.exception.DSiteException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * <p>Saves processed records back to Drupal in batches with DSite.finishRecords(), e.g. with one drush call for
+ * several records (see DDrushSite). Records are batched as in a group commit: while one batch is being finished,
+ * records finished by other threads are queued and go together in the next batch. So there's no delay when records
+ * come one at a time, and batches grow only when finishing is the bottleneck.</p>
+ *
+ * <p>See DApplication.launchMultiThread() and DAsyncSite.finishRecord().</p>
+ */
+public class DFinishBatcher {
+
+    /**
+     * Maximum number of records finished in one call.
+     */
+    public static final int MAX_BATCH = 50;
+
+    protected Logger logger = DUtils.getInstance().getPackageLogger();
+
+    private final DSite site;
+    private final Executor executor;
+
+    private final List<DRecord> records = new ArrayList<>();
+    private final List<DFuture<Void>> futures = new ArrayList<>();
+    private boolean draining = false;
+
+    /**
+     * Constructor. Batches are finished in the thread calling finish() that finds no batch in progress.
+     *
+     * @param site the Drupal site.
+     */
+    public DFinishBatcher(DSite site) {
+        this(site, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param site the Drupal site.
+     * @param executor the executor to finish batches, or null to finish in the thread calling finish().
+     */
+    public DFinishBatcher(DSite site, Executor executor) {
+        assert site != null;
+        this.site = site;
+        this.executor = executor;
+    }
+
+
+    /**
+     * Queue the record to be finished with the next batch, and start finishing batches if no batch is in progress.
+     *
+     * @param record the processed record.
+     * @return the future that completes when the batch of the record is finished, or fails with DSiteException.
+     */
+    public DFuture<Void> finish(DRecord record) {
+        assert !record.isNew();
+        DFuture<Void> future = new DFuture<>();
+        boolean start;
+        synchronized (this) {
+            records.add(record);
+            futures.add(future);
+            start = !draining;
+            draining = true;
+        }
+        if (start) {
+            Runnable drain = new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            };
+            if (executor == null) {
+                drain.run();
+            } else {
+                try {
+                    executor.execute(drain);
+                } catch (RejectedExecutionException e) {
+                    // the executor is shutting down: finish in the current thread.
+                    drain.run();
+                }
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Finish batches until no record is queued.
+     */
+    private void drain() {
+        while (true) {
+            List<DRecord> batch;
+            List<DFuture<Void>> batchFutures;
+            synchronized (this) {
+                if (records.isEmpty()) {
+                    draining = false;
+                    return;
+                }
+                int size = Math.min(MAX_BATCH, records.size());
+                batch = new ArrayList<>(records.subList(0, size));
+                batchFutures = new ArrayList<>(futures.subList(0, size));
+                records.subList(0, size).clear();
+                futures.subList(0, size).clear();
+            }
+
+            Throwable error = null;
+            try {
+                if (batch.size() == 1) {
+                    site.finishRecord(batch.get(0));
+                } else {
+                    site.finishRecords(batch);
+                    DMetrics.getInstance().add("site.finish_batched", batch.size());
+                }
+            } catch (DSiteException | RuntimeException e) {
+                logger.severe("Cannot finish " + batch.size() + " records: " + e.getMessage());
+                error = e;
+            }
+            for (DFuture<Void> future : batchFutures) {
+                if (error == null) {
+                    future.complete(null);
+                } else {
+                    future.fail(error);
+                }
+            }
+        }
+    }
+}
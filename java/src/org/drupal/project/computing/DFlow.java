@@ -0,0 +1,57 @@
+package org.drupal.project.computing;
+
+/**
+ * <p>Interfaces of reactive streams with backpressure: a Publisher emits items to a Subscriber only as many as the
+ * Subscriber has requested through its Subscription. They follow java.util.concurrent.Flow of Java 9 (and the Reactive
+ * Streams specification), because the agent still runs on Java 7, and can be adapted to it one-to-one.</p>
+ *
+ * <p>See DRecordPublisher and DRecordFinisher.</p>
+ */
+public final class DFlow {
+
+    private DFlow() {}
+
+    /**
+     * Emits items to subscribers on demand.
+     */
+    public interface Publisher<T> {
+        /**
+         * Add the subscriber, and call its onSubscribe().
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Receives items from a publisher. Methods are called one at a time, never concurrently.
+     */
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    /**
+     * Link between a publisher and a subscriber.
+     */
+    public interface Subscription {
+        /**
+         * Request up to n more items. Could be called from onNext().
+         */
+        void request(long n);
+
+        /**
+         * Stop receiving items.
+         */
+        void cancel();
+    }
+
+    /**
+     * A stage that is both a subscriber and a publisher.
+     */
+    public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+    }
+}
@@ -0,0 +1,269 @@
+package org.drupal.project.computing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * <p>The result of an asynchronous operation, which can be completed by any thread, and notifies listeners when done.
+ * Operations can be chained with then() and thenAsync() without blocking a thread while waiting. This is a minimal
+ * version of Java 8's CompletableFuture, because the agent still runs on Java 7.</p>
+ *
+ * <p>Listeners and transforms run in the thread that completes the future, or in the calling thread if the future is
+ * already done, so they should be short and not block. Submit longer work to an Executor with submit().</p>
+ *
+ * @param <V> the result type.
+ */
+public class DFuture<V> implements Future<V> {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private List<Listener<? super V>> listeners = new ArrayList<>();
+    private V value;
+    private Throwable failure;
+    private boolean cancelled;
+
+
+    /**
+     * @return a future completed with the value.
+     */
+    public static <V> DFuture<V> completed(V value) {
+        DFuture<V> future = new DFuture<>();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * @return a future failed with the exception.
+     */
+    public static <V> DFuture<V> failed(Throwable failure) {
+        DFuture<V> future = new DFuture<>();
+        future.fail(failure);
+        return future;
+    }
+
+    /**
+     * Run the task in the executor.
+     *
+     * @param executor the executor to run the task.
+     * @param task the task.
+     * @return the future of the task's result.
+     */
+    public static <V> DFuture<V> submit(Executor executor, final Callable<V> task) {
+        final DFuture<V> future = new DFuture<>();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    try {
+                        future.complete(task.call());
+                    } catch (Throwable e) {
+                        future.fail(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.fail(e);
+        }
+        return future;
+    }
+
+
+    /**
+     * Complete the future with the value, unless it's already done.
+     *
+     * @param value the result.
+     * @return true if the future is completed by this call.
+     */
+    public boolean complete(V value) {
+        return finish(value, null, false);
+    }
+
+    /**
+     * Complete the future with the exception, unless it's already done.
+     *
+     * @param failure the exception.
+     * @return true if the future is completed by this call.
+     */
+    public boolean fail(Throwable failure) {
+        assert failure != null;
+        return finish(null, failure, false);
+    }
+
+    /**
+     * Cancel the future, unless it's already done. The operation itself is not stopped: the agent can't interrupt
+     * a thread it doesn't know about.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, new CancellationException(), true);
+    }
+
+    private boolean finish(V value, Throwable failure, boolean cancelled) {
+        List<Listener<? super V>> notify;
+        synchronized (this) {
+            if (listeners == null) {
+                return false;
+            }
+            this.value = value;
+            this.failure = failure;
+            this.cancelled = cancelled;
+            notify = listeners;
+            listeners = null;
+        }
+        done.countDown();
+        for (Listener<? super V> listener : notify) {
+            notifyListener(listener);
+        }
+        return true;
+    }
+
+    private void notifyListener(Listener<? super V> listener) {
+        if (failure == null) {
+            listener.onSuccess(value);
+        } else {
+            listener.onFailure(failure);
+        }
+    }
+
+
+    /**
+     * Call the listener when the future is done, or right away if it's already done.
+     *
+     * @param listener the listener.
+     * @return this future.
+     */
+    public DFuture<V> addListener(Listener<? super V> listener) {
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(listener);
+                return this;
+            }
+        }
+        notifyListener(listener);
+        return this;
+    }
+
+    /**
+     * Transform the result when the future completes successfully. Failures are passed on.
+     *
+     * @param transform the function to apply to the result.
+     * @return the future of the transformed result.
+     */
+    public <R> DFuture<R> then(final Transform<? super V, ? extends R> transform) {
+        final DFuture<R> next = new DFuture<>();
+        addListener(new Listener<V>() {
+            @Override
+            public void onSuccess(V result) {
+                try {
+                    next.complete(transform.apply(result));
+                } catch (Throwable e) {
+                    next.fail(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable failure) {
+                next.fail(failure);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Start another asynchronous operation with the result when the future completes successfully. Failures are passed
+     * on.
+     *
+     * @param transform the function that starts the operation with the result.
+     * @return the future of the second operation.
+     */
+    public <R> DFuture<R> thenAsync(final AsyncTransform<? super V, R> transform) {
+        final DFuture<R> next = new DFuture<>();
+        addListener(new Listener<V>() {
+            @Override
+            public void onSuccess(V result) {
+                try {
+                    transform.apply(result).addListener(new Listener<R>() {
+                        @Override
+                        public void onSuccess(R result) {
+                            next.complete(result);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable failure) {
+                            next.fail(failure);
+                        }
+                    });
+                } catch (Throwable e) {
+                    next.fail(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable failure) {
+                next.fail(failure);
+            }
+        });
+        return next;
+    }
+
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private synchronized V result() throws ExecutionException {
+        if (cancelled) {
+            throw (CancellationException) failure;
+        } else if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+
+
+    /**
+     * Called when a future is done.
+     */
+    public interface Listener<V> {
+        void onSuccess(V result);
+
+        void onFailure(Throwable failure);
+    }
+
+    /**
+     * Transforms the result of a future.
+     */
+    public interface Transform<V, R> {
+        R apply(V result) throws Exception;
+    }
+
+    /**
+     * Starts another asynchronous operation with the result of a future.
+     */
+    public interface AsyncTransform<V, R> {
+        DFuture<R> apply(V result) throws Exception;
+    }
+}
@@ -0,0 +1,172 @@
+package org.drupal.project.computing;
+
+import org.drupal.project.computing.exception.DSiteException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * <p>Keeps the leases of records being processed by the agent. A claimed record stays in "RUN" status until the agent
+ * finishes it, and if the agent dies, nobody would ever finish it. With heartbeats, the agent touches all its in-flight
+ * records periodically in one DSite.touchRecords() call, and the sweeper returns "RUN" records that are not touched
+ * within the lease back to "RDY" status (see DSite.releaseStaleRecords()). Heartbeats are on by default, but only
+ * DDrushSite can sweep: with Services, an agent with drush access needs to run the sweeper.</p>
+ *
+ * <p>The lease should be several times the heartbeat interval, and longer than the slowest drush call, so that records
+ * of live agents are never released and executed twice.</p>
+ */
+public class DHeartbeat {
+
+    protected Logger logger = DUtils.getInstance().getPackageLogger();
+
+    protected final DSite site;
+    protected final String appName;
+    private final long interval;
+    private final long lease;
+
+    /**
+     * Records being processed: record ID => DRecord.
+     */
+    private final ConcurrentMap<Long, DRecord> inflight = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor.
+     *
+     * @param site the Drupal site of the records.
+     * @param appName the Application name of the records.
+     * @param interval seconds between heartbeats, or 0 to disable heartbeats.
+     * @param lease seconds after which an untouched "RUN" record is released, or 0 to disable the sweeper.
+     */
+    public DHeartbeat(DSite site, String appName, long interval, long lease) {
+        assert site != null && appName != null && interval >= 0 && lease >= 0;
+        this.site = site;
+        this.appName = appName;
+        this.interval = interval;
+        this.lease = lease;
+        if (interval > 0 && lease > 0 && lease < 2 * interval) {
+            logger.warning("Lease (" + lease + "s) is too short for the heartbeat interval (" + interval + "s). Records might be executed twice.");
+        }
+    }
+
+    /**
+     * Factory method. Create the heartbeat service with "dcomp.lease.*" settings.
+     *
+     * @param site the Drupal site of the records.
+     * @param appName the Application name of the records.
+     * @param config the agent configuration.
+     * @return the DHeartbeat object, or null if both heartbeats and the sweeper are disabled.
+     */
+    public static DHeartbeat loadDefault(DSite site, String appName, DConfig config) {
+        long interval = Long.parseLong(config.getProperty("dcomp.lease.heartbeat", "60"));
+        long lease = Long.parseLong(config.getProperty("dcomp.lease.timeout", "0"));
+        return (interval > 0 || lease > 0) ? new DHeartbeat(site, appName, interval, lease) : null;
+    }
+
+
+    /**
+     * Start sending heartbeats and sweeping stale records in a background thread. The first sweep runs right away.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(DUtils.getInstance().getDaemonThreadFactory("dcomp-heartbeat"));
+        if (interval > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    beat();
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+        if (lease > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sweep();
+                }
+            }, 0, lease, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stop the background thread. Records still registered are not touched anymore.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+
+    /**
+     * Start renewing the lease of the record.
+     *
+     * @param record a claimed record.
+     */
+    public void register(DRecord record) {
+        assert !record.isNew();
+        inflight.put(record.getId(), record);
+    }
+
+    /**
+     * Stop renewing the lease of the record, usually right before it's finished.
+     *
+     * @param record a registered record.
+     */
+    public void unregister(DRecord record) {
+        inflight.remove(record.getId());
+    }
+
+    /**
+     * @return a snapshot of the records being processed.
+     */
+    public Collection<DRecord> getInflight() {
+        return new ArrayList<>(inflight.values());
+    }
+
+
+    /**
+     * Touch all in-flight records in one call. Errors are logged, and the next heartbeat will try again.
+     */
+    public void beat() {
+        List<DRecord> records = new ArrayList<>(inflight.values());
+        if (records.isEmpty()) {
+            return;
+        }
+        try {
+            site.touchRecords(records);
+            DMetrics.getInstance().add("lease.touched", records.size());
+            logger.finest("Renewed lease of " + records.size() + " records.");
+        } catch (DSiteException | RuntimeException e) {
+            logger.warning("Cannot renew lease of running records: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Return stale records back to the queue. Errors are logged, and the next sweep will try again.
+     */
+    public void sweep() {
+        try {
+            int released = site.releaseStaleRecords(appName, lease);
+            if (released > 0) {
+                DMetrics.getInstance().add("lease.released", released);
+                logger.warning("Released " + released + " records with expired lease back to the queue.");
+            }
+        } catch (DSiteException e) {
+            logger.warning("Cannot release stale records: " + e.getMessage());
+        } catch (RuntimeException e) {
+            logger.warning("Cannot release stale records: " + e);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package org.drupal.project.computing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * <p>Hedges idempotent read requests to cut their latency tail: if a request hasn't responded after the p95 latency of
+ * recent requests, a duplicate is sent, the first response wins, and the other request is aborted. See
+ * DRestfulJsonServices.hedgedRequest().</p>
+ *
+ * <p>Hedges are capped by a token bucket: each request earns "budget" tokens (e.g. 0.05 for at most 5% more requests)
+ * up to a small burst, and each hedge spends one token. So when the site is slow as a whole, hedges stop after the
+ * burst instead of doubling the load. No hedge is sent until enough latencies are observed to estimate p95.</p>
+ */
+public class DHedger {
+
+    /**
+     * Number of recent latencies to estimate p95.
+     */
+    public static final int WINDOW = 256;
+
+    /**
+     * Number of latencies observed before hedging starts.
+     */
+    public static final int MIN_SAMPLES = 20;
+
+    /**
+     * Maximum number of hedges in a row.
+     */
+    public static final double BURST = 5;
+
+    protected Logger logger = DUtils.getInstance().getPackageLogger();
+
+    private final ExecutorService executor;
+    private final long minDelay;
+    private final double budget;
+
+    private final long[] samples = new long[WINDOW];
+    private int sampleCount = 0;
+    private long p95 = 0;
+    private double tokens = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param executor runs the requests, so that the calling thread could wait for either of them.
+     * @param minDelay minimum milliseconds to wait before hedging, even if p95 is lower.
+     * @param budget maximum fraction of requests that get a hedge, e.g. 0.05.
+     */
+    public DHedger(ExecutorService executor, long minDelay, double budget) {
+        assert executor != null && minDelay >= 0 && budget > 0 && budget <= 1;
+        this.executor = executor;
+        this.minDelay = minDelay;
+        this.budget = budget;
+    }
+
+    /**
+     * Factory method. Hedging is enabled with "dcomp.services.hedge_percent" greater than 0. Requests run in virtual
+     * threads if "dcomp.processing.executor" is "virtual" and the JVM supports it.
+     *
+     * @param config the agent configuration.
+     * @return the DHedger object, or null if hedging is disabled.
+     */
+    public static DHedger loadDefault(DConfig config) {
+        double percent = Double.parseDouble(config.getProperty("dcomp.services.hedge_percent", "0").trim());
+        if (percent <= 0) {
+            return null;
+        }
+        long minDelay = Long.parseLong(config.getProperty("dcomp.services.hedge_delay", "50").trim());
+        ExecutorService executor = null;
+        if ("virtual".equals(config.getProperty("dcomp.processing.executor", "platform").trim())) {
+            executor = DUtils.getInstance().newVirtualThreadExecutor("dcomp-hedge");
+        }
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(DUtils.getInstance().getDaemonThreadFactory("dcomp-hedge"));
+        }
+        return new DHedger(executor, minDelay, Math.min(percent, 100) / 100);
+    }
+
+
+    /**
+     * Run the request, and a hedge of it if it's slow.
+     *
+     * @param request the idempotent request.
+     * @return the first successful response.
+     * @throws Exception the failure of the request, or of the hedge if both failed.
+     */
+    public <V> V call(final Request<V> request) throws Exception {
+        final DFuture<V> result = new DFuture<>();
+        final List<Attempt> attempts = new ArrayList<>(2);
+        final AtomicInteger pending = new AtomicInteger(1);
+        final long start = System.nanoTime();
+
+        final Attempt primary = new Attempt();
+        attempts.add(primary);
+        submit(request, primary, result, attempts, pending, start);
+
+        try {
+            long delay = acquire();
+            if (delay >= 0 && !await(result, delay) && spend()) {
+                Attempt hedge = new Attempt();
+                synchronized (attempts) {
+                    attempts.add(hedge);
+                }
+                // count the hedge first, so that the request failing now doesn't fail the result.
+                pending.incrementAndGet();
+                // the request might just have responded, and the hedge is not aborted then.
+                if (result.isDone()) {
+                    pending.decrementAndGet();
+                } else {
+                    DMetrics.getInstance().increment("services.hedged");
+                    submit(request, hedge, result, attempts, pending, 0).addListener(new DFuture.Listener<V>() {
+                        @Override
+                        public void onSuccess(V value) {
+                            if (primary.isAborted()) {
+                                DMetrics.getInstance().increment("services.hedge_won");
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable failure) {
+                            // nothing to do.
+                        }
+                    });
+                }
+            }
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            abortAll(attempts, null);
+            throw e;
+        }
+    }
+
+    /**
+     * Run an attempt of the request in the executor.
+     *
+     * @param start System.nanoTime() when the request started, to observe the latency of the first attempt, or 0.
+     */
+    private <V> DFuture<V> submit(final Request<V> request, final Attempt attempt, final DFuture<V> result, final List<Attempt> attempts, final AtomicInteger pending, final long start) {
+        DFuture<V> future = DFuture.submit(executor, new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                try {
+                    V value = request.call(attempt);
+                    if (start != 0) {
+                        addSample(System.nanoTime() - start);
+                    }
+                    return value;
+                } catch (Exception e) {
+                    if (start != 0 && attempt.isAborted()) {
+                        // lost to the hedge: the request took at least this long.
+                        addSample(System.nanoTime() - start);
+                    }
+                    throw e;
+                }
+            }
+        });
+        future.addListener(new DFuture.Listener<V>() {
+            @Override
+            public void onSuccess(V value) {
+                if (result.complete(value)) {
+                    abortAll(attempts, attempt);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable failure) {
+                // fail only if no other attempt could still succeed.
+                if (pending.decrementAndGet() == 0) {
+                    result.fail(failure);
+                }
+            }
+        });
+        return future;
+    }
+
+    private void abortAll(List<Attempt> attempts, Attempt winner) {
+        List<Attempt> copy;
+        synchronized (attempts) {
+            copy = new ArrayList<>(attempts);
+        }
+        for (Attempt attempt : copy) {
+            if (attempt != winner) {
+                attempt.abort();
+            }
+        }
+    }
+
+    private <V> boolean await(DFuture<V> result, long delay) throws InterruptedException {
+        try {
+            result.get(delay, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            // done.
+        }
+        return true;
+    }
+
+
+    /**
+     * Earn tokens for a request.
+     *
+     * @return milliseconds to wait before hedging, or -1 if there are not enough latencies observed.
+     */
+    private synchronized long acquire() {
+        tokens = Math.min(BURST, tokens + budget);
+        return getDelay();
+    }
+
+    private synchronized boolean spend() {
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void addSample(long nanos) {
+        samples[sampleCount % WINDOW] = nanos / 1000000;
+        sampleCount++;
+        // re-estimate p95 every few samples.
+        if (sampleCount >= MIN_SAMPLES && (sampleCount % 16 == 0 || sampleCount == MIN_SAMPLES)) {
+            long[] sorted = Arrays.copyOf(samples, Math.min(sampleCount, WINDOW));
+            Arrays.sort(sorted);
+            p95 = sorted[(int) Math.ceil(sorted.length * 0.95) - 1];
+        }
+    }
+
+    /**
+     * @return milliseconds to wait before hedging, or -1 if there are not enough latencies observed.
+     */
+    public synchronized long getDelay() {
+        return sampleCount < MIN_SAMPLES ? -1 : Math.max(minDelay, p95);
+    }
+
+    /**
+     * Stop the executor after outstanding requests finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+
+    /**
+     * An idempotent request, which could run more than once at the same time.
+     */
+    public interface Request<V> {
+        /**
+         * Run the request. Register with Attempt.onAbort() how to stop it when another attempt wins.
+         */
+        V call(Attempt attempt) throws Exception;
+    }
+
+    /**
+     * One run of a request.
+     */
+    public static class Attempt {
+        private final List<Runnable> actions = new ArrayList<>(1);
+        private boolean aborted = false;
+
+        /**
+         * Run the action when the attempt is aborted, or right away if it's aborted already.
+         */
+        public void onAbort(Runnable action) {
+            synchronized (this) {
+                if (!aborted) {
+                    actions.add(action);
+                    return;
+                }
+            }
+            action.run();
+        }
+
+        public synchronized boolean isAborted() {
+            return aborted;
+        }
+
+        void abort() {
+            List<Runnable> run;
+            synchronized (this) {
+                if (aborted) {
+                    return;
+                }
+                aborted = true;
+                run = new ArrayList<>(actions);
+                actions.clear();
+            }
+            for (Runnable action : run) {
+                action.run();
+            }
+        }
+    }
+}
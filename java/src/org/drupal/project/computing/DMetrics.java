@@ -0,0 +1,91 @@
+package org.drupal.project.computing;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Singleton of simple named counters for the agent, e.g. "cache.hit". Counters are created on first use, and are safe
+ * to update from multiple threads. Use snapshot() to report them; they are logged when the application stops.
+ */
+public class DMetrics {
+
+    ////// Singleton template ////////
+
+    private static DMetrics ourInstance = new DMetrics();
+    public static DMetrics getInstance() {
+        return ourInstance;
+    }
+    private DMetrics() {}
+
+    ///////////////////  code begins /////////////////
+
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    private AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Add 1 to the counter.
+     *
+     * @param name the counter name.
+     */
+    public void increment(String name) {
+        counter(name).incrementAndGet();
+    }
+
+    /**
+     * Add a value to the counter, e.g. bytes or milliseconds.
+     *
+     * @param name the counter name.
+     * @param delta the value to add.
+     */
+    public void add(String name, long delta) {
+        counter(name).addAndGet(delta);
+    }
+
+    /**
+     * @param name the counter name.
+     * @return the current value of the counter, or 0 if never updated.
+     */
+    public long get(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Log all counters in one line, e.g. when the agent stops. See DApplication.launch().
+     *
+     * @param logger the logger to write to.
+     */
+    public void log(Logger logger) {
+        SortedMap<String, Long> snapshot = snapshot();
+        if (!snapshot.isEmpty()) {
+            logger.info("Metrics: " + snapshot);
+        }
+    }
+
+    /**
+     * @return all counters sorted by name.
+     */
+    public SortedMap<String, Long> snapshot() {
+        SortedMap<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+}
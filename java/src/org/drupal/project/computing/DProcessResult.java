@@ -0,0 +1,112 @@
+package org.drupal.project.computing;
+
+import org.drupal.project.computing.exception.DSystemExecutionException;
+
+import java.nio.charset.Charset;
+
+/**
+ * The results of a finished shell process: STDOUT, STDERR and exit value. See DUtils.executeShellAsync().
+ */
+public class DProcessResult {
+
+    private final String commandLine;
+    private final byte[] stdout;
+    private final byte[] stderr;
+    private final int exitValue;
+    private final boolean timedOut;
+    private final long runtime;
+    private final Object parsed;
+
+    /**
+     * Constructor.
+     *
+     * @param commandLine the command line, for error messages.
+     * @param stdout bytes from STDOUT.
+     * @param stderr bytes from STDERR.
+     * @param exitValue the exit value.
+     * @param timedOut whether the process was killed for running over "dcomp.exec.timeout".
+     * @param runtime milliseconds from start to exit.
+     */
+    public DProcessResult(String commandLine, byte[] stdout, byte[] stderr, int exitValue, boolean timedOut, long runtime) {
+        this(commandLine, stdout, stderr, exitValue, timedOut, runtime, stdout);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param commandLine the command line, for error messages.
+     * @param stdout bytes from STDOUT, or empty if STDOUT was parsed while reading.
+     * @param stderr bytes from STDERR.
+     * @param exitValue the exit value.
+     * @param timedOut whether the process was killed for running over "dcomp.exec.timeout".
+     * @param runtime milliseconds from start to exit.
+     * @param parsed the result of DUtils.StreamParser on STDOUT.
+     */
+    public DProcessResult(String commandLine, byte[] stdout, byte[] stderr, int exitValue, boolean timedOut, long runtime, Object parsed) {
+        this.commandLine = commandLine;
+        this.stdout = stdout;
+        this.stderr = stderr;
+        this.exitValue = exitValue;
+        this.timedOut = timedOut;
+        this.runtime = runtime;
+        this.parsed = parsed;
+    }
+
+    public byte[] getStdout() {
+        return stdout;
+    }
+
+    public String getStdout(Charset charset) {
+        return new String(stdout, charset);
+    }
+
+    public byte[] getStderr() {
+        return stderr;
+    }
+
+    public String getStderr(Charset charset) {
+        return new String(stderr, charset);
+    }
+
+    public int getExitValue() {
+        return exitValue;
+    }
+
+    /**
+     * @return the result of DUtils.StreamParser on STDOUT, which is the STDOUT bytes by default.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getParsed() {
+        return (T) parsed;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    public long getRuntime() {
+        return runtime;
+    }
+
+    /**
+     * @return true if the process exited with value 0 before timeout.
+     */
+    public boolean isSuccessful() {
+        return exitValue == 0 && !timedOut;
+    }
+
+    /**
+     * Throw an exception with this result unless the process is successful.
+     *
+     * @return this object.
+     * @throws DSystemExecutionException
+     */
+    public DProcessResult check() throws DSystemExecutionException {
+        if (timedOut) {
+            throw new DSystemExecutionException("Process timed out after " + runtime + "ms: " + commandLine, null, this);
+        } else if (exitValue != 0) {
+            throw new DSystemExecutionException("Process exited with an error: " + exitValue + ". Command: " + commandLine, null, this);
+        }
+        return this;
+    }
+}
@@ -0,0 +1,174 @@
+package org.drupal.project.computing;
+
+import org.drupal.project.computing.exception.DSiteException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * <p>Subscriber that saves processed records back to Drupal with DSite.finishRecord(), the end of a reactive pipeline
+ * starting with DRecordPublisher. It requests "inflight" records at first, and one more after each record is finished,
+ * so at most "inflight" records are claimed but not finished at any time.</p>
+ *
+ * <p>Records are finished in the thread calling onNext(), or in the executor if one is given, so that several records
+ * are processed at the same time. Sub-classes could override finish() to process the record before saving it, see
+ * DApplication.launchSingleThread(). If finishing a record fails, the subscription is cancelled and the error is
+ * kept in getError().</p>
+ */
+public class DRecordFinisher implements DFlow.Subscriber<DRecord> {
+
+    protected Logger logger = DUtils.getInstance().getPackageLogger();
+
+    protected final DSite site;
+    private final int inflight;
+    private final Executor executor;
+
+    private volatile DFlow.Subscription subscription;
+    private volatile Throwable error;
+    private final AtomicLong finished = new AtomicLong();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private final AtomicBoolean upstreamDone = new AtomicBoolean(false);
+
+    /**
+     * Records being finished, plus 1 until the upstream publisher completes or fails.
+     */
+    private final AtomicInteger pending = new AtomicInteger(1);
+
+    /**
+     * Constructor. Finish records in the thread calling onNext().
+     *
+     * @param site the Drupal site.
+     * @param inflight maximum number of records claimed but not finished.
+     */
+    public DRecordFinisher(DSite site, int inflight) {
+        this(site, inflight, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param site the Drupal site.
+     * @param inflight maximum number of records claimed but not finished.
+     * @param executor the executor to finish records, or null to finish in the thread calling onNext().
+     */
+    public DRecordFinisher(DSite site, int inflight, Executor executor) {
+        assert site != null && inflight > 0;
+        this.site = site;
+        this.inflight = inflight;
+        this.executor = executor;
+    }
+
+    /**
+     * Save the record to Drupal. Sub-classes could process the record first.
+     *
+     * @param record the record from the publisher.
+     * @throws DSiteException
+     */
+    protected void finish(DRecord record) throws DSiteException {
+        site.finishRecord(record);
+    }
+
+
+    @Override
+    public void onSubscribe(DFlow.Subscription subscription) {
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(inflight);
+    }
+
+    @Override
+    public void onNext(final DRecord record) {
+        pending.incrementAndGet();
+        if (executor == null) {
+            handle(record);
+        } else {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handle(record);
+                }
+            });
+        }
+    }
+
+    private void handle(DRecord record) {
+        try {
+            if (error == null) {
+                finish(record);
+                finished.incrementAndGet();
+            }
+        } catch (DSiteException | RuntimeException e) {
+            logger.severe("Cannot finish record " + record.getId() + ": " + e.getMessage());
+            error = e;
+            subscription.cancel();
+            // a cancelled publisher doesn't signal completion.
+            releaseUpstream();
+        } finally {
+            release();
+        }
+        if (error == null) {
+            subscription.request(1);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+        releaseUpstream();
+    }
+
+    @Override
+    public void onComplete() {
+        releaseUpstream();
+    }
+
+    private void releaseUpstream() {
+        if (upstreamDone.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+    private void release() {
+        if (pending.decrementAndGet() == 0) {
+            terminated.countDown();
+        }
+    }
+
+
+    /**
+     * Wait until the publisher completes or fails, and all records received are finished.
+     *
+     * @throws InterruptedException
+     */
+    public void await() throws InterruptedException {
+        terminated.await();
+    }
+
+    /**
+     * @return true if the publisher completed or failed, and all records received are finished.
+     */
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    /**
+     * @return number of records finished.
+     */
+    public long getFinished() {
+        return finished.get();
+    }
+
+    /**
+     * @return the error from the publisher or from finishing a record, or null.
+     */
+    public Throwable getError() {
+        return error;
+    }
+}
@@ -0,0 +1,145 @@
+package org.drupal.project.computing;
+
+import org.drupal.project.computing.exception.DNotFoundException;
+import org.drupal.project.computing.exception.DSiteException;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * <p>Publishes the records of an application in Drupal as a reactive stream: records are claimed with
+ * DSite.claimRecord() only when a subscriber requests them, so the number of claimed but unprocessed records is bounded
+ * by the subscriber's demand. The stream completes when no record is READY or the limit is reached, and fails with
+ * DSiteException if claiming fails. Send processed records to a DRecordFinisher to save them in Drupal.</p>
+ *
+ * <p>Records are claimed in the thread calling Subscription.request(), or in the executor if one is given. Requests
+ * made from onNext() don't claim recursively: they are served by the same loop.</p>
+ */
+public class DRecordPublisher implements DFlow.Publisher<DRecord> {
+
+    protected Logger logger = DUtils.getInstance().getPackageLogger();
+
+    private final DSite site;
+    private final String appName;
+    private final long limit;
+    private final Executor executor;
+    private final AtomicLong claimed = new AtomicLong();
+
+    /**
+     * Constructor. Claim records in the thread calling Subscription.request().
+     *
+     * @param site the Drupal site.
+     * @param appName the application name.
+     * @param limit maximum number of records to claim for all subscribers.
+     */
+    public DRecordPublisher(DSite site, String appName, long limit) {
+        this(site, appName, limit, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param site the Drupal site.
+     * @param appName the application name.
+     * @param limit maximum number of records to claim for all subscribers.
+     * @param executor the executor to claim records, or null to claim in the thread calling Subscription.request().
+     */
+    public DRecordPublisher(DSite site, String appName, long limit, Executor executor) {
+        assert site != null && appName != null && limit >= 0;
+        this.site = site;
+        this.appName = appName;
+        this.limit = limit;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(DFlow.Subscriber<? super DRecord> subscriber) {
+        assert subscriber != null;
+        ClaimSubscription subscription = new ClaimSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * @return number of records claimed so far.
+     */
+    public long getClaimed() {
+        return claimed.get();
+    }
+
+
+    private class ClaimSubscription implements DFlow.Subscription, Runnable {
+        private final DFlow.Subscriber<? super DRecord> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean done = false;
+        private volatile Throwable invalid;
+
+        ClaimSubscription(DFlow.Subscriber<? super DRecord> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalid = new IllegalArgumentException("Subscription requested non-positive number of records: " + n);
+            } else {
+                long current, next;
+                do {
+                    current = demand.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!demand.compareAndSet(current, next));
+            }
+            // only one thread runs the claim loop; others just leave a note to run it again.
+            if (pending.getAndIncrement() == 0) {
+                if (executor == null) {
+                    run();
+                } else {
+                    executor.execute(this);
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            done = true;
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                while (!done && (invalid != null || demand.get() > 0)) {
+                    if (invalid != null) {
+                        done = true;
+                        subscriber.onError(invalid);
+                    } else if (claimed.incrementAndGet() > limit) {
+                        claimed.decrementAndGet();
+                        done = true;
+                        subscriber.onComplete();
+                    } else {
+                        DRecord record;
+                        try {
+                            record = site.claimRecord(appName);
+                        } catch (DNotFoundException e) {
+                            claimed.decrementAndGet();
+                            logger.info("No more record with READY status for application '" + appName + "'.");
+                            done = true;
+                            subscriber.onComplete();
+                            break;
+                        } catch (DSiteException e) {
+                            claimed.decrementAndGet();
+                            done = true;
+                            subscriber.onError(e);
+                            break;
+                        }
+                        demand.decrementAndGet();
+                        subscriber.onNext(record);
+                    }
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.drupal.project.computing;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>The agent's local buffer of claimed records waiting for a worker thread (see DApplication.launchMultiThread()).
+ * Records are dispatched by priority instead of the order they were claimed: lower "weight" first (as in Drupal), then
+ * earlier "created". So a user-facing record claimed after a batch of backfill records still runs first.</p>
+ *
+ * <p>To prevent starvation, records age: every "aging" milliseconds in the buffer counts as one less weight. This is
+ * done by ranking records with weight * aging + the time they were buffered, which keeps the order stable in the
+ * heap. With aging 0, records are ordered by weight only.</p>
+ *
+ * <p>The class is thread-safe. Sub-classes could override enqueue(), dequeue() and release() for other dispatch
+ * policies, see DFairShareQueue.</p>
+ */
+public class DRecordQueue {
+
+    private final long aging;
+    private final PriorityQueue<Item> queue = new PriorityQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param aging milliseconds of waiting that offset one unit of weight, or 0 to disable aging.
+     */
+    public DRecordQueue(long aging) {
+        assert aging >= 0;
+        this.aging = aging;
+    }
+
+    /**
+     * Factory method. Create the queue with "dcomp.processing.aging" setting, or a DFairShareQueue if
+     * "dcomp.fairshare.by" is set.
+     *
+     * @param config the agent configuration.
+     * @return the DRecordQueue object.
+     */
+    public static DRecordQueue loadDefault(DConfig config) {
+        long aging = Long.parseLong(config.getProperty("dcomp.processing.aging", "60"));
+        String fairShareBy = config.getProperty("dcomp.fairshare.by", "");
+        if (StringUtils.isNotBlank(fairShareBy)) {
+            return new DFairShareQueue(aging * 1000, fairShareBy, config);
+        }
+        return new DRecordQueue(aging * 1000);
+    }
+
+
+    /**
+     * Add a claimed record to the queue.
+     *
+     * @param record the claimed record.
+     */
+    public synchronized void offer(DRecord record) {
+        assert record != null;
+        enqueue(record);
+        notifyAll();
+    }
+
+    /**
+     * Retrieve and remove the record to dispatch next. Call done() after processing it.
+     *
+     * @return the record with the highest priority, or null if no record can be dispatched.
+     */
+    public synchronized DRecord poll() {
+        return dequeue();
+    }
+
+    /**
+     * Retrieve and remove the record to dispatch next, waiting if no record can be dispatched. Call done() after
+     * processing it.
+     *
+     * @return the record with the highest priority.
+     * @throws InterruptedException
+     */
+    public synchronized DRecord take() throws InterruptedException {
+        DRecord record;
+        while ((record = dequeue()) == null) {
+            wait();
+        }
+        return record;
+    }
+
+    /**
+     * Notify the queue that a record from poll() or take() is processed.
+     *
+     * @param record the processed record.
+     */
+    public synchronized void done(DRecord record) {
+        release(record);
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+
+    //////////////////////// methods for sub-classes, called with the lock held ////////////////////////
+
+    protected void enqueue(DRecord record) {
+        queue.offer(new Item(record, rank(record, System.currentTimeMillis()), sequence.getAndIncrement()));
+    }
+
+    protected DRecord dequeue() {
+        Item item = queue.poll();
+        return item == null ? null : item.record;
+    }
+
+    protected void release(DRecord record) {
+        // nothing to do by default.
+    }
+
+    /**
+     * Compute the rank of the record. Smaller ranks are dispatched first.
+     *
+     * @param record the claimed record.
+     * @param now the time the record is buffered in milliseconds.
+     * @return the rank.
+     */
+    protected long rank(DRecord record, long now) {
+        long weight = record.getWeight() == null ? 0 : record.getWeight();
+        return aging > 0 ? weight * aging + now : weight;
+    }
+
+
+    private static class Item implements Comparable<Item> {
+        final DRecord record;
+        final long rank;
+        final long created;
+        final long sequence;
+
+        Item(DRecord record, long rank, long sequence) {
+            this.record = record;
+            this.rank = rank;
+            this.created = record.getCreated() == null ? Long.MAX_VALUE : record.getCreated();
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Item other) {
+            if (rank != other.rank) {
+                return rank < other.rank ? -1 : 1;
+            }
+            if (created != other.created) {
+                return created < other.created ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -1,23 +1,31 @@
 package org.drupal.project.computing;
 
-import com.google.gson.JsonParseException;
 import org.apache.commons.lang3.StringUtils;
 import org.drupal.project.computing.exception.DConfigException;
 import org.drupal.project.computing.exception.DSiteException;
 
 import javax.script.Bindings;
 import javax.script.SimpleBindings;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * This class allows accessing Drupal using the services.module. It requires Drupal REST Sever module, and both HTTP
  * Request and HTTP Response will use Content-Type = application/json. See Drupal Computing documentation about how to
  * configure at the Drupal end.
+ *
+ * The class is thread-safe, and the session (cookies and CSRF token) belongs to the object, so worker threads could
+ * share one logged in object. After userLogin(), a request rejected because the session expired logs in again and
+ * retries once (see isSessionRejected()). Only one thread logs in; the others wait for the new session instead of
+ * logging in too. A 403 for a permission the user doesn't have fails right away.
  */
 public class DRestfulJsonServices {
 
@@ -27,9 +35,30 @@ public class DRestfulJsonServices {
     protected String userPass;
     protected String httpUserAgent = "DrupalComputingAgent";
     protected String httpContentType = "application/json";
+    protected int compressThreshold = 0;
 
     protected URL servicesEndpoint;
-    protected String servicesSessionToken;
+    protected volatile String servicesSessionToken;
+
+    /**
+     * Session cookies of this object, instead of the JVM-wide CookieHandler.
+     */
+    protected final CookieManager cookieManager = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+
+    /**
+     * Lock for logging in and out. sessionVersion increases with each login, so that threads failing with the same
+     * expired session log in only once.
+     */
+    private final Object loginLock = new Object();
+    private volatile int sessionVersion = 0;
+    private volatile boolean autoLogin = false;
+
+    /**
+     * Hedges idempotent reads, or null if hedging is disabled. currentAttempt is the hedged attempt run by the thread,
+     * whose HTTP connection is closed if another attempt wins.
+     */
+    protected DHedger hedger;
+    private final ThreadLocal<DHedger.Attempt> currentAttempt = new ThreadLocal<>();
 
     protected Logger logger = DUtils.getInstance().getPackageLogger();
 
@@ -48,10 +77,6 @@ public class DRestfulJsonServices {
             e.printStackTrace();
             throw new IllegalArgumentException("Malformed URL: " + baseUrl + " and endpoint: " + endpoint, e);
         }
-
-        // set cookie support.
-        // this is required to maintain sessions among different calls.
-        CookieHandler.setDefault(new CookieManager(null, CookiePolicy.ACCEPT_ALL));
     }
 
     /**
@@ -68,7 +93,10 @@ public class DRestfulJsonServices {
         String userPass = config.getProperty("dcomp.services.user.pass", "");
 
         if (StringUtils.isNotBlank(baseUrl) && StringUtils.isNotBlank(endpoint) && StringUtils.isNotBlank(userName) && StringUtils.isNotBlank(userPass)) {
-            return new DRestfulJsonServices(baseUrl, endpoint, userName, userPass);
+            DRestfulJsonServices services = new DRestfulJsonServices(baseUrl, endpoint, userName, userPass);
+            services.setCompressThreshold(Integer.parseInt(config.getProperty("dcomp.services.compress_threshold", "0").trim()));
+            services.setHedger(DHedger.loadDefault(config));
+            return services;
         } else {
             throw new DConfigException("Access Drupal Services configuration error.");
         }
@@ -88,14 +116,71 @@ public class DRestfulJsonServices {
      * @see org.drupal.project.computing.DUtils.Json
      */
     public Object request(String directive, Bindings params, String method) throws IllegalArgumentException, DSiteException {
-        String jsonResponse = null;
+        int version = sessionVersion;
+        try {
+            return doRequest(directive, params, method);
+        } catch (DSiteException e) {
+            if (autoLogin && isSessionRejected(e)) {
+                relogin(version);
+                if (sessionVersion == version) {
+                    // no new session to retry with.
+                    throw e;
+                }
+                return doRequest(directive, params, method);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Services responds 401 to a rejected CSRF token, and 403 "Access denied for user anonymous" to an expired session,
+     * which Drupal treats as anonymous. Other 403 responses deny a permission of the logged in user, and logging in
+     * again wouldn't help.
+     *
+     * @param e the failure of a request.
+     * @return true if the request failed because the session or the CSRF token is no longer valid.
+     */
+    protected boolean isSessionRejected(DSiteException e) {
+        if (e.getErrorCode() == HttpURLConnection.HTTP_UNAUTHORIZED) {
+            return true;
+        }
+        if (e.getErrorCode() == HttpURLConnection.HTTP_FORBIDDEN && e.getMessage() != null) {
+            String message = e.getMessage().toLowerCase();
+            return message.contains("user anonymous") || message.contains("csrf validation failed");
+        }
+        return false;
+    }
+
+    /**
+     * Login again if the session hasn't changed since the failed request started. Other threads wait here until the
+     * new session is ready.
+     *
+     * @param version sessionVersion when the failed request started.
+     * @throws DSiteException
+     */
+    protected void relogin(int version) throws DSiteException {
+        synchronized (loginLock) {
+            if (version != sessionVersion) {
+                // another thread has logged in already.
+                return;
+            }
+            logger.info("Services session expired. Login again with user: " + userName);
+            DMetrics.getInstance().increment("services.relogin");
+            servicesSessionToken = null;
+            cookieManager.getCookieStore().removeAll();
+            userLogin();
+        }
+    }
+
+    private Object doRequest(String directive, Bindings params, String method) throws IllegalArgumentException, DSiteException {
+        Object jsonResponse = null;
         method = method.toUpperCase();
 
         switch (method) {
             case "POST": {
                 // construct request url
                 String data = (params == null || params.isEmpty()) ? null : DUtils.Json.getInstance().toJson(params);
-                jsonResponse = httpRequest(servicesEndpoint.toString() + "/" + directive, data, "POST");
+                jsonResponse = httpRequest(servicesEndpoint.toString() + "/" + directive, data, "POST", jsonParser);
                 break;
             }
             case "GET": {
@@ -112,30 +197,19 @@ public class DRestfulJsonServices {
                     }
                     requestUrl.append('?').append(DUtils.getInstance().encodeURLQueryParameters(urlParams));
                 }
-                jsonResponse = httpRequest(requestUrl.toString(), null, "GET");
+                jsonResponse = httpRequest(requestUrl.toString(), null, "GET", jsonParser);
                 break;
             }
             case "PUT": {
                 String data = (params == null || params.isEmpty()) ? null : DUtils.Json.getInstance().toJson(params);
-                jsonResponse = httpRequest(servicesEndpoint.toString() + "/" + directive, data, "PUT");
+                jsonResponse = httpRequest(servicesEndpoint.toString() + "/" + directive, data, "PUT", jsonParser);
                 break;
             }
             default:
                 // not supported.
                 throw new IllegalArgumentException("Request method is not supported: " + method);
         }
-
-        // parse json
-        try {
-            if (StringUtils.isNotBlank(jsonResponse)) {
-                return DUtils.Json.getInstance().fromJson(jsonResponse);
-            } else {
-                return null;
-            }
-        } catch (JsonParseException e) {
-            e.printStackTrace();
-            throw new DSiteException("Cannot parse JSON result: " + jsonResponse, e);
-        }
+        return jsonResponse;
     }
 
 
@@ -151,6 +225,51 @@ public class DRestfulJsonServices {
     }
 
 
+    /**
+     * Make an idempotent read request, which is hedged with a duplicate request if it's slower than usual and a DHedger
+     * is set. Don't use it for requests that change data on the Drupal end.
+     *
+     * @see #request(String, javax.script.Bindings, String, Class)
+     * @see DHedger
+     */
+    public <T> T hedgedRequest(final String directive, final Bindings params, final String method, final Class<T> classOfT) throws IllegalArgumentException, DSiteException {
+        if (hedger == null) {
+            return request(directive, params, method, classOfT);
+        }
+        try {
+            return hedger.call(new DHedger.Request<T>() {
+                @Override
+                public T call(DHedger.Attempt attempt) throws Exception {
+                    currentAttempt.set(attempt);
+                    try {
+                        return request(directive, params, method, classOfT);
+                    } finally {
+                        currentAttempt.remove();
+                    }
+                }
+            });
+        } catch (IllegalArgumentException | DSiteException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DSiteException("Services request interrupted: " + directive, e);
+        } catch (Exception e) {
+            throw new DSiteException(e);
+        }
+    }
+
+    public DHedger getHedger() {
+        return hedger;
+    }
+
+    /**
+     * @param hedger hedges requests made with hedgedRequest(), or null to disable hedging.
+     */
+    public void setHedger(DHedger hedger) {
+        this.hedger = hedger;
+    }
+
+
     /**
      * Generic template to make a HTTP request.
      *
@@ -165,21 +284,79 @@ public class DRestfulJsonServices {
      * @throws org.drupal.project.computing.exception.DSiteException
      */
     public String httpRequest(String url, String data, String method) throws IllegalArgumentException, DSiteException {
+        return httpRequest(url, data, method, stringParser);
+    }
+
+    private final DUtils.StreamParser<String> stringParser = new DUtils.StreamParser<String>() {
+        @Override
+        public String parse(InputStream response) throws IOException {
+            Reader reader = new InputStreamReader(response, StandardCharsets.UTF_8);
+            StringBuilder content = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                content.append(buffer, 0, read);
+            }
+            return content.toString();
+        }
+    };
+
+    // Services always responds in UTF-8. JSON is decoded from the (decompressed) response stream as it's read.
+    private final DUtils.StreamParser<Object> jsonParser = new DUtils.StreamParser<Object>() {
+        @Override
+        public Object parse(InputStream response) throws IOException {
+            return DUtils.Json.getInstance().fromJson(new InputStreamReader(response, StandardCharsets.UTF_8));
+        }
+    };
+
+    /**
+     * Make a HTTP request, and parse the response while it's read. Responses are requested with gzip or deflate
+     * compression and decompressed on the fly. Request data larger than the compress threshold (see
+     * setCompressThreshold()) is sent with gzip compression.
+     *
+     * @param url The absolute URL to make request on.
+     * @param data Extra data to pass to the URL connection.
+     * @param method a valid HTTP request method: GET, PUT, etc in upper case.
+     * @param parser reads the response body.
+     * @return the parsed response.
+     * @throws IllegalArgumentException
+     * @throws DSiteException
+     */
+    public <T> T httpRequest(String url, String data, String method, DUtils.StreamParser<T> parser) throws IllegalArgumentException, DSiteException {
         assert method.equals("GET") || method.equals("POST") || method.equals("PUT") || method.equals("DELETE");
         HttpURLConnection connection = null;
+        // logins are not aborted, because other threads might be waiting for them.
+        DHedger.Attempt attempt = Thread.holdsLock(loginLock) ? null : currentAttempt.get();
 
         try {
             URL requestUrl = new URL(url);
             // this does not connect to the actual network. URLConnection.connect() does.
             connection = (HttpURLConnection) requestUrl.openConnection();
+            if (attempt != null) {
+                final HttpURLConnection aborted = connection;
+                attempt.onAbort(new Runnable() {
+                    @Override
+                    public void run() {
+                        aborted.disconnect();
+                    }
+                });
+            }
             connection.setRequestProperty("User-Agent", httpUserAgent);
 
             connection.setRequestMethod(method);
             connection.setRequestProperty("Content-Type", httpContentType); // this is the request content-type
+            connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
             //connection.setRequestProperty("Content-Language", "en-US");
 
-            if (StringUtils.isNotBlank(servicesSessionToken)) {
-                connection.setRequestProperty("X-CSRF-Token", servicesSessionToken);
+            String token = servicesSessionToken;
+            if (StringUtils.isNotBlank(token)) {
+                connection.setRequestProperty("X-CSRF-Token", token);
+            }
+            URI requestUri = requestUrl.toURI();
+            for (Map.Entry<String, List<String>> header : cookieManager.get(requestUri, connection.getRequestProperties()).entrySet()) {
+                if (!header.getValue().isEmpty()) {
+                    connection.setRequestProperty(header.getKey(), StringUtils.join(header.getValue(), "; "));
+                }
             }
 
             // Logistics. Will use InputSteam (which is HTTP response).
@@ -188,30 +365,47 @@ public class DRestfulJsonServices {
 
             if (StringUtils.isNotBlank(data)) {
                 //Send request data
-                connection.setRequestProperty("Content-Length", "" + Integer.toString(data.getBytes().length));
+                byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+                if (compressThreshold > 0 && bytes.length > compressThreshold) {
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+                    try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                        gzip.write(bytes);
+                    }
+                    DMetrics.getInstance().add("services.request_saved_bytes", bytes.length - compressed.size());
+                    bytes = compressed.toByteArray();
+                    connection.setRequestProperty("Content-Encoding", "gzip");
+                }
+                connection.setRequestProperty("Content-Length", Integer.toString(bytes.length));
+                connection.setFixedLengthStreamingMode(bytes.length);
                 connection.setDoOutput(true);
-                DataOutputStream dataOutput = new DataOutputStream (connection.getOutputStream());
-                dataOutput.writeBytes(data);
-                dataOutput.flush();
-                dataOutput.close();
+                try (OutputStream dataOutput = connection.getOutputStream()) {
+                    dataOutput.write(bytes);
+                }
             }
 
             int responseCode = connection.getResponseCode();
+            cookieManager.put(requestUri, connection.getHeaderFields());
 
             //Get Response, or throw an exception with HTTPCode (other than 200) as error code.
-            String responseContent = null;
+            T responseContent = null;
             if (responseCode == HttpURLConnection.HTTP_OK) {
                 // seems if responseCode != 200, then this will cause error.
                 InputStream responseStream = connection.getInputStream();
                 if (responseStream != null) {
-                    responseContent = DUtils.getInstance().readContent(responseStream);
-                    responseStream.close();
+                    try (InputStream decoded = decode(responseStream, connection.getContentEncoding())) {
+                        responseContent = parser.parse(decoded);
+                    } catch (RuntimeException e) {
+                        // e.g. JsonParseException.
+                        throw new DSiteException("Cannot parse HTTP response from " + url, e);
+                    }
                 }
             } else {
                 String responseError = null;
                 InputStream errorStream = connection.getErrorStream();
                 if (errorStream != null) {
-                    responseError = DUtils.getInstance().readContent(errorStream);
+                    try (InputStream decoded = decode(errorStream, connection.getContentEncoding())) {
+                        responseError = stringParser.parse(decoded);
+                    }
                 }
                 StringBuilder errorMessage = new StringBuilder();
                 errorMessage.append("HTTP response code is not OK. Code: ").append(responseCode).
@@ -226,11 +420,13 @@ public class DRestfulJsonServices {
             return responseContent;
 
 
-        } catch (MalformedURLException e) {
+        } catch (MalformedURLException | URISyntaxException e) {
             e.printStackTrace();
             throw new IllegalArgumentException(e);
         } catch (IOException e) {
-            e.printStackTrace();
+            if (attempt == null || !attempt.isAborted()) {
+                e.printStackTrace();
+            }
             throw new DSiteException(e);
         } finally {
             if(connection != null) {
@@ -239,6 +435,29 @@ public class DRestfulJsonServices {
         }
     }
 
+    /**
+     * Decompress the response stream according to the Content-Encoding header.
+     */
+    private InputStream decode(InputStream input, String contentEncoding) throws IOException {
+        if ("gzip".equalsIgnoreCase(contentEncoding)) {
+            return new GZIPInputStream(input);
+        } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            return new InflaterInputStream(input);
+        }
+        return input;
+    }
+
+    /**
+     * Set the size above which request data is compressed with gzip. The web server needs to accept compressed
+     * request bodies, e.g. Apache with "SetInputFilter DEFLATE".
+     *
+     * @param compressThreshold bytes, or 0 to never compress request data.
+     */
+    public void setCompressThreshold(int compressThreshold) {
+        assert compressThreshold >= 0;
+        this.compressThreshold = compressThreshold;
+    }
+
     /**
      * Check connection to Drupal using system/connect.json.
      * @return true if connection successful, or false if not.
@@ -278,6 +497,28 @@ public class DRestfulJsonServices {
      * Drupal services again.
      */
     public void userLogin() throws DSiteException {
+        synchronized (loginLock) {
+            doUserLogin();
+        }
+    }
+
+    /**
+     * Login unless already logged in. Threads calling it at the same time login only once.
+     *
+     * @throws DSiteException
+     */
+    public void ensureLogin() throws DSiteException {
+        if (isAuthenticated()) {
+            return;
+        }
+        synchronized (loginLock) {
+            if (!isAuthenticated()) {
+                doUserLogin();
+            }
+        }
+    }
+
+    private void doUserLogin() throws DSiteException {
         // seems not necessary to assign a temporary token here.
 //        if (StringUtils.isBlank(servicesSessionToken)) {
 //            // set a temporary token to verify
@@ -288,9 +529,12 @@ public class DRestfulJsonServices {
         params.put("username", userName);
         params.put("password", userPass);
 
-        Bindings result = request("user/login.json", params, "POST", Bindings.class);
+        Object response = doRequest("user/login.json", params, "POST");
+        Bindings result = response instanceof Bindings ? (Bindings) response : new SimpleBindings();
         if (result.containsKey("token") && result.get("token") instanceof String) {
             servicesSessionToken = (String) result.get("token");
+            sessionVersion++;
+            autoLogin = true;
             logger.info("Services successfully login with user: " + userName);
         } else {
             logger.severe("Cannot login with user: " + userName);
@@ -304,11 +548,18 @@ public class DRestfulJsonServices {
      * @throws DSiteException
      */
     public void userLogout() throws DSiteException {
-        // we don't care about the output.
-        request("user/logout.json", null, "POST");
-        // clear sessionToken anyways.
-        servicesSessionToken = null;
-        logger.info("Services successfully logout with user: " + userName);
+        synchronized (loginLock) {
+            autoLogin = false;
+            try {
+                // we don't care about the output.
+                doRequest("user/logout.json", null, "POST");
+            } finally {
+                // clear sessionToken anyways.
+                servicesSessionToken = null;
+                cookieManager.getCookieStore().removeAll();
+            }
+            logger.info("Services successfully logout with user: " + userName);
+        }
     }
 
     /**
@@ -0,0 +1,303 @@
+package org.drupal.project.computing;
+
+import org.drupal.project.computing.exception.DCommandExecutionException;
+
+import javax.script.Bindings;
+import java.io.InterruptedIOException;
+import java.math.BigDecimal;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * <p>In-memory cache of command results for deterministic commands (see DCommand.isDeterministic()). Results are keyed
+ * by a hash of the command name and the canonical JSON of the record's input, so records resubmitted with the same
+ * command and input are answered without running the command again.</p>
+ *
+ * <p>The cache is bounded by number of entries and by (approximate) bytes, evicting least recently used entries
+ * first, and entries expire after a TTL. Concurrent lookups of the same key are coalesced: only one thread runs the
+ * command, and the others wait for its result. Only successful results are cached.</p>
+ *
+ * <p>Hits, misses, coalesced lookups, aborted computations and evictions are counted in DMetrics as "cache.*".</p>
+ */
+public class DResultCache {
+
+    protected Logger logger = DUtils.getInstance().getPackageLogger();
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMillis;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    private final ConcurrentMap<String, FutureTask<Entry>> inflight = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param maxEntries maximum number of cached results.
+     * @param maxBytes maximum total size of cached results, approximately.
+     * @param ttlMillis milliseconds before a cached result expires, or 0 to never expire.
+     */
+    public DResultCache(int maxEntries, long maxBytes, long ttlMillis) {
+        assert maxEntries > 0 && maxBytes > 0 && ttlMillis >= 0;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Factory method. Create the cache using "dcomp.cache.*" settings, or return null if the cache is disabled.
+     *
+     * @param config the agent configuration.
+     * @return the DResultCache object, or null if "dcomp.cache.max_entries" is 0.
+     */
+    public static DResultCache loadDefault(DConfig config) {
+        int maxEntries = Integer.parseInt(config.getProperty("dcomp.cache.max_entries", "1000"));
+        long maxBytes = Long.parseLong(config.getProperty("dcomp.cache.max_bytes", "67108864"));
+        long ttl = Long.parseLong(config.getProperty("dcomp.cache.ttl", "3600"));
+        return maxEntries > 0 ? new DResultCache(maxEntries, maxBytes, ttl * 1000) : null;
+    }
+
+
+    /**
+     * Compute the cache key from the command name and input. The input is normalized first: object keys are sorted and
+     * numbers are compared by value, so that equivalent JSON input gives the same key.
+     *
+     * @param commandName the DRecord "command" field.
+     * @param input the DRecord "input" field, could be null.
+     * @return hex encoded SHA-256 digest.
+     */
+    public static String computeKey(String commandName, Bindings input) {
+        String canonical = commandName + '\n' + DUtils.Json.getInstance().toJson(normalize(input));
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(canonical.getBytes(Charset.forName("UTF-8")));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static Object normalize(Object value) {
+        if (value instanceof Map) {
+            SortedMap<String, Object> sorted = new TreeMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), normalize(entry.getValue()));
+            }
+            return sorted;
+        } else if (value instanceof List) {
+            List<Object> list = new ArrayList<>();
+            for (Object element : (List<?>) value) {
+                list.add(normalize(element));
+            }
+            return list;
+        } else if (value instanceof Number) {
+            BigDecimal number = new BigDecimal(value.toString());
+            return number.signum() == 0 ? BigDecimal.ZERO : number.stripTrailingZeros();
+        } else {
+            return value;
+        }
+    }
+
+
+    /**
+     * Get the cached result of the key, or compute it with the loader. If another thread is computing the same key,
+     * wait for its result instead. Exceptions from the loader are passed to all waiting callers and are not cached,
+     * except when the computing thread is aborted (e.g. interrupted at timeout): then one of the waiting callers runs
+     * the loader again, because the abort says nothing about the command.
+     *
+     * @param key the key from computeKey().
+     * @param loader runs the command and returns its result.
+     * @return the cached or computed result.
+     * @throws DCommandExecutionException if the loader fails with a checked exception.
+     */
+    public Entry get(String key, final Callable<Entry> loader) throws DCommandExecutionException {
+        while (true) {
+            Entry entry = getIfPresent(key);
+            if (entry != null) {
+                DMetrics.getInstance().increment("cache.hit");
+                return entry;
+            }
+
+            FutureTask<Entry> task = new FutureTask<>(new Callable<Entry>() {
+                @Override
+                public Entry call() throws Exception {
+                    Entry result = loader.call();
+                    if (Thread.currentThread().isInterrupted()) {
+                        // the command might have stopped early with partial results.
+                        throw new InterruptedException("Command interrupted.");
+                    }
+                    return result;
+                }
+            });
+            FutureTask<Entry> existing = inflight.putIfAbsent(key, task);
+            if (existing == null) {
+                DMetrics.getInstance().increment("cache.miss");
+                try {
+                    task.run();
+                    try {
+                        put(key, task.get());
+                    } catch (ExecutionException e) {
+                        // not cached. handled below.
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    inflight.remove(key, task);
+                }
+                return getResult(task);
+            }
+
+            DMetrics.getInstance().increment("cache.coalesced");
+            try {
+                return getResult(existing);
+            } catch (DCommandExecutionException | RuntimeException e) {
+                if (Thread.currentThread().isInterrupted() || !isAborted(e)) {
+                    throw e;
+                }
+            }
+            // try again: the first caller to get here computes the result.
+            inflight.remove(key, existing);
+            DMetrics.getInstance().increment("cache.leader_aborted");
+            logger.fine("The thread computing the same command was aborted. Try again.");
+        }
+    }
+
+    private Entry getResult(FutureTask<Entry> task) throws DCommandExecutionException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DCommandExecutionException("Interrupted while waiting for the same command to finish.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DCommandExecutionException) {
+                throw (DCommandExecutionException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new DCommandExecutionException(cause);
+        }
+    }
+
+    /**
+     * @return true if the failure is caused by interrupting or cancelling the computing thread.
+     */
+    private static boolean isAborted(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedException || cause instanceof InterruptedIOException
+                    || cause instanceof ClosedByInterruptException || cause instanceof CancellationException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param key the key from computeKey().
+     * @return the cached result, or null if not cached or expired.
+     */
+    public synchronized Entry getIfPresent(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && ttlMillis > 0 && System.currentTimeMillis() - entry.created > ttlMillis) {
+            remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Save the result in the cache, and evict least recently used entries if the cache is full.
+     *
+     * @param key the key from computeKey().
+     * @param entry the result.
+     */
+    public synchronized void put(String key, Entry entry) {
+        if (entry.size() > maxBytes) {
+            logger.fine("Result too large to cache: " + entry.size() + " bytes.");
+            return;
+        }
+        remove(key);
+        entries.put(key, entry);
+        bytes += entry.size();
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+            bytes -= iterator.next().getValue().size();
+            iterator.remove();
+            DMetrics.getInstance().increment("cache.eviction");
+        }
+    }
+
+    private void remove(String key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            bytes -= old.size();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+
+    /**
+     * A cached command result. The output is kept as JSON, and each call of getOutput() returns a new Bindings object,
+     * so the cached result can't be changed by the callers.
+     */
+    public static class Entry {
+
+        private final String message;
+        private final String outputJson;
+        private final long created;
+
+        public Entry(String message, Bindings output) {
+            this(message, output == null ? null : DUtils.Json.getInstance().toJson(output), System.currentTimeMillis());
+        }
+
+        public Entry(String message, String outputJson, long created) {
+            this.message = message;
+            this.outputJson = outputJson;
+            this.created = created;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public Bindings getOutput() {
+            return DUtils.Json.getInstance().fromJsonObject(outputJson);
+        }
+
+        public String getOutputJson() {
+            return outputJson;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * @return approximate memory size in bytes.
+         */
+        long size() {
+            return 2L * ((message == null ? 0 : message.length()) + (outputJson == null ? 0 : outputJson.length())) + 64;
+        }
+    }
+}
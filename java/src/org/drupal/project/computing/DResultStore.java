@@ -0,0 +1,559 @@
+package org.drupal.project.computing;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Disk-backed store of command results for deterministic commands, so that results survive agent restarts (e.g.
+ * agents launched by cron). Works as the second level behind DResultCache, with the same keys.</p>
+ *
+ * <p>Results are appended to a log file, which is read through a memory-mapped buffer. The mapping grows when the log
+ * doubles, and entries appended after the mapped end are read with FileChannel.read(). An in-memory hash index maps the
+ * first 64 bits of each key's digest to the offset of its latest entry, and is rebuilt by scanning the log when the
+ * store is opened. The full key is saved in the entry and checked on read, so keys sharing a prefix only cause cache
+ * misses. Each entry carries a CRC32 checksum: after a crash, the log is truncated at the first incomplete or corrupted
+ * entry. When the log grows beyond the size limit, it is compacted into a new file with only the latest live entries,
+ * newest first, and atomically renamed over the old one.</p>
+ *
+ * <p>The store directory is locked with a separate "results.lock" file for as long as the store is open, including
+ * while the log is swapped by compaction. If the log cannot be reopened after compaction, the store is closed and
+ * returns cache misses.</p>
+ *
+ * <p>Entry layout: magic (int), key length (int), message length (int), output length (int, -1 for null), created
+ * time in milliseconds (long), key, message, output (UTF-8), CRC32 of all previous bytes (int).</p>
+ */
+public class DResultStore implements AutoCloseable {
+
+    private static final int MAGIC = 0xDC0C0DE1;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8;
+    private static final int MAX_FIELD_SIZE = 64 * 1024 * 1024;
+    private static final long MIN_MAPPING = 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    protected Logger logger = DUtils.getInstance().getPackageLogger();
+
+    private final File logFile;
+    private final File lockFile;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final boolean sync;
+
+    private RandomAccessFile lockRaf;
+    private FileLock lock;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private long mappedSize;
+    private long size;
+
+    /**
+     * key prefix => offset of the latest entry of the key in the log.
+     */
+    private final LongIndex index = new LongIndex();
+
+
+    /**
+     * Open the store in the directory, creating it if needed. Only one agent process can open a store directory at a
+     * time.
+     *
+     * @param directory the directory to save the log file.
+     * @param maxBytes the log file size that triggers compaction.
+     * @param ttlMillis milliseconds before a stored result expires, or 0 to never expire.
+     * @param sync whether to force each write to disk before returning.
+     * @throws IOException if the log cannot be opened, or is locked by another process.
+     */
+    public DResultStore(File directory, long maxBytes, long ttlMillis, boolean sync) throws IOException {
+        // entries are addressed with int positions in the mapped buffer.
+        assert directory != null && maxBytes > 0 && maxBytes < Integer.MAX_VALUE && ttlMillis >= 0;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create result store directory: " + directory);
+        }
+        this.logFile = new File(directory, "results.log");
+        this.lockFile = new File(directory, "results.lock");
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.sync = sync;
+        lock();
+        try {
+            open();
+        } catch (IOException e) {
+            closeLog();
+            unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Factory method. Open the store using "dcomp.store.*" settings, or return null if the store is not configured or
+     * cannot be opened.
+     *
+     * @param config the agent configuration.
+     * @return the DResultStore object, or null.
+     */
+    public static DResultStore loadDefault(DConfig config) {
+        String directory = config.getProperty("dcomp.store.dir", "");
+        if (StringUtils.isBlank(directory)) {
+            return null;
+        }
+        long maxBytes = Long.parseLong(config.getProperty("dcomp.store.max_bytes", "268435456"));
+        long ttl = Long.parseLong(config.getProperty("dcomp.store.ttl", "0"));
+        boolean sync = DUtils.getInstance().getBoolean(config.getProperty("dcomp.store.sync", "false"));
+        try {
+            return new DResultStore(new File(directory), maxBytes, ttl * 1000, sync);
+        } catch (IOException e) {
+            DUtils.getInstance().getPackageLogger().warning("Cannot open result store, disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+
+    private void lock() throws IOException {
+        lockRaf = new RandomAccessFile(lockFile, "rw");
+        try {
+            lock = lockRaf.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // locked by another DResultStore in this JVM.
+            lock = null;
+        }
+        if (lock == null) {
+            lockRaf.close();
+            lockRaf = null;
+            throw new IOException("Result store is used by another process: " + logFile);
+        }
+    }
+
+    private void unlock() throws IOException {
+        if (lockRaf != null) {
+            // closing the file releases the lock.
+            lockRaf.close();
+            lockRaf = null;
+            lock = null;
+        }
+    }
+
+    private void open() throws IOException {
+        file = new RandomAccessFile(logFile, "rw");
+        channel = file.getChannel();
+        size = channel.size();
+        remap();
+        recover();
+    }
+
+    private void remap() throws IOException {
+        mapped = (size == 0) ? null : channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        mappedSize = size;
+    }
+
+    /**
+     * Scan the log to rebuild the index, and truncate the log at the first invalid entry.
+     */
+    private void recover() throws IOException {
+        index.clear();
+        long offset = 0;
+        while (offset < size) {
+            int length = validEntryLength(offset);
+            if (length < 0) {
+                logger.warning("Result store is truncated at offset " + offset + " of " + size + " bytes.");
+                channel.truncate(offset);
+                size = offset;
+                remap();
+                break;
+            }
+            index.put(prefix(readKey(offset)), offset);
+            offset += length;
+        }
+        logger.fine("Result store opened with " + index.size() + " entries: " + logFile);
+    }
+
+    /**
+     * @return the total length of the entry at the offset, or -1 if it's incomplete or corrupted.
+     */
+    private int validEntryLength(long offset) throws IOException {
+        if (size - offset < HEADER_SIZE + 4) {
+            return -1;
+        }
+        ByteBuffer header = read(offset, HEADER_SIZE);
+        if (header.getInt(0) != MAGIC) {
+            return -1;
+        }
+        int keyLength = header.getInt(4);
+        int messageLength = header.getInt(8);
+        int outputLength = header.getInt(12);
+        if (keyLength < 0 || keyLength > MAX_FIELD_SIZE || messageLength < 0 || messageLength > MAX_FIELD_SIZE
+                || outputLength < -1 || outputLength > MAX_FIELD_SIZE) {
+            return -1;
+        }
+        int bodyLength = HEADER_SIZE + keyLength + messageLength + Math.max(outputLength, 0);
+        if (size - offset < bodyLength + 4) {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(readBytes(offset, bodyLength));
+        if ((int) crc.getValue() != read(offset + bodyLength, 4).getInt(0)) {
+            return -1;
+        }
+        return bodyLength + 4;
+    }
+
+    private String readKey(long offset) throws IOException {
+        return readString(offset + HEADER_SIZE, read(offset, HEADER_SIZE).getInt(4));
+    }
+
+    private String readString(long position, int length) throws IOException {
+        return new String(readBytes(position, length), UTF8);
+    }
+
+    private byte[] readBytes(long position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        read(position, length).get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Read bytes of the log from the mapped buffer, or from the file if they are past the mapped end.
+     */
+    private ByteBuffer read(long position, int length) throws IOException {
+        if (position + length <= mappedSize) {
+            // use Buffer methods so that the class also runs on Java 7/8, where ByteBuffer doesn't override them.
+            ByteBuffer buffer = mapped.duplicate();
+            ((Buffer) buffer).position((int) position);
+            ((Buffer) buffer).limit((int) position + length);
+            return buffer.slice();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of result store at " + position);
+            }
+        }
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+    /**
+     * @return the first 64 bits of the key digest, or a 64-bit hash if the key is not a hex digest. Never 0, which
+     *         marks empty slots of the index.
+     */
+    static long prefix(String key) {
+        long prefix = 0;
+        if (key.length() >= 16) {
+            for (int i = 0; i < 16; i++) {
+                int digit = Character.digit(key.charAt(i), 16);
+                if (digit < 0) {
+                    prefix = 0;
+                    break;
+                }
+                prefix = (prefix << 4) | digit;
+            }
+        }
+        if (prefix == 0) {
+            // FNV-1a.
+            prefix = 0xcbf29ce484222325L;
+            for (int i = 0; i < key.length(); i++) {
+                prefix = (prefix ^ key.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        return prefix == 0 ? 1 : prefix;
+    }
+
+
+    /**
+     * @param key the key from DResultCache.computeKey().
+     * @return the stored result, or null if not found, expired, or the store is closed.
+     */
+    public synchronized DResultCache.Entry get(String key) {
+        long prefix = prefix(key);
+        long offset = (channel == null) ? -1 : index.get(prefix);
+        if (offset < 0) {
+            DMetrics.getInstance().increment("store.miss");
+            return null;
+        }
+        DResultCache.Entry entry;
+        try {
+            if (!key.equals(readKey(offset))) {
+                // another key with the same prefix.
+                DMetrics.getInstance().increment("store.miss");
+                return null;
+            }
+            entry = readEntry(offset);
+        } catch (IOException e) {
+            logger.warning("Cannot read result store: " + e.getMessage());
+            DMetrics.getInstance().increment("store.miss");
+            return null;
+        }
+        if (ttlMillis > 0 && System.currentTimeMillis() - entry.getCreated() > ttlMillis) {
+            index.remove(prefix);
+            DMetrics.getInstance().increment("store.miss");
+            return null;
+        }
+        DMetrics.getInstance().increment("store.hit");
+        return entry;
+    }
+
+    private DResultCache.Entry readEntry(long offset) throws IOException {
+        ByteBuffer header = read(offset, HEADER_SIZE);
+        int keyLength = header.getInt(4);
+        int messageLength = header.getInt(8);
+        int outputLength = header.getInt(12);
+        long created = header.getLong(16);
+        long messagePosition = offset + HEADER_SIZE + keyLength;
+        String message = readString(messagePosition, messageLength);
+        String output = (outputLength < 0) ? null : readString(messagePosition + messageLength, outputLength);
+        return new DResultCache.Entry(message, output, created);
+    }
+
+
+    /**
+     * Append the result to the log. Compacts the log first if it's too large.
+     *
+     * @param key the key from DResultCache.computeKey().
+     * @param entry the result to store.
+     * @throws IOException if the result cannot be written, or the store is closed.
+     */
+    public synchronized void put(String key, DResultCache.Entry entry) throws IOException {
+        if (channel == null) {
+            throw new IOException("Result store is closed: " + logFile);
+        }
+        ByteBuffer buffer = encode(key, entry);
+        if (size + buffer.remaining() > maxBytes) {
+            compact();
+        }
+        long offset = size;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, size + buffer.position());
+        }
+        if (sync) {
+            channel.force(false);
+        }
+        size += buffer.limit();
+        // remap when the log doubles, so that the number of mappings is logarithmic to the log size.
+        if (size - mappedSize > Math.max(mappedSize, MIN_MAPPING)) {
+            remap();
+        }
+        index.put(prefix(key), offset);
+    }
+
+    private ByteBuffer encode(String key, DResultCache.Entry entry) {
+        byte[] keyBytes = key.getBytes(UTF8);
+        byte[] messageBytes = (entry.getMessage() == null ? "" : entry.getMessage()).getBytes(UTF8);
+        byte[] outputBytes = (entry.getOutputJson() == null) ? null : entry.getOutputJson().getBytes(UTF8);
+        int bodyLength = HEADER_SIZE + keyBytes.length + messageBytes.length + (outputBytes == null ? 0 : outputBytes.length);
+
+        ByteBuffer buffer = ByteBuffer.allocate(bodyLength + 4);
+        buffer.putInt(MAGIC).putInt(keyBytes.length).putInt(messageBytes.length)
+                .putInt(outputBytes == null ? -1 : outputBytes.length).putLong(entry.getCreated());
+        buffer.put(keyBytes).put(messageBytes);
+        if (outputBytes != null) {
+            buffer.put(outputBytes);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, bodyLength);
+        buffer.putInt((int) crc.getValue());
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+
+    /**
+     * Rewrite the log with only the latest entry of each key that is not expired, keeping the newest entries until
+     * the log is half of the size limit.
+     *
+     * @throws IOException if compaction fails. If the log can't be reopened, the store is closed.
+     */
+    public synchronized void compact() throws IOException {
+        if (channel == null) {
+            throw new IOException("Result store is closed: " + logFile);
+        }
+        List<Long> offsets = index.offsets();
+        Collections.sort(offsets, Collections.reverseOrder());
+
+        File compactFile = new File(logFile.getPath() + ".compact");
+        long written = 0;
+        try (RandomAccessFile compactRaf = new RandomAccessFile(compactFile, "rw")) {
+            compactRaf.setLength(0);
+            FileChannel compactChannel = compactRaf.getChannel();
+            long now = System.currentTimeMillis();
+            // write the newest entries; the index is rebuilt when the log is reopened.
+            List<ByteBuffer> kept = new ArrayList<>();
+            for (long offset : offsets) {
+                DResultCache.Entry entry = readEntry(offset);
+                if (ttlMillis > 0 && now - entry.getCreated() > ttlMillis) {
+                    continue;
+                }
+                ByteBuffer buffer = encode(readKey(offset), entry);
+                if (written + buffer.remaining() > maxBytes / 2) {
+                    break;
+                }
+                written += buffer.remaining();
+                kept.add(buffer);
+            }
+            // keep the log in chronological order, so that newer entries of the same key win when scanning.
+            Collections.reverse(kept);
+            for (ByteBuffer buffer : kept) {
+                while (buffer.hasRemaining()) {
+                    compactChannel.write(buffer);
+                }
+            }
+            compactChannel.force(true);
+        }
+
+        // the directory stays locked while the log is swapped.
+        closeLog();
+        try {
+            Files.move(compactFile.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            open();
+        } catch (IOException e) {
+            logger.severe("Cannot reopen result store after compaction, closed: " + e.getMessage());
+            closeLog();
+            unlock();
+            throw e;
+        }
+        DMetrics.getInstance().increment("store.compaction");
+        logger.info("Result store compacted to " + size + " bytes, " + index.size() + " entries.");
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public synchronized long getBytes() {
+        return size;
+    }
+
+    /**
+     * @return false if the store is closed, e.g. after failing to reopen the log.
+     */
+    public synchronized boolean isOpen() {
+        return channel != null;
+    }
+
+    private void closeLog() throws IOException {
+        mapped = null;
+        mappedSize = 0;
+        index.clear();
+        if (channel != null) {
+            channel = null;
+            file.close();
+            file = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            closeLog();
+        } finally {
+            unlock();
+        }
+    }
+
+
+    /**
+     * Hash table from key prefix to log offset with open addressing and linear probing, which takes 16 bytes per slot
+     * instead of boxed keys and values. Empty slots have key 0.
+     */
+    private static class LongIndex {
+        private long[] keys = new long[64];
+        private long[] values = new long[64];
+        private int count = 0;
+
+        private int slot(long key) {
+            int mask = keys.length - 1;
+            int slot = (int) (key ^ (key >>> 32)) & mask;
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        long get(long key) {
+            int slot = slot(key);
+            return keys[slot] == 0 ? -1 : values[slot];
+        }
+
+        void put(long key, long value) {
+            int slot = slot(key);
+            if (keys[slot] == 0) {
+                if ((count + 1) * 2 > keys.length) {
+                    resize();
+                    slot = slot(key);
+                }
+                keys[slot] = key;
+                count++;
+            }
+            values[slot] = value;
+        }
+
+        void remove(long key) {
+            int slot = slot(key);
+            if (keys[slot] == 0) {
+                return;
+            }
+            keys[slot] = 0;
+            count--;
+            // move back following entries of the probe sequence, so that lookups don't stop at the hole.
+            int mask = keys.length - 1;
+            int next = (slot + 1) & mask;
+            while (keys[next] != 0) {
+                long movedKey = keys[next];
+                long movedValue = values[next];
+                keys[next] = 0;
+                count--;
+                put(movedKey, movedValue);
+                next = (next + 1) & mask;
+            }
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldValues.length * 2];
+            count = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                    count++;
+                }
+            }
+        }
+
+        List<Long> offsets() {
+            List<Long> offsets = new ArrayList<>(count);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) {
+                    offsets.add(values[i]);
+                }
+            }
+            return offsets;
+        }
+
+        int size() {
+            return count;
+        }
+
+        void clear() {
+            keys = new long[64];
+            values = new long[64];
+            count = 0;
+        }
+    }
+}
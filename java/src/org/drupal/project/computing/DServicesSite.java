@@ -7,13 +7,18 @@ import org.drupal.project.computing.exception.DSiteException;
 
 import javax.script.Bindings;
 import javax.script.SimpleBindings;
+import java.net.HttpURLConnection;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Uses Drupal Services REST Server to access Drupal. This class has connect() and close() which are not defined in
  * DSite. The DApplication is responsible to connect() and close() the connection. However, here we try "connect()" for
- * all operations that require user login.
+ * all operations that require user login. The class is thread-safe, and expired sessions are renewed automatically, see
+ * DRestfulJsonServices. Reads (loadRecord(), site info and variableGet()) use hedged requests, see DHedger.
  *
  * BUG: DApplication doesn't explicitly run "close()" for DServicesSite.
  */
@@ -21,27 +26,59 @@ public class DServicesSite extends DSite implements DSiteExtended {
 
     protected DRestfulJsonServices services;
 
+    /**
+     * Seconds Drupal could hold a claim request until a record is READY, or 0 to return right away.
+     */
+    protected int claimWait = 0;
+
+    /**
+     * Whether Drupal has the computing/statuses.json resource, which is assumed until it responds 404.
+     */
+    private volatile boolean batchStatuses = true;
+
+    /**
+     * Whether Drupal has the computing/touch.json resource, which is assumed until it responds 404.
+     */
+    private volatile boolean batchTouch = true;
+
     public DServicesSite(DRestfulJsonServices services) {
         this.services = services;
     }
 
     public static DServicesSite loadDefault() throws DConfigException {
-        return new DServicesSite(DRestfulJsonServices.loadDefault());
+        DServicesSite site = new DServicesSite(DRestfulJsonServices.loadDefault());
+        site.setClaimWait(Integer.parseInt(DConfig.loadDefault().getProperty("dcomp.services.claim_wait", "0").trim()));
+        return site;
     }
 
     public DRestfulJsonServices getServices() {
         return services;
     }
 
+    public int getClaimWait() {
+        return claimWait;
+    }
+
+    /**
+     * Use long-poll claims: claimRecord() sends "wait" with the claim request, and Drupal holds the request until a
+     * record is READY or the wait is over. So an agent waiting for records gets one as soon as it's created, with one
+     * request per wait instead of polling. Drupal ignores "wait" if it doesn't support long-poll, and responds right
+     * away as before.
+     *
+     * @param claimWait seconds to wait for a READY record, or 0 to return right away.
+     */
+    public void setClaimWait(int claimWait) {
+        assert claimWait >= 0;
+        this.claimWait = claimWait;
+    }
+
     /**
      * Connect to Drupal site with services.
      * This will get called automatically if it's not getting called yet before doing any operations.
      * @throws DSiteException
      */
     public void connect() throws DSiteException {
-        if (!services.isAuthenticated()) {
-            services.userLogin();
-        }
+        services.ensureLogin();
     }
 
     /**
@@ -60,6 +97,9 @@ public class DServicesSite extends DSite implements DSiteExtended {
         connect();
         Bindings params = new SimpleBindings();
         params.put("application", appName);
+        if (claimWait > 0) {
+            params.put("wait", claimWait);
+        }
 
         Object response = services.request("computing/claim.json", params, "POST");
         if (response instanceof ArrayList) {
@@ -140,10 +180,78 @@ public class DServicesSite extends DSite implements DSiteExtended {
     public DRecord loadRecord(long id) throws DSiteException {
         connect();
         String requestString = String.format("computing/%d.json", id);
-        Bindings data = services.request(requestString, null, "GET", Bindings.class);
+        Bindings data = services.hedgedRequest(requestString, null, "GET", Bindings.class);
         return DRecord.fromBindings(data);
     }
 
+    /**
+     * Touch all records in one computing/touch.json request, which sets "changed" to the current time of records in
+     * "RUN" status. If Drupal doesn't have the resource, update the field of records one by one instead.
+     */
+    @Override
+    public void touchRecords(Collection<DRecord> records) throws DSiteException {
+        if (!batchTouch || records.isEmpty()) {
+            super.touchRecords(records);
+            return;
+        }
+        connect();
+        List<Long> ids = new ArrayList<>(records.size());
+        for (DRecord record : records) {
+            assert !record.isNew();
+            ids.add(record.getId());
+        }
+        Bindings params = new SimpleBindings();
+        params.put("ids", ids);
+        try {
+            services.request("computing/touch.json", params, "POST");
+        } catch (DSiteException e) {
+            if (e.getErrorCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                throw e;
+            }
+            logger.info("Drupal doesn't support computing/touch.json. Touch records one by one instead.");
+            batchTouch = false;
+            super.touchRecords(records);
+        }
+    }
+
+    /**
+     * Load statuses of all records in one computing/statuses.json request, which returns record ID => status of the
+     * records that exist. If Drupal doesn't have the resource, load records one by one with loadRecord() instead.
+     */
+    @Override
+    public Map<Long, DRecord.Status> loadRecordStatuses(Collection<Long> ids) throws DSiteException {
+        if (!batchStatuses || ids.isEmpty()) {
+            return super.loadRecordStatuses(ids);
+        }
+        connect();
+        Bindings params = new SimpleBindings();
+        params.put("ids", new ArrayList<>(ids));
+        Object response;
+        try {
+            response = services.hedgedRequest("computing/statuses.json", params, "POST", Object.class);
+        } catch (DSiteException e) {
+            if (e.getErrorCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                throw e;
+            }
+            logger.info("Drupal doesn't support computing/statuses.json. Load records one by one instead.");
+            batchStatuses = false;
+            return super.loadRecordStatuses(ids);
+        }
+
+        Map<Long, DRecord.Status> statuses = new HashMap<>();
+        try {
+            // PHP encodes an empty array as [] instead of {}.
+            if (response instanceof Bindings) {
+                for (Map.Entry<String, Object> entry : ((Bindings) response).entrySet()) {
+                    statuses.put(Long.valueOf(entry.getKey()), DRecord.Status.valueOf((String) entry.getValue()));
+                }
+            }
+        } catch (IllegalArgumentException | ClassCastException e) {
+            throw new DSiteException("Unexpected JSON result.", e);
+        }
+        return statuses;
+    }
+
     @Override
     public String getDrupalVersion() throws DSiteException {
         Bindings data = getSiteInfo();
@@ -166,7 +274,7 @@ public class DServicesSite extends DSite implements DSiteExtended {
 
     private Bindings getSiteInfo() throws DSiteException {
         connect();
-        return services.request("computing/info.json", null, "POST", Bindings.class);
+        return services.hedgedRequest("computing/info.json", null, "POST", Bindings.class);
     }
 
     @Override
@@ -176,7 +284,7 @@ public class DServicesSite extends DSite implements DSiteExtended {
         params.put("name", name);
         params.put("default", defaultValue);
 
-        List<Object> list = (List<Object>) services.request("system/get_variable.json", params, "POST");
+        List list = services.hedgedRequest("system/get_variable.json", params, "POST", List.class);
         return list.get(0);
     }
 
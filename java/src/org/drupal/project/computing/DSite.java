@@ -4,6 +4,10 @@ import org.drupal.project.computing.exception.DNotFoundException;
 import org.drupal.project.computing.exception.DRuntimeException;
 import org.drupal.project.computing.exception.DSiteException;
 
+import java.net.HttpURLConnection;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -45,6 +49,27 @@ abstract public class DSite {
     abstract public void finishRecord(DRecord record) throws DSiteException;
 
 
+    /**
+     * Return the results of several records to Drupal. Sub-classes should finish all records in one call if possible.
+     *
+     * @param records the records to mark as finished and send back results.
+     * @throws DSiteException if any record can't be finished. Other records are still finished.
+     */
+    public void finishRecords(Collection<DRecord> records) throws DSiteException {
+        DSiteException error = null;
+        for (DRecord record : records) {
+            try {
+                finishRecord(record);
+            } catch (DSiteException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+
     /**
      * Save the updated record in the database.
      * @param record The computing record to be saved.
@@ -61,6 +86,82 @@ abstract public class DSite {
     abstract public void updateRecordField(DRecord record, String fieldName) throws DSiteException;
 
 
+    /**
+     * Renew the lease of records in "RUN" status by updating their "changed" field to the current time, so that
+     * releaseStaleRecords() doesn't take them back. This is called from the heartbeat thread while other threads are
+     * processing the records, so implementations must not change the DRecord objects. Sub-classes should touch all
+     * records in one call if possible.
+     *
+     * @param records the records being processed by the agent.
+     * @throws DSiteException
+     */
+    public void touchRecords(Collection<DRecord> records) throws DSiteException {
+        if (records.isEmpty()) {
+            return;
+        }
+        long now = getTimestamp();
+        for (DRecord record : records) {
+            // only the ID and the timestamp are sent.
+            DRecord touched = new DRecord();
+            touched.setId(record.getId());
+            touched.setChanged(now);
+            updateRecordField(touched, "changed");
+        }
+    }
+
+
+    /**
+     * Load the current status of records, e.g. to find out which running records are cancelled in Drupal. Sub-classes
+     * should load all records in one call if possible.
+     *
+     * @param ids IDs of the records.
+     * @return record ID => status. Records that don't exist anymore are not included.
+     * @throws DSiteException
+     */
+    public Map<Long, DRecord.Status> loadRecordStatuses(Collection<Long> ids) throws DSiteException {
+        Map<Long, DRecord.Status> statuses = new HashMap<>();
+        for (long id : ids) {
+            try {
+                statuses.put(id, loadRecord(id).getStatus());
+            } catch (DSiteException e) {
+                if (!isNotFound(e)) {
+                    throw e;
+                }
+                logger.fine("Record doesn't exist anymore: " + id);
+            }
+        }
+        return statuses;
+    }
+
+
+    /**
+     * Whether the exception thrown by loadRecord() means the record doesn't exist. Sub-classes set the error code of
+     * DSiteException to 404 in that case, as Drupal Services does.
+     *
+     * @param e the exception thrown by loadRecord().
+     * @return true if the record doesn't exist.
+     */
+    protected boolean isNotFound(DSiteException e) {
+        return e.getErrorCode() == HttpURLConnection.HTTP_NOT_FOUND;
+    }
+
+
+    /**
+     * Return records that are in "RUN" status but not touched for "lease" seconds back to "RDY" status, so that they
+     * can be claimed again. This recovers records claimed by agents that died before finishing them. Only DDrushSite
+     * supports it: agents using Services still send heartbeats, and rely on an agent with drush access to release
+     * their records.
+     *
+     * @param appName the Application name of the records.
+     * @param lease seconds since the last touchRecords() after which a record is considered abandoned.
+     * @return the number of records released.
+     * @throws DSiteException if the operation fails, or is not supported by the site access.
+     */
+    public int releaseStaleRecords(String appName, long lease) throws DSiteException {
+        throw new DSiteException("Releasing stale records is not supported by " + getClass().getSimpleName());
+    }
+
+
     /**
      * Save the new record Drupal using the data in the parameter.
      *
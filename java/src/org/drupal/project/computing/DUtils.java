@@ -1,10 +1,10 @@
 package org.drupal.project.computing;
 
 import com.google.gson.*;
+import com.google.gson.internal.LazilyParsedNumber;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import org.apache.commons.exec.CommandLine;
-import org.apache.commons.exec.DefaultExecutor;
-import org.apache.commons.exec.ExecuteWatchdog;
-import org.apache.commons.exec.PumpStreamHandler;
 import org.apache.commons.lang3.BooleanUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.JavaVersion;
@@ -21,6 +21,10 @@ import java.math.BigDecimal;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -51,6 +55,50 @@ public class DUtils {
     }
 
 
+    /**
+     * Create a ThreadFactory for the agent's background threads, which are daemon threads so that they don't prevent
+     * the agent from exiting.
+     *
+     * @param name prefix of the thread names, e.g. "dcomp-command" gives "dcomp-command-1", "dcomp-command-2", etc.
+     * @return the ThreadFactory object.
+     */
+    public ThreadFactory getDaemonThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+
+    /**
+     * Create an executor that runs each task in a new virtual thread, if the JVM supports virtual threads (Java 21+).
+     * Virtual threads are cheap to create and block, which suits commands waiting on drush, HTTP or JDBC. The agent is
+     * compiled for Java 7, so the API is called with reflection.
+     *
+     * @param name prefix of the thread names.
+     * @return the ExecutorService, or null if virtual threads are not supported.
+     */
+    public ExecutorService newVirtualThreadExecutor(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.fine("Virtual threads are not supported: " + e);
+            return null;
+        }
+    }
+
+
     /**
      * Try to locate file in default locations. Or throw exception if not found.
      *
@@ -156,7 +204,8 @@ public class DUtils {
     }
 
     /**
-     * This is the underlying System Exec entry
+     * This is the underlying System Exec entry. It waits for executeShellAsync(), and throws exception if the process
+     * fails or times out. If the current thread is interrupted, the process is killed.
      *
      * @param commandLine The command line to execute.
      * @param workingDir optional working directory. or null to use default.
@@ -166,60 +215,357 @@ public class DUtils {
      * @throws DSystemExecutionException
      */
     public byte[] executeShell(CommandLine commandLine, File workingDir, byte[] input, Charset charset) throws DSystemExecutionException {
-        DefaultExecutor executor = new DefaultExecutor();
-
-        // default exit value is 0. need to handle it if needed.
-        // see http://commons.apache.org/proper/commons-exec/tutorial.html
-        executor.setExitValue(0);
-
-        // handle timeout. default 2 minutes.
-        int timeout = new Integer(DConfig.loadDefault().getProperty("dcomp.exec.timeout", "120000"));
-        ExecuteWatchdog watchdog = new ExecuteWatchdog(timeout);
-        executor.setWatchdog(watchdog);
-
-        // set working dir
-        if (workingDir != null) {
-            executor.setWorkingDirectory(workingDir);
-        }
-
-        // set in/out/err stream.
-        ByteArrayInputStream in = ArrayUtils.isNotEmpty(input) ? new ByteArrayInputStream(input) : null;
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ByteArrayOutputStream err = new ByteArrayOutputStream();
-        executor.setStreamHandler(new PumpStreamHandler(out, err, in));
+        return executeShell(commandLine, workingDir, input, bytesParser, charset);
+    }
 
+    /**
+     * Execute the command line, and parse STDOUT while the process runs instead of buffering all of it, e.g. with
+     * getJsonParser(). See executeShell(CommandLine, File, byte[], Charset).
+     *
+     * @param commandLine The command line to execute.
+     * @param workingDir optional working directory. or null to use default.
+     * @param input input byte stream. or null.
+     * @param parser reads STDOUT.
+     * @param charset charset to log input and error messages.
+     * @return the parsed output.
+     * @throws DSystemExecutionException
+     */
+    public <T> T executeShell(CommandLine commandLine, File workingDir, byte[] input, StreamParser<T> parser, Charset charset) throws DSystemExecutionException {
         // log input.
         logger.finest("Shell command to run: " + commandLine.toString());
         if (ArrayUtils.isNotEmpty(input)) {
             logger.finest("Shell command input stream: " + new String(input, charset));
         }
 
-        // result handler.
-        // no need to use it because we don't mind blocking.
-        //DefaultExecuteResultHandler resultHandler = new DefaultExecuteResultHandler();
+        DFuture<DProcessResult> future = executeShellAsync(commandLine, workingDir, input, parser);
+        DProcessResult result;
+        try {
+            result = future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new DSystemExecutionException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof DSystemExecutionException ? (DSystemExecutionException) e.getCause() : new DSystemExecutionException(e.getCause());
+        }
+
+        // if there's any error, give it a chance to print error message before throwing exception.
+        if (ArrayUtils.isNotEmpty(result.getStderr())) {
+            logger.warning("Shell command error stream message: " + result.getStderr(charset));
+        }
+        if (!result.isSuccessful() && ArrayUtils.isNotEmpty(result.getStdout())) {
+            logger.finest("Shell command failed output: " + result.getStdout(charset));
+        }
+
+        // return parsed output.
+        return result.check().getParsed();
+    }
+
+    /**
+     * Start the command line and return right away. See executeShellAsync(CommandLine, File, byte[], StreamParser).
+     *
+     * @param commandLine The command line to execute.
+     * @param workingDir optional working directory. or null to use default.
+     * @param input input byte stream. or null.
+     * @return the future of the process results with all of STDOUT.
+     */
+    public DFuture<DProcessResult> executeShellAsync(CommandLine commandLine, File workingDir, byte[] input) {
+        return executeShellAsync(commandLine, workingDir, input, bytesParser);
+    }
 
+    /**
+     * Start the command line and return right away. STDOUT and STDERR are pumped by shared executor threads (virtual
+     * threads if supported by the JVM), and all timeouts ("dcomp.exec.timeout", default 2 minutes) are handled by one
+     * shared scheduler thread, so many processes could run at the same time without a watchdog thread each. Cancelling
+     * the future kills the process.
+     *
+     * Without virtual threads, each running process holds 2 pooled platform threads, or 3 if the input is larger than
+     * STDIN_INLINE_LIMIT: smaller input fits in the pipe buffer and is written by the calling thread, while larger input
+     * is written by a task of its own, in case the process writes STDOUT before reading all of STDIN.
+     *
+     * STDOUT is read by the parser while the process runs; only the parser decides what is kept in memory. STDERR is
+     * kept up to STDERR_LIMIT bytes, and the rest is discarded.
+     *
+     * Metrics: "exec.started", "exec.failed", "exec.timeout", "exec.spawn_micros", "exec.runtime_millis",
+     * "exec.stdin_bytes", "exec.stdout_bytes" and "exec.stderr_bytes".
+     *
+     * @param commandLine The command line to execute.
+     * @param workingDir optional working directory. or null to use default.
+     * @param input input byte stream. or null.
+     * @param parser reads STDOUT.
+     * @return the future of the process results, which fails with DSystemExecutionException if the process can't
+     *         start, the streams fail, or the parser fails on a successful process. Check the exit value with
+     *         DProcessResult.check().
+     */
+    public <T> DFuture<DProcessResult> executeShellAsync(final CommandLine commandLine, File workingDir, final byte[] input, final StreamParser<T> parser) {
+        final DMetrics metrics = DMetrics.getInstance();
+        final long startTime = System.nanoTime();
+        final Process process;
         try {
+            ProcessBuilder builder = new ProcessBuilder(commandLine.toStrings());
+            if (workingDir != null) {
+                builder.directory(workingDir);
+            }
+            process = builder.start();
+        } catch (IOException e) {
+            metrics.increment("exec.failed");
+            return DFuture.failed(new DSystemExecutionException(e));
+        }
+        metrics.increment("exec.started");
+        metrics.add("exec.spawn_micros", (System.nanoTime() - startTime) / 1000);
+
+        final DFuture<DProcessResult> result = new DFuture<>();
+        final AtomicBoolean timedOut = new AtomicBoolean(false);
+        final ScheduledFuture<?> timeout = getExecScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                timedOut.set(true);
+                metrics.increment("exec.timeout");
+                process.destroy();
+            }
+        }, getExecTimeout(), TimeUnit.MILLISECONDS);
+        result.addListener(new DFuture.Listener<DProcessResult>() {
+            @Override
+            public void onSuccess(DProcessResult processResult) {
+                timeout.cancel(false);
+            }
 
-            // execute the command line.
-            int exitValue = executor.execute(commandLine);
+            @Override
+            public void onFailure(Throwable failure) {
+                timeout.cancel(false);
+                process.destroy();
+            }
+        });
 
+        final ExecutorService executor = getExecExecutor();
+        try {
+            if (input == null || input.length <= STDIN_INLINE_LIMIT) {
+                writeInput(process, input);
+            } else {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeInput(process, input);
+                    }
+                });
+            }
+            final DFuture<byte[]> stderr = DFuture.submit(executor, new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    try (CountingInputStream err = new CountingInputStream(process.getErrorStream())) {
+                        byte[] bytes = readBounded(err, STDERR_LIMIT);
+                        metrics.add("exec.stderr_bytes", err.getCount());
+                        return bytes;
+                    }
+                }
+            });
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try (CountingInputStream stdout = new CountingInputStream(process.getInputStream())) {
+                        T parsed = null;
+                        Exception parseError = null;
+                        try {
+                            parsed = parser.parse(stdout);
+                        } catch (Exception e) {
+                            parseError = e;
+                        }
+                        byte[] err = new byte[0];
+                        try {
+                            // drain what the parser didn't read, so that the process doesn't block on a full pipe.
+                            stdout.drain();
+                            err = stderr.get();
+                        } catch (IOException | ExecutionException e) {
+                            // streams are closed when the process is killed.
+                            if (!timedOut.get()) {
+                                throw e;
+                            }
+                        }
+                        int exitValue = process.waitFor();
+                        long runtime = (System.nanoTime() - startTime) / 1000000;
+                        metrics.add("exec.runtime_millis", runtime);
+                        metrics.add("exec.stdout_bytes", stdout.getCount());
+                        if (exitValue != 0) {
+                            metrics.increment("exec.failed");
+                        } else if (parseError != null) {
+                            metrics.increment("exec.failed");
+                            DProcessResult processResult = new DProcessResult(commandLine.toString(), new byte[0], err, exitValue, timedOut.get(), runtime, null);
+                            result.fail(new DSystemExecutionException("Cannot parse output of command: " + commandLine, parseError, processResult));
+                            return;
+                        }
+                        byte[] bytes = parsed instanceof byte[] ? (byte[]) parsed : new byte[0];
+                        result.complete(new DProcessResult(commandLine.toString(), bytes, err, exitValue, timedOut.get(), runtime, parsed));
+                    } catch (IOException | ExecutionException e) {
+                        metrics.increment("exec.failed");
+                        result.fail(new DSystemExecutionException(e));
+                    } catch (InterruptedException e) {
+                        result.fail(new DSystemExecutionException(e));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.fail(new DSystemExecutionException(e));
+        }
+        return result;
+    }
+
+    /**
+     * Write STDIN of the process and close it.
+     */
+    private void writeInput(Process process, byte[] input) {
+        try (OutputStream stdin = process.getOutputStream()) {
+            if (ArrayUtils.isNotEmpty(input)) {
+                stdin.write(input);
+                DMetrics.getInstance().add("exec.stdin_bytes", input.length);
+            }
         } catch (IOException e) {
-            // note: this could also throw ExecuteException, which is a subclass of IOException.
-            // handle them using the same logic.
-            if (ArrayUtils.isNotEmpty(out.toByteArray())) {
-                logger.finest("Shell command failed output: " + new String(out.toByteArray(), charset));
+            // the process exited without reading all input, which is up to the process.
+            logger.finest("Cannot write shell command input stream: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Maximum bytes of STDERR kept for each shell process.
+     */
+    public static final int STDERR_LIMIT = 65536;
+
+    /**
+     * Maximum bytes of STDIN written by the thread starting the process. It's below the pipe buffer size of common
+     * platforms, so the write doesn't block even if the process hasn't started reading.
+     */
+    public static final int STDIN_INLINE_LIMIT = 4096;
+
+    /**
+     * Reads the STDOUT of a shell process while it runs, e.g. to parse JSON without buffering the whole output.
+     */
+    public interface StreamParser<T> {
+        T parse(InputStream stdout) throws IOException;
+    }
+
+    private final StreamParser<byte[]> bytesParser = new StreamParser<byte[]>() {
+        @Override
+        public byte[] parse(InputStream stdout) throws IOException {
+            return readBounded(stdout, Integer.MAX_VALUE);
+        }
+    };
+
+    private final StreamParser<Object> jsonParser = new StreamParser<Object>() {
+        @Override
+        public Object parse(InputStream stdout) throws IOException {
+            return Json.getInstance().fromJson(new InputStreamReader(stdout, Charset.defaultCharset()));
+        }
+    };
+
+    /**
+     * @return the parser that decodes JSON from STDOUT while it's read, see Json.fromJson(Reader).
+     */
+    public StreamParser<Object> getJsonParser() {
+        return jsonParser;
+    }
+
+    /**
+     * Read the stream to the end, but keep only the first "limit" bytes. The caller closes the stream.
+     */
+    private byte[] readBounded(InputStream input, int limit) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        long discarded = 0;
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            int keep = Math.max(0, Math.min(read, limit - output.size()));
+            output.write(buffer, 0, keep);
+            discarded += read - keep;
+        }
+        if (discarded > 0) {
+            output.write(("... (" + discarded + " more bytes)").getBytes());
+        }
+        return output.toByteArray();
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
             }
-            throw new DSystemExecutionException(e);
+            return b;
+        }
 
-        } finally {
-            // if there's any error, give it a chance to print error message in "finally" before throwing exception.
-            if (ArrayUtils.isNotEmpty(err.toByteArray())) {
-                logger.warning("Shell command error stream message: " + new String(err.toByteArray(), charset));
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
             }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
         }
 
-        // return output byte stream.
-        return out.toByteArray();
+        void drain() throws IOException {
+            byte[] buffer = new byte[8192];
+            while (read(buffer, 0, buffer.length) != -1) {
+                // discard.
+            }
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+
+    private volatile long execTimeout = -1;
+    private ScheduledThreadPoolExecutor execScheduler;
+    private ExecutorService execExecutor;
+
+    /**
+     * @return milliseconds before killing a shell process, from "dcomp.exec.timeout" read once.
+     */
+    public long getExecTimeout() {
+        if (execTimeout < 0) {
+            execTimeout = Long.parseLong(DConfig.loadDefault().getProperty("dcomp.exec.timeout", "120000").trim());
+        }
+        return execTimeout;
+    }
+
+    /**
+     * Override "dcomp.exec.timeout" for the shell processes started afterwards.
+     *
+     * @param timeout milliseconds before killing a shell process.
+     */
+    public void setExecTimeout(long timeout) {
+        assert timeout > 0;
+        execTimeout = timeout;
+    }
+
+    private synchronized ScheduledExecutorService getExecScheduler() {
+        if (execScheduler == null) {
+            execScheduler = new ScheduledThreadPoolExecutor(1, getDaemonThreadFactory("dcomp-exec-timeout"));
+            execScheduler.setRemoveOnCancelPolicy(true);
+        }
+        return execScheduler;
+    }
+
+    private synchronized ExecutorService getExecExecutor() {
+        if (execExecutor == null) {
+            execExecutor = newVirtualThreadExecutor("dcomp-exec");
+            if (execExecutor == null) {
+                execExecutor = Executors.newCachedThreadPool(getDaemonThreadFactory("dcomp-exec"));
+            }
+        }
+        return execExecutor;
     }
 
 
@@ -397,6 +743,66 @@ public class DUtils {
         }
 
 
+        /**
+         * Parse Json from the reader into the same objects as fromJson(String), token by token, without building the
+         * whole string or a JsonElement tree first.
+         *
+         * @param reader the json reader, e.g. STDOUT of drush.
+         * @return json object in Bindings usually, or null if the reader is empty.
+         */
+        public Object fromJson(Reader reader) throws JsonParseException {
+            JsonReader jsonReader = new JsonReader(reader);
+            jsonReader.setLenient(true);
+            try {
+                try {
+                    if (jsonReader.peek() == JsonToken.END_DOCUMENT) {
+                        return null;
+                    }
+                } catch (EOFException e) {
+                    // empty input.
+                    return null;
+                }
+                return readJson(jsonReader);
+            } catch (IOException | IllegalStateException | NumberFormatException e) {
+                throw new JsonParseException(e);
+            }
+        }
+
+        private Object readJson(JsonReader reader) throws IOException {
+            switch (reader.peek()) {
+                case NULL:
+                    reader.nextNull();
+                    return null;
+                case BOOLEAN:
+                    return reader.nextBoolean();
+                case NUMBER:
+                    // same as JsonPrimitive.getAsNumber() in fromJson(JsonElement).
+                    return new LazilyParsedNumber(reader.nextString());
+                case STRING:
+                    return reader.nextString();
+                case BEGIN_ARRAY:
+                    List<Object> list = new ArrayList<Object>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        list.add(readJson(reader));
+                    }
+                    reader.endArray();
+                    return list;
+                case BEGIN_OBJECT:
+                    Bindings bindings = new SimpleBindings();
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        bindings.put(name, readJson(reader));
+                    }
+                    reader.endObject();
+                    return bindings;
+                default:
+                    throw new JsonParseException("Unexpected JSON token: " + reader.peek());
+            }
+        }
+
+
         public <T> T fromJson(String json, Class<T> classOfT) throws JsonSyntaxException {
             if (StringUtils.isEmpty(json)) {
                 return null;
@@ -1,6 +1,7 @@
 package org.drupal.project.computing.common;
 
 import org.drupal.project.computing.DCommand;
+import org.drupal.project.computing.DCommandName;
 import org.drupal.project.computing.exception.DCommandExecutionException;
 
 import javax.script.Bindings;
@@ -8,6 +9,7 @@ import javax.script.Bindings;
 /**
  * A simple DCommand implementation that echos the "input" string into "output".
  */
+@DCommandName({"echo", "Echo"})
 public class EchoCommand extends DCommand {
 
     String pingString;
@@ -1,5 +1,7 @@
 package org.drupal.project.computing.exception;
 
+import org.drupal.project.computing.DProcessResult;
+
 /**
  * Throws when there's a problem executing shell command.
  */
@@ -18,4 +20,18 @@ public class DSystemExecutionException extends Exception {
     public DSystemExecutionException(Throwable throwable) {
         super(throwable);
     }
+
+    public DSystemExecutionException(String s, Throwable throwable, DProcessResult result) {
+        super(s, throwable);
+        this.result = result;
+    }
+
+    /**
+     * The results of the process if it exited, or null if it couldn't start or its streams failed.
+     */
+    private DProcessResult result = null;
+
+    public DProcessResult getResult() {
+        return result;
+    }
 }
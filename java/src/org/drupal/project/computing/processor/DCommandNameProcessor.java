@@ -0,0 +1,179 @@
+package org.drupal.project.computing.processor;
+
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * <p>Annotation processor that generates a DCommandProvider from all classes annotated with @DCommandName in one
+ * compilation. The generated class is named "GeneratedCommandProvider" in the package of the first annotated class
+ * (sorted by name), unless the compiler option "-Adcomp.command.provider=com.example.MyCommandProvider" is set. It is
+ * registered in META-INF/services so that DApplication can find it at runtime without any configuration.</p>
+ *
+ * <p>Mapping errors are reported as compile errors: annotated classes that are not public, concrete DCommand
+ * sub-classes with a public default constructor, and command names declared by more than one class.</p>
+ */
+@SupportedAnnotationTypes("org.drupal.project.computing.DCommandName")
+@SupportedOptions(DCommandNameProcessor.OPTION_PROVIDER)
+public class DCommandNameProcessor extends AbstractProcessor {
+
+    public static final String OPTION_PROVIDER = "dcomp.command.provider";
+
+    static final String ANNOTATION = "org.drupal.project.computing.DCommandName";
+    static final String COMMAND_CLASS = "org.drupal.project.computing.DCommand";
+    static final String PROVIDER_INTERFACE = "org.drupal.project.computing.DCommandProvider";
+
+    /**
+     * command name => fully qualified DCommand class name, collected over all rounds.
+     */
+    private final SortedMap<String, String> commands = new TreeMap<>();
+    private final SortedSet<String> commandClasses = new TreeSet<>();
+    private boolean generated = false;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement annotation = processingEnv.getElementUtils().getTypeElement(ANNOTATION);
+        if (annotation != null) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                collect((TypeElement) element, annotation);
+            }
+        }
+
+        if (roundEnv.processingOver() && !generated && !commands.isEmpty() && !roundEnv.errorRaised()) {
+            generated = true;
+            generate();
+        }
+        return true;
+    }
+
+    private void collect(TypeElement element, TypeElement annotation) {
+        Messager messager = processingEnv.getMessager();
+        String className = element.getQualifiedName().toString();
+        TypeMirror commandType = processingEnv.getElementUtils().getTypeElement(COMMAND_CLASS).asType();
+
+        if (element.getKind() != ElementKind.CLASS || !processingEnv.getTypeUtils().isAssignable(element.asType(), commandType)) {
+            messager.printMessage(Diagnostic.Kind.ERROR, "@DCommandName can only annotate DCommand sub-classes.", element);
+            return;
+        }
+        Set<Modifier> modifiers = element.getModifiers();
+        if (!modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.ABSTRACT)
+                || (element.getNestingKind() == NestingKind.MEMBER && !modifiers.contains(Modifier.STATIC))
+                || element.getNestingKind() == NestingKind.LOCAL || element.getNestingKind() == NestingKind.ANONYMOUS) {
+            messager.printMessage(Diagnostic.Kind.ERROR, "DCommand class needs to be public, concrete and top-level or static: " + className, element);
+            return;
+        }
+        boolean hasDefaultConstructor = false;
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(element.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PUBLIC)) {
+                hasDefaultConstructor = true;
+            }
+        }
+        if (!hasDefaultConstructor) {
+            messager.printMessage(Diagnostic.Kind.ERROR, "DCommand class needs a public default constructor: " + className, element);
+            return;
+        }
+
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (!mirror.getAnnotationType().asElement().equals(annotation)) {
+                continue;
+            }
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+                Object value = entry.getValue().getValue();
+                List<?> names = (value instanceof List) ? (List<?>) value : Collections.singletonList(entry.getValue());
+                for (Object name : names) {
+                    String commandName = (String) ((AnnotationValue) name).getValue();
+                    String existing = commands.get(commandName);
+                    if (commandName.trim().isEmpty()) {
+                        messager.printMessage(Diagnostic.Kind.ERROR, "Command name cannot be blank.", element, mirror);
+                    } else if (existing != null && !existing.equals(className)) {
+                        messager.printMessage(Diagnostic.Kind.ERROR, "Command '" + commandName + "' is already declared by " + existing, element, mirror);
+                    } else {
+                        commands.put(commandName, className);
+                        commandClasses.add(className);
+                    }
+                }
+            }
+        }
+    }
+
+    private void generate() {
+        String providerName = processingEnv.getOptions().get(OPTION_PROVIDER);
+        if (providerName == null || providerName.trim().isEmpty()) {
+            String firstClass = commandClasses.first();
+            PackageElement firstPackage = processingEnv.getElementUtils().getPackageOf(
+                    processingEnv.getElementUtils().getTypeElement(firstClass));
+            providerName = firstPackage.isUnnamed() ? "GeneratedCommandProvider" : firstPackage.getQualifiedName() + ".GeneratedCommandProvider";
+        }
+        int lastDot = providerName.lastIndexOf('.');
+        String packageName = lastDot < 0 ? null : providerName.substring(0, lastDot);
+        String simpleName = providerName.substring(lastDot + 1);
+
+        try {
+            JavaFileObject sourceFile = processingEnv.getFiler().createSourceFile(providerName);
+            try (Writer writer = sourceFile.openWriter()) {
+                writer.write(generateSource(packageName, simpleName));
+            }
+            FileObject serviceFile = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", "META-INF/services/" + PROVIDER_INTERFACE);
+            try (Writer writer = serviceFile.openWriter()) {
+                writer.write(providerName + "\n");
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot generate " + providerName + ": " + e.getMessage());
+        }
+    }
+
+    String generateSource(String packageName, String simpleName) {
+        StringBuilder source = new StringBuilder();
+        if (packageName != null) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("import org.drupal.project.computing.DCommand;\n");
+        source.append("import org.drupal.project.computing.DCommandFactory;\n");
+        source.append("import org.drupal.project.computing.DCommandProvider;\n\n");
+        source.append("import java.util.HashMap;\n");
+        source.append("import java.util.Map;\n\n");
+        source.append("/**\n * Generated by DCommandNameProcessor from @DCommandName annotations. Do not edit.\n */\n");
+        source.append("public final class ").append(simpleName).append(" implements DCommandProvider {\n\n");
+        source.append("    @Override\n");
+        source.append("    public Map<String, DCommandFactory> getCommandFactories() {\n");
+        source.append("        Map<String, DCommandFactory> factories = new HashMap<String, DCommandFactory>();\n");
+
+        Map<String, String> factoryVariables = new HashMap<>();
+        for (String className : commandClasses) {
+            String variable = "factory" + factoryVariables.size();
+            factoryVariables.put(className, variable);
+            source.append("        DCommandFactory ").append(variable).append(" = new DCommandFactory.Direct(").append(className).append(".class) {\n");
+            source.append("            @Override\n");
+            source.append("            public DCommand newInstance() {\n");
+            source.append("                return new ").append(className).append("();\n");
+            source.append("            }\n");
+            source.append("        };\n");
+        }
+        for (Map.Entry<String, String> entry : commands.entrySet()) {
+            source.append("        factories.put(\"").append(escape(entry.getKey())).append("\", ")
+                    .append(factoryVariables.get(entry.getValue())).append(");\n");
+        }
+        source.append("        return factories;\n");
+        source.append("    }\n");
+        source.append("}\n");
+        return source.toString();
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
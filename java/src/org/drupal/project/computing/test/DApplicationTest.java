@@ -1,16 +1,20 @@
 package org.drupal.project.computing.test;
 
 import org.drupal.project.computing.DApplication;
+import org.drupal.project.computing.DCommand;
 import org.drupal.project.computing.DRecord;
 import org.drupal.project.computing.DSite;
 import org.drupal.project.computing.DUtils;
 import org.drupal.project.computing.common.ComputingApplication;
+import org.drupal.project.computing.exception.DCommandExecutionException;
 import org.drupal.project.computing.exception.DSiteException;
 import org.junit.Before;
 import org.junit.Test;
 
 import javax.script.Bindings;
 import javax.script.SimpleBindings;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 import static junit.framework.Assert.assertEquals;
@@ -90,4 +94,55 @@ public class DApplicationTest {
         assertTrue(!r2.isNew());
         assertEquals("hello", r2.getOutput().get("pong"));
     }
+
+    /**
+     * A record that runs past its "_timeout" is aborted, and its command is interrupted. Runs without a Drupal site.
+     */
+    @Test
+    public void testExecutionTimeout() throws Exception {
+        DApplication app = new DApplication("computing", new DMemorySite()) {
+            @Override
+            protected Properties declareCommandMapping() {
+                Properties mapping = new Properties();
+                mapping.put("Sleep", SleepCommand.class.getName());
+                return mapping;
+            }
+        };
+        Bindings input = new SimpleBindings();
+        input.put("_timeout", 1);
+        DRecord r = new DRecord("computing", "Sleep", "JUnitTest", input);
+        int interrupted = SleepCommand.interrupted.get();
+
+        long start = System.currentTimeMillis();
+        DRecord r2 = app.runOnce(r);
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals(DRecord.Status.ABD, r2.getStatus());
+        assertTrue(r2.getMessage().contains("1 seconds"));
+
+        // the command thread is interrupted instead of sleeping on.
+        for (int i = 0; i < 50 && SleepCommand.interrupted.get() == interrupted; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(interrupted + 1, SleepCommand.interrupted.get());
+    }
+
+    public static class SleepCommand extends DCommand {
+        /**
+         * Number of times a SleepCommand was interrupted.
+         */
+        static final AtomicInteger interrupted = new AtomicInteger();
+
+        @Override
+        public void prepare(Bindings input) throws IllegalArgumentException {}
+
+        @Override
+        public void execute() throws DCommandExecutionException {
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException e) {
+                interrupted.incrementAndGet();
+                throw new DCommandExecutionException("Interrupted.", e);
+            }
+        }
+    }
 }
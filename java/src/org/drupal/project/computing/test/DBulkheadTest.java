@@ -0,0 +1,147 @@
+package org.drupal.project.computing.test;
+
+import org.drupal.project.computing.DBulkhead;
+import org.drupal.project.computing.DConfig;
+import org.drupal.project.computing.DRecord;
+import org.junit.Test;
+
+import javax.script.Bindings;
+import javax.script.SimpleBindings;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Test per-command execution pools.
+ */
+public class DBulkheadTest {
+
+    private long nextId = 1;
+
+    private DRecord createRecord(String command) {
+        Bindings bindings = new SimpleBindings();
+        bindings.put("id", nextId++);
+        bindings.put("application", "computing");
+        bindings.put("command", command);
+        return DRecord.fromBindings(bindings);
+    }
+
+    private Map<String, DBulkhead> loadBulkheads() {
+        Properties settings = new Properties();
+        settings.setProperty("dcomp.pool.heavy.commands", "Render, Analyze");
+        settings.setProperty("dcomp.pool.heavy.threads", "1");
+        settings.setProperty("dcomp.pool.heavy.queue", "2");
+        settings.setProperty("dcomp.pool.huge.commands", "Simulate");
+        settings.setProperty("dcomp.pool.huge.threads", "4");
+        settings.setProperty("dcomp.pool.huge.memory", String.valueOf(Long.MAX_VALUE / 8));
+        return DBulkhead.loadAll(settings, new DConfig(new Properties()), 3, 5);
+    }
+
+    @Test
+    public void testLoad() {
+        Map<String, DBulkhead> bulkheads = loadBulkheads();
+        assertEquals(3, bulkheads.size());
+
+        DBulkhead heavy = DBulkhead.route(bulkheads, "Analyze");
+        assertEquals("heavy", heavy.getName());
+        assertEquals(1, heavy.getThreads());
+        assertEquals(2, heavy.getQueueSize());
+
+        DBulkhead defaultPool = DBulkhead.route(bulkheads, "Echo");
+        assertEquals(DBulkhead.DEFAULT, defaultPool.getName());
+        assertEquals(3, defaultPool.getThreads());
+        assertEquals(5, defaultPool.getQueueSize());
+
+        // memory hint is too large for the heap: use 1 thread only.
+        assertEquals(1, DBulkhead.route(bulkheads, "Simulate").getThreads());
+    }
+
+    @Test
+    public void testIsolation() throws InterruptedException {
+        Map<String, DBulkhead> bulkheads = loadBulkheads();
+        for (DBulkhead bulkhead : bulkheads.values()) {
+            bulkhead.start();
+        }
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch echoed = new CountDownLatch(5);
+        DBulkhead.Handler handler = new DBulkhead.Handler() {
+            @Override
+            public void handle(DRecord record) {
+                if (record.getCommand().equals("Render")) {
+                    try {
+                        blocked.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else {
+                    echoed.countDown();
+                }
+            }
+        };
+
+        // a burst of heavy records fills the heavy pool only.
+        DBulkhead heavy = DBulkhead.route(bulkheads, "Render");
+        for (int i = 0; i < 3; i++) {
+            heavy.acquire();
+            heavy.submit(createRecord("Render"), handler);
+        }
+        DBulkhead defaultPool = DBulkhead.route(bulkheads, "Echo");
+        for (int i = 0; i < 5; i++) {
+            defaultPool.acquire();
+            defaultPool.submit(createRecord("Echo"), handler);
+        }
+        assertTrue(echoed.await(10, TimeUnit.SECONDS));
+
+        blocked.countDown();
+        for (DBulkhead bulkhead : bulkheads.values()) {
+            bulkhead.shutdown();
+        }
+    }
+
+    @Test
+    public void testVirtual() throws InterruptedException {
+        Properties properties = new Properties();
+        properties.setProperty("dcomp.processing.executor", "virtual");
+        Properties settings = new Properties();
+        settings.setProperty("dcomp.pool.heavy.commands", "Render");
+        settings.setProperty("dcomp.pool.heavy.executor", "platform");
+        Map<String, DBulkhead> bulkheads = DBulkhead.loadAll(settings, new DConfig(properties), 1000, 0);
+
+        DBulkhead defaultPool = bulkheads.get(DBulkhead.DEFAULT);
+        assertTrue(defaultPool.isVirtual());
+        assertFalse(DBulkhead.route(bulkheads, "Render").isVirtual());
+        // CPU-bound commands go to the platform "cpu" pool, unless assigned to a pool.
+        DBulkhead cpu = DBulkhead.route(bulkheads, "Fibonacci", true);
+        assertEquals(DBulkhead.CPU, cpu.getName());
+        assertFalse(cpu.isVirtual());
+        assertEquals(Runtime.getRuntime().availableProcessors(), cpu.getThreads());
+        assertEquals("heavy", DBulkhead.route(bulkheads, "Render", true).getName());
+
+        // many blocking records are processed at the same time, on virtual threads if the JVM supports them.
+        final CountDownLatch started = new CountDownLatch(200);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        defaultPool.start();
+        for (int i = 0; i < 200; i++) {
+            defaultPool.acquire();
+            defaultPool.submit(createRecord("Echo"), new DBulkhead.Handler() {
+                @Override
+                public void handle(DRecord record) {
+                    started.countDown();
+                    try {
+                        blocked.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        blocked.countDown();
+        defaultPool.shutdown();
+    }
+}
@@ -0,0 +1,91 @@
+package org.drupal.project.computing.test;
+
+import org.drupal.project.computing.DCancellationWatcher;
+import org.drupal.project.computing.DRecord;
+import org.drupal.project.computing.exception.DNotFoundException;
+import org.drupal.project.computing.exception.DSiteException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Test cancelling commands of records aborted in Drupal.
+ */
+public class DCancellationWatcherTest {
+
+    private DMemorySite site;
+    private DCancellationWatcher watcher;
+
+    @Before
+    public void setUp() throws DSiteException {
+        site = new DMemorySite();
+        for (int i = 0; i < 2; i++) {
+            site.createRecord(new DRecord("computing", "Sleep", "UnitTest Sleep Command", null));
+        }
+        watcher = new DCancellationWatcher(site, 1);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final DRecord cancelled = site.claimRecord("computing");
+        final DRecord running = site.claimRecord("computing");
+        final DApplicationTest.SleepCommand command = new DApplicationTest.SleepCommand();
+        final CountDownLatch watching = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final AtomicBoolean unwatched = new AtomicBoolean();
+
+        Thread worker = new Thread() {
+            @Override
+            public void run() {
+                watcher.watch(cancelled, command);
+                watching.countDown();
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+                unwatched.set(watcher.unwatch(cancelled));
+            }
+        };
+        worker.start();
+        watching.await();
+        watcher.watch(running, new DApplicationTest.SleepCommand());
+
+        // an editor aborts the first record in Drupal.
+        DRecord aborted = site.getRecord(cancelled.getId());
+        aborted.setStatus(DRecord.Status.ABD);
+        site.updateRecord(aborted);
+
+        // statuses of both records are loaded in one call.
+        watcher.poll();
+        assertEquals(1, site.getCalls("loadRecordStatuses"));
+        worker.join(TimeUnit.SECONDS.toMillis(10));
+        assertTrue(interrupted.get());
+        assertTrue(unwatched.get());
+        assertTrue(command.isCancelled());
+
+        assertTrue(watcher.isCancelled(cancelled));
+        assertFalse(watcher.isCancelled(cancelled));
+        assertFalse(watcher.unwatch(running));
+        assertFalse(watcher.isCancelled(running));
+    }
+
+    @Test
+    public void testDeleted() throws DSiteException, DNotFoundException {
+        DRecord record = site.claimRecord("computing");
+        watcher.watch(record, new DApplicationTest.SleepCommand());
+        site.deleteRecord(record.getId());
+        watcher.poll();
+        assertTrue(watcher.unwatch(record));
+        // the interrupt flag set by the watcher is cleared.
+        assertFalse(Thread.interrupted());
+        assertTrue(watcher.isCancelled(record));
+    }
+}
@@ -0,0 +1,77 @@
+package org.drupal.project.computing.test;
+
+import org.drupal.project.computing.processor.DCommandNameProcessor;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.tools.*;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DCommandNameProcessorTest {
+
+    private File workDir;
+
+    @Before
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("dcomp-processor").toFile();
+    }
+
+    private boolean compile(String className, String source) throws IOException {
+        File sourceFile = new File(workDir, className + ".java");
+        try (FileWriter writer = new FileWriter(sourceFile)) {
+            writer.write(source);
+        }
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertNotNull("Tests need to run with JDK.", compiler);
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        // the processor is found with META-INF/services on the classpath, as it would be in computing.jar.
+        List<String> options = Arrays.asList(
+                "-classpath", System.getProperty("java.class.path"),
+                "-d", workDir.getPath(), "-s", workDir.getPath(),
+                "-A" + DCommandNameProcessor.OPTION_PROVIDER + "=test.TestCommandProvider");
+        boolean success = compiler.getTask(null, fileManager, diagnostics, options, null,
+                fileManager.getJavaFileObjects(sourceFile)).call();
+        for (Diagnostic diagnostic : diagnostics.getDiagnostics()) {
+            System.out.println(diagnostic);
+        }
+        fileManager.close();
+        return success;
+    }
+
+    @Test
+    public void testGenerate() throws IOException {
+        assertTrue(compile("GoodCommand", "package cmd;\n" +
+                "import org.drupal.project.computing.*;\n" +
+                "@DCommandName({\"good\", \"Good\"})\n" +
+                "public class GoodCommand extends org.drupal.project.computing.common.EchoCommand {}\n"));
+
+        assertTrue(new File(workDir, "test/TestCommandProvider.java").exists());
+        assertTrue(new File(workDir, "test/TestCommandProvider.class").exists());
+        String services = new String(Files.readAllBytes(new File(workDir, "META-INF/services/org.drupal.project.computing.DCommandProvider").toPath()));
+        assertEquals("test.TestCommandProvider", services.trim());
+    }
+
+    @Test
+    public void testErrors() throws IOException {
+        // no public default constructor.
+        assertFalse(compile("BadCommand", "import org.drupal.project.computing.*;\n" +
+                "@DCommandName(\"bad\")\n" +
+                "public class BadCommand extends org.drupal.project.computing.common.EchoCommand {\n" +
+                "    public BadCommand(String s) {}\n" +
+                "}\n"));
+
+        // not a DCommand.
+        assertFalse(compile("NotCommand", "import org.drupal.project.computing.*;\n" +
+                "@DCommandName(\"bad\")\n" +
+                "public class NotCommand {}\n"));
+    }
+}
@@ -0,0 +1,68 @@
+package org.drupal.project.computing.test;
+
+import org.drupal.project.computing.DCommand;
+import org.drupal.project.computing.DCommandFactory;
+import org.drupal.project.computing.DCommandRegistry;
+import org.drupal.project.computing.common.EchoCommand;
+import org.junit.Test;
+
+import javax.script.SimpleBindings;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class DCommandRegistryTest {
+
+    public static class ResettableEchoCommand extends EchoCommand {
+        @Override
+        public boolean isResettable() {
+            return true;
+        }
+    }
+
+    @Test
+    public void testResolve() throws Exception {
+        Properties mapping = new Properties();
+        mapping.put("echo", "org.drupal.project.computing.common.EchoCommand");
+        mapping.put("broken", "org.drupal.project.computing.common.NoSuchCommand");
+        mapping.put("notcommand", "java.lang.String");
+        DCommandRegistry registry = new DCommandRegistry(mapping);
+
+        assertEquals(1, registry.getFactories().size());
+        assertEquals(2, registry.getErrors().size());
+        assertTrue(registry.getFactory("echo").newInstance() instanceof EchoCommand);
+
+        // class names work as command names too.
+        DCommandFactory factory = registry.getFactory("org.drupal.project.computing.common.EchoCommand");
+        assertSame(factory, registry.getFactory("org.drupal.project.computing.common.EchoCommand"));
+
+        for (String commandName : new String[] {"broken", "notcommand", "Unknown", "Unknown"}) {
+            try {
+                registry.getFactory(commandName);
+                fail("Expected exception for command: " + commandName);
+            } catch (ClassNotFoundException e) {
+                assertTrue(true);
+            }
+        }
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        DCommandFactory echoFactory = new DCommandFactory(EchoCommand.class);
+        DCommand c1 = echoFactory.acquire();
+        echoFactory.release(c1);
+        assertNotSame(c1, echoFactory.acquire());
+
+        DCommandFactory resettableFactory = new DCommandFactory(ResettableEchoCommand.class);
+        DCommand c2 = resettableFactory.acquire();
+        c2.prepare(new SimpleBindings());
+        c2.execute();
+        assertEquals("Echo successful.", c2.getMessage());
+        resettableFactory.release(c2);
+
+        DCommand c3 = resettableFactory.acquire();
+        assertSame(c2, c3);
+        assertEquals("", c3.getMessage());
+        assertTrue(c3.getResult().isEmpty());
+    }
+}
@@ -0,0 +1,230 @@
+package org.drupal.project.computing.test;
+
+import org.drupal.project.computing.DDatabase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test DDatabase with an embedded SQLite database.
+ */
+public class DDatabaseTest {
+
+    private File dbFile;
+    private DDatabase database;
+
+    @Before
+    public void setUp() throws IOException, SQLException {
+        dbFile = Files.createTempFile("dcomp-db", ".sqlite").toFile();
+        Properties properties = new Properties();
+        // readers and the writer use different connections.
+        properties.setProperty("journal_mode", "WAL");
+        database = new DDatabase("jdbc:sqlite:" + dbFile.getPath(), properties);
+        try (Statement statement = database.getConnection().createStatement()) {
+            statement.execute("CREATE TABLE result (id INTEGER PRIMARY KEY, value INTEGER CHECK (value >= 0), label TEXT)");
+        }
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+        dbFile.delete();
+    }
+
+    private long count(String sql) throws SQLException {
+        try (DDatabase.Cursor cursor = database.query(sql)) {
+            return cursor.next().getLong(1);
+        }
+    }
+
+    @Test
+    public void testBulkInsert() throws SQLException {
+        database.setBatchSize(7);
+        database.setRowsPerStatement(3);
+        // 20 rows: 2 flushes of 2 full statements and 1 remainder row, and 6 rows at close.
+        try (DDatabase.BulkWriter writer = database.insert("result", "id", "value", "label")) {
+            for (int i = 1; i <= 20; i++) {
+                writer.add(i, i * 10, "row " + i);
+                if (i == 7) {
+                    assertEquals(7, writer.getWritten());
+                }
+            }
+            assertEquals(14, writer.getWritten());
+        }
+        assertEquals(20, count("SELECT COUNT(*) FROM result"));
+        assertEquals(2100, count("SELECT SUM(value) FROM result"));
+    }
+
+    @Test
+    public void testCommitSize() throws SQLException {
+        database.setBatchSize(4);
+        database.setRowsPerStatement(2);
+        database.setCommitSize(8);
+        try (DDatabase.BulkWriter writer = database.insert("result", "id", "value")) {
+            for (int i = 1; i <= 10; i++) {
+                writer.add(i, i);
+            }
+        }
+        assertEquals(10, count("SELECT COUNT(*) FROM result"));
+        assertTrue(database.getConnection().getAutoCommit());
+    }
+
+    @Test
+    public void testUpsert() throws SQLException {
+        database.setRowsPerStatement(2);
+        try (DDatabase.BulkWriter writer = database.insert("result", "id", "value", "label")) {
+            writer.add(1, 1, "one");
+            writer.add(2, 2, "two");
+        }
+        try (DDatabase.BulkWriter writer = database.upsert("result", new String[]{"id"}, "id", "value", "label")) {
+            writer.add(2, 20, "two again");
+            writer.add(3, 30, "three");
+            writer.add(4, 40, "four");
+        }
+        assertEquals(4, count("SELECT COUNT(*) FROM result"));
+        assertEquals(20, count("SELECT value FROM result WHERE id = 2"));
+        assertEquals(1, count("SELECT value FROM result WHERE id = 1"));
+
+        // unsupported databases fail right away.
+        DDatabase other = new DDatabase("jdbc:h2:mem:test", new Properties());
+        try {
+            other.upsert("result", new String[]{"id"}, "id", "value");
+            fail("Upsert should not be supported.");
+        } catch (SQLFeatureNotSupportedException e) {
+            assertTrue(true);
+        }
+    }
+
+    @Test
+    public void testFailedFlush() throws SQLException {
+        database.setBatchSize(5);
+        database.setRowsPerStatement(2);
+        DDatabase.BulkWriter writer = database.insert("result", "id", "value");
+        for (int i = 1; i <= 4; i++) {
+            writer.add(i, i);
+        }
+        try {
+            // the remainder statement violates the CHECK constraint.
+            writer.add(5, -1);
+            fail("Flush should fail.");
+        } catch (SQLException e) {
+            assertEquals(4, writer.getWritten());
+        }
+        // rows written by the full statements are not sent again.
+        writer.close();
+        assertEquals(4, count("SELECT COUNT(*) FROM result"));
+        try {
+            writer.add(6, 6);
+            fail("Writer is closed.");
+        } catch (IllegalStateException e) {
+            assertTrue(true);
+        }
+    }
+
+    @Test
+    public void testReadWhileWriting() throws SQLException {
+        database.setFetchSize(3);
+        database.setBatchSize(2);
+        database.setRowsPerStatement(2);
+        database.setCommitSize(2);
+        try (DDatabase.BulkWriter writer = database.insert("result", "id", "value")) {
+            for (int i = 1; i <= 10; i++) {
+                writer.add(i, i);
+            }
+        }
+
+        // stream rows and write back results: writer commits don't close the cursor.
+        int read = 0;
+        try (DDatabase.Cursor cursor = database.query("SELECT id, value FROM result WHERE id <= 10 ORDER BY id");
+             DDatabase.BulkWriter writer = database.insert("result", "id", "value")) {
+            for (DDatabase.Row row : cursor) {
+                writer.add(row.getLong(1) + 100, row.getLong(2) * 2);
+                read++;
+            }
+        }
+        assertEquals(10, read);
+        assertEquals(20, count("SELECT COUNT(*) FROM result"));
+        assertEquals(110, count("SELECT SUM(value) FROM result WHERE id > 100"));
+    }
+
+    /**
+     * Read every accessor of every row, so that direct and read-ahead cursors could be compared.
+     */
+    private List<String> readAll(String sql) throws SQLException {
+        List<String> rows = new ArrayList<>();
+        try (DDatabase.Cursor cursor = database.query(sql)) {
+            for (DDatabase.Row row : cursor) {
+                StringBuilder values = new StringBuilder();
+                for (int i = 1; i <= 3; i++) {
+                    values.append(row.getLong(i)).append(',').append(row.getInt(i)).append(',')
+                            .append(row.getDouble(i)).append(',').append(row.getBoolean(i)).append(',')
+                            .append(row.getString(i)).append(',').append(row.wasNull()).append(';');
+                }
+                rows.add(values.toString());
+            }
+        }
+        return rows;
+    }
+
+    @Test
+    public void testCursor() throws SQLException {
+        try (DDatabase.BulkWriter writer = database.insert("result", "id", "value", "label")) {
+            writer.add(1, 0, "42");
+            writer.add(2, 1, " 7 ");
+            writer.add(3, 5, null);
+            writer.add(4, null, "-3.5");
+            writer.add(5, 9, "12");
+        }
+        String sql = "SELECT id, value, label FROM result ORDER BY id";
+        database.setFetchSize(2);
+        List<String> direct = readAll(sql);
+        assertEquals(5, direct.size());
+        assertTrue(direct.get(0).contains("0,0,0.0,false,0,false;"));
+        assertTrue(direct.get(1).contains("1,1,1.0,true,1,false;"));
+        assertTrue(direct.get(3).contains("0,0,0.0,false,null,true;"));
+
+        // accessors convert values read ahead the same way.
+        database.setReadAhead(2);
+        assertEquals(direct, readAll(sql));
+        database.setReadAhead(1);
+        database.setFetchSize(10);
+        assertEquals(direct, readAll(sql));
+    }
+
+    @Test
+    public void testCloseReadAhead() throws SQLException, InterruptedException {
+        try (DDatabase.BulkWriter writer = database.insert("result", "id", "value")) {
+            for (int i = 1; i <= 100; i++) {
+                writer.add(i, i);
+            }
+        }
+        database.setFetchSize(3);
+        database.setReadAhead(2);
+        // stop early while the reader is blocked on a full queue.
+        for (int n = 0; n < 10; n++) {
+            try (DDatabase.Cursor cursor = database.query("SELECT id FROM result ORDER BY id")) {
+                for (int i = 1; i <= n; i++) {
+                    assertEquals(i, cursor.next().getLong(1));
+                }
+                Thread.sleep(n % 3);
+            }
+        }
+        // the reader is gone when close() returns.
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName().equals("dcomp-db-reader"));
+        }
+        assertEquals(100, count("SELECT COUNT(*) FROM result"));
+    }
+}
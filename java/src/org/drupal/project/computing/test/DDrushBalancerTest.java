@@ -0,0 +1,182 @@
+package org.drupal.project.computing.test;
+
+import org.drupal.project.computing.DDrush;
+import org.drupal.project.computing.DDrushBalancer;
+import org.drupal.project.computing.exception.DSiteException;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Test balancing drush calls across site aliases.
+ */
+public class DDrushBalancerTest {
+
+    @Test
+    public void testLeastOutstanding() {
+        DDrushBalancer balancer = new DDrushBalancer(DDrushBalancer.parseAliases("@web1, @web2,@web3"), 3, 1000);
+        DDrushBalancer.Call a1 = balancer.acquire();
+        DDrushBalancer.Call a2 = balancer.acquire();
+        DDrushBalancer.Call a3 = balancer.acquire();
+        // each alias gets one outstanding call.
+        assertFalse(a1.getName().equals(a2.getName()) || a2.getName().equals(a3.getName()) || a1.getName().equals(a3.getName()));
+
+        // the alias freed first gets the next call.
+        balancer.release(a2, true, 1000000);
+        assertEquals(a2.getName(), balancer.acquire().getName());
+    }
+
+    @Test
+    public void testLatency() {
+        DDrushBalancer balancer = new DDrushBalancer(Arrays.asList("@web1", "@web2"), 3, 1000);
+        DDrushBalancer.Call a1 = balancer.acquire();
+        DDrushBalancer.Call a2 = balancer.acquire();
+        balancer.release(a1, true, a1.getName().equals("@web1") ? 500000000L : 5000000L);
+        balancer.release(a2, true, a2.getName().equals("@web1") ? 500000000L : 5000000L);
+        // both idle: the faster alias is used.
+        for (int i = 0; i < 4; i++) {
+            DDrushBalancer.Call alias = balancer.acquire();
+            assertEquals("@web2", alias.getName());
+            balancer.release(alias, true, 5000000L);
+        }
+    }
+
+    @Test
+    public void testEjection() throws Exception {
+        DDrushBalancer balancer = new DDrushBalancer(Arrays.asList("@web1", "@web2"), 2, 200);
+        for (int i = 0; i < 10 && balancer.getHealthy().size() == 2; i++) {
+            DDrushBalancer.Call alias = balancer.acquire();
+            balancer.release(alias, !alias.getName().equals("@web1"), 1000000);
+        }
+        assertEquals(Arrays.asList("@web2"), balancer.getHealthy());
+
+        // calls go to the healthy alias while web1 is ejected.
+        for (int i = 0; i < 3; i++) {
+            DDrushBalancer.Call alias = balancer.acquire();
+            assertEquals("@web2", alias.getName());
+            balancer.release(alias, true, 1000000);
+        }
+
+        // after the eject time, a failed probe ejects web1 again.
+        Thread.sleep(250);
+        DDrushBalancer.Call probe = balancer.acquire();
+        assertEquals("@web1", probe.getName());
+        // no other call goes to web1 while probing.
+        DDrushBalancer.Call other = balancer.acquire();
+        assertEquals("@web2", other.getName());
+        balancer.release(other, true, 1000000);
+        balancer.release(probe, false, 1000000);
+        assertEquals(Arrays.asList("@web2"), balancer.getHealthy());
+
+        // a successful probe re-admits web1.
+        Thread.sleep(250);
+        probe = balancer.acquire();
+        assertEquals("@web1", probe.getName());
+        balancer.release(probe, true, 1000000);
+        assertEquals(Arrays.asList("@web1", "@web2"), balancer.getHealthy());
+    }
+
+    @Test
+    public void testAllEjected() {
+        DDrushBalancer balancer = new DDrushBalancer(Arrays.asList("@web1", "@web2"), 1, 60000);
+        DDrushBalancer.Call a1 = balancer.acquire();
+        DDrushBalancer.Call a2 = balancer.acquire();
+        balancer.release(a1, false, 1000000);
+        balancer.release(a2, false, 1000000);
+        assertTrue(balancer.getHealthy().isEmpty());
+        // still returns an alias instead of failing.
+        assertEquals(a1.getName(), balancer.acquire().getName());
+
+        // a single alias is never ejected.
+        balancer = new DDrushBalancer(Arrays.asList("@self"), 1, 60000);
+        DDrushBalancer.Call alias = balancer.acquire();
+        balancer.release(alias, false, 1000000);
+        assertEquals(Arrays.asList("@self"), balancer.getHealthy());
+    }
+
+    @Test
+    public void testProbe() throws Exception {
+        DDrushBalancer balancer = new DDrushBalancer(Arrays.asList("@web1", "@web2"), 1, 200);
+        DDrushBalancer.Call a1 = balancer.acquire();
+        DDrushBalancer.Call a2 = balancer.acquire();
+        DDrushBalancer.Call slow = a1.getName().equals("@web1") ? a1 : a2;
+        DDrushBalancer.Call other = (slow == a1) ? a2 : a1;
+        DDrushBalancer.Call failed = balancer.acquire();
+        while (!failed.getName().equals("@web1")) {
+            balancer.release(failed, true, 1000000);
+            failed = balancer.acquire();
+        }
+        balancer.release(failed, false, 1000000);
+        // web2 is slow and busy, so that web1 gets the next call when it's available again.
+        balancer.release(other, true, 500000000L);
+        DDrushBalancer.Call busy = balancer.acquire();
+        assertEquals("@web2", busy.getName());
+        assertEquals(Arrays.asList("@web2"), balancer.getHealthy());
+
+        Thread.sleep(250);
+        DDrushBalancer.Call probe = balancer.acquire();
+        assertEquals("@web1", probe.getName());
+        assertTrue(probe.isProbe());
+        assertFalse(slow.isProbe());
+        // a call sent before the ejection doesn't end the probe: no second probe after the eject time.
+        balancer.release(slow, false, 1000000);
+        Thread.sleep(250);
+        for (int i = 0; i < 3; i++) {
+            DDrushBalancer.Call call = balancer.acquire();
+            assertEquals("@web2", call.getName());
+            balancer.release(call, true, 1000000);
+        }
+        balancer.release(probe, true, 1000000);
+        assertEquals(Arrays.asList("@web1", "@web2"), balancer.getHealthy());
+    }
+
+    @Test
+    public void testStaleSuccess() {
+        DDrushBalancer balancer = new DDrushBalancer(Arrays.asList("@web1", "@web2"), 1, 60000);
+        // 2 outstanding calls for each alias.
+        List<DDrushBalancer.Call> web1 = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            DDrushBalancer.Call call = balancer.acquire();
+            if (call.getName().equals("@web1")) {
+                web1.add(call);
+            }
+        }
+        assertEquals(2, web1.size());
+        balancer.release(web1.get(0), false, 1000000);
+        assertEquals(Arrays.asList("@web2"), balancer.getHealthy());
+        // a call sent before the ejection doesn't re-admit web1 without the probe.
+        balancer.release(web1.get(1), true, 1000000);
+        assertEquals(Arrays.asList("@web2"), balancer.getHealthy());
+    }
+
+    @Test
+    public void testAliasFailure() throws Exception {
+        // a fake drush: web1 can't be reached, and web2 runs code that throws an exception.
+        File drush = File.createTempFile("drush", ".sh");
+        drush.deleteOnExit();
+        try (FileWriter writer = new FileWriter(drush)) {
+            writer.write("#!/bin/sh\n");
+            writer.write("if [ \"$1\" = \"@web1\" ]; then echo 'ssh: connect to host web1 port 22: Connection refused' >&2; exit 255; fi\n");
+            writer.write("echo 'Exception: record not found' >&2; exit 1\n");
+        }
+        assertTrue(drush.setExecutable(true));
+        DDrushBalancer balancer = new DDrushBalancer(Arrays.asList("@web1", "@web2"), 1, 60000);
+        DDrush site = new DDrush(drush.getPath(), "@web1,@web2", balancer);
+        for (int i = 0; i < 6; i++) {
+            try {
+                site.computingCall("computing_load", 1);
+                fail("Drush call should fail.");
+            } catch (DSiteException e) {
+                assertTrue(true);
+            }
+        }
+        // only web1 is ejected, although web2 failed more calls.
+        assertEquals(Arrays.asList("@web2"), balancer.getHealthy());
+    }
+}
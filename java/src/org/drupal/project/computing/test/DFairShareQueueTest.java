@@ -0,0 +1,117 @@
+package org.drupal.project.computing.test;
+
+import org.drupal.project.computing.DConfig;
+import org.drupal.project.computing.DFairShareQueue;
+import org.drupal.project.computing.DRecord;
+import org.junit.Test;
+
+import javax.script.Bindings;
+import javax.script.SimpleBindings;
+import java.util.Properties;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+/**
+ * Test fair share dispatching among users.
+ */
+public class DFairShareQueueTest {
+
+    private long nextId = 1;
+
+    private DRecord createRecord(long uid) {
+        Bindings bindings = new SimpleBindings();
+        bindings.put("id", nextId++);
+        bindings.put("application", "computing");
+        bindings.put("command", "Echo");
+        bindings.put("uid", uid);
+        return DRecord.fromBindings(bindings);
+    }
+
+    private DFairShareQueue createQueue(Properties properties) {
+        return new DFairShareQueue(0, "uid", new DConfig(properties));
+    }
+
+    @Test
+    public void testFairShare() {
+        DFairShareQueue queue = createQueue(new Properties());
+        // a heavy user submits first, and then a light user.
+        for (int i = 0; i < 10; i++) {
+            queue.offer(createRecord(1));
+        }
+        queue.offer(createRecord(2));
+        queue.offer(createRecord(2));
+        assertEquals(12, queue.size());
+
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            DRecord record = queue.poll();
+            order.append(record.getUid());
+            queue.done(record);
+        }
+        assertEquals("121211", order.toString());
+        assertEquals(6, queue.size());
+    }
+
+    @Test
+    public void testShare() {
+        Properties properties = new Properties();
+        properties.setProperty("dcomp.fairshare.share.1", "2");
+        DFairShareQueue queue = createQueue(properties);
+        for (int i = 0; i < 6; i++) {
+            queue.offer(createRecord(1));
+            queue.offer(createRecord(2));
+        }
+
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            DRecord record = queue.poll();
+            order.append(record.getUid());
+            queue.done(record);
+        }
+        assertEquals("121121", order.toString());
+    }
+
+    @Test
+    public void testCap() {
+        Properties properties = new Properties();
+        properties.setProperty("dcomp.fairshare.cap", "1");
+        DFairShareQueue queue = createQueue(properties);
+        queue.offer(createRecord(1));
+        queue.offer(createRecord(1));
+
+        DRecord first = queue.poll();
+        assertEquals(1, queue.getRunning("1"));
+        // the only waiting record belongs to a user at the cap.
+        assertNull(queue.poll());
+
+        queue.offer(createRecord(2));
+        assertEquals(2L, (long) queue.poll().getUid());
+
+        queue.done(first);
+        assertEquals(1L, (long) queue.poll().getUid());
+    }
+
+    @Test
+    public void testIdleTenant() {
+        DFairShareQueue queue = createQueue(new Properties());
+        for (int i = 0; i < 4; i++) {
+            queue.offer(createRecord(1));
+        }
+        for (int i = 0; i < 3; i++) {
+            queue.done(queue.poll());
+        }
+        // a user who joins late starts at the current virtual time: it gets the next turn, but no credit for the time
+        // being idle, so user 1 isn't starved.
+        queue.offer(createRecord(2));
+        queue.offer(createRecord(2));
+        queue.offer(createRecord(2));
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 3; i++) {
+            DRecord record = queue.poll();
+            order.append(record.getUid());
+            queue.done(record);
+        }
+        assertEquals("212", order.toString());
+    }
+}
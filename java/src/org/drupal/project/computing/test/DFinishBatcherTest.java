@@ -0,0 +1,109 @@
+package org.drupal.project.computing.test;
+
+import org.drupal.project.computing.DFinishBatcher;
+import org.drupal.project.computing.DFuture;
+import org.drupal.project.computing.DRecord;
+import org.drupal.project.computing.exception.DNotFoundException;
+import org.drupal.project.computing.exception.DSiteException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Test finishing records in batches.
+ */
+public class DFinishBatcherTest {
+
+    /**
+     * Blocks finishing the first record until released.
+     */
+    private static class SlowSite extends DMemorySite {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile boolean fail = false;
+
+        @Override
+        public void finishRecord(DRecord record) throws DSiteException {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new DSiteException(e);
+            }
+            if (fail) {
+                throw new DSiteException("Cannot finish record.");
+            }
+            super.finishRecord(record);
+        }
+    }
+
+    private List<DRecord> claim(DMemorySite site, int count) throws DSiteException, DNotFoundException {
+        List<DRecord> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            site.createRecord(new DRecord("computing", "Echo", "UnitTest Echo Command", null));
+            DRecord record = site.claimRecord("computing");
+            record.setStatus(DRecord.Status.SCF);
+            records.add(record);
+        }
+        return records;
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        SlowSite site = new SlowSite();
+        List<DRecord> records = claim(site, 10);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        DFinishBatcher batcher = new DFinishBatcher(site, executor);
+
+        // records finished while the first one is being saved go in one batch.
+        List<DFuture<Void>> futures = new ArrayList<>();
+        futures.add(batcher.finish(records.get(0)));
+        site.started.await();
+        for (int i = 1; i < 10; i++) {
+            futures.add(batcher.finish(records.get(i)));
+        }
+        site.release.countDown();
+        for (DFuture<Void> future : futures) {
+            future.get();
+        }
+        assertEquals(1, site.getCalls("finishRecords"));
+        assertEquals(10, site.getCalls("finishRecord"));
+        for (DRecord record : records) {
+            assertEquals(DRecord.Status.SCF, site.getRecord(record.getId()).getStatus());
+        }
+
+        // a single record is finished right away.
+        DRecord last = claim(site, 1).get(0);
+        batcher.finish(last).get();
+        assertEquals(1, site.getCalls("finishRecords"));
+        assertEquals(DRecord.Status.SCF, site.getRecord(last.getId()).getStatus());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        SlowSite site = new SlowSite();
+        List<DRecord> records = claim(site, 3);
+        site.fail = true;
+        site.release.countDown();
+
+        // finished in the calling thread.
+        DFinishBatcher batcher = new DFinishBatcher(site);
+        for (DRecord record : records) {
+            try {
+                batcher.finish(record).get();
+                fail("Finishing should fail.");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof DSiteException);
+            }
+        }
+        assertEquals(DRecord.Status.RUN, site.getRecord(records.get(0).getId()).getStatus());
+    }
+}
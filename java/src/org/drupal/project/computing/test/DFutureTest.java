@@ -0,0 +1,137 @@
+package org.drupal.project.computing.test;
+
+import org.drupal.project.computing.*;
+import org.drupal.project.computing.exception.DNotFoundException;
+import org.drupal.project.computing.exception.DSiteException;
+import org.junit.Test;
+
+import javax.script.Bindings;
+import javax.script.SimpleBindings;
+import java.util.Properties;
+import java.util.concurrent.*;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Test DFuture chaining, DAsyncSite, and the asynchronous launcher.
+ */
+public class DFutureTest {
+
+    @Test
+    public void testChaining() throws Exception {
+        DFuture<Integer> first = new DFuture<>();
+        DFuture<String> second = first.then(new DFuture.Transform<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer result) {
+                return result + 1;
+            }
+        }).thenAsync(new DFuture.AsyncTransform<Integer, String>() {
+            @Override
+            public DFuture<String> apply(Integer result) {
+                return DFuture.completed("result " + result);
+            }
+        });
+        assertFalse(second.isDone());
+        first.complete(1);
+        assertTrue(second.isDone());
+        assertEquals("result 2", second.get());
+
+        // a future can only complete once.
+        assertFalse(first.complete(5));
+        assertEquals(1, (int) first.get());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        DFuture<Integer> failed = DFuture.<Integer>failed(new DNotFoundException("none")).then(new DFuture.Transform<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer result) {
+                fail("Transform should not run after failure.");
+                return result;
+            }
+        });
+        try {
+            failed.get();
+            fail("Failure should be passed on.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DNotFoundException);
+        }
+
+        DFuture<Integer> thrown = DFuture.completed(1).then(new DFuture.Transform<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer result) throws Exception {
+                throw new DSiteException("error");
+            }
+        });
+        try {
+            thrown.get(1, TimeUnit.SECONDS);
+            fail("Exception from transform should fail the future.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DSiteException);
+        }
+
+        DFuture<Integer> cancelled = new DFuture<>();
+        cancelled.cancel(true);
+        assertTrue(cancelled.isCancelled());
+        try {
+            cancelled.get();
+            fail("Cancelled future should throw CancellationException.");
+        } catch (CancellationException e) {
+            // expected.
+        }
+    }
+
+    @Test
+    public void testAsyncSite() throws Exception {
+        DMemorySite site = new DMemorySite();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        DAsyncSite asyncSite = new DAsyncSite(site, executor);
+        try {
+            long id = asyncSite.createRecord(new DRecord("computing", "Echo", "UnitTest Echo Command", new SimpleBindings())).get();
+            assertEquals(id, (long) asyncSite.claimRecord("computing").get(1, TimeUnit.SECONDS).getId());
+            try {
+                asyncSite.claimRecord("computing").get(1, TimeUnit.SECONDS);
+                fail("No more record to claim.");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof DNotFoundException);
+            }
+        } finally {
+            asyncSite.shutdown();
+        }
+    }
+
+    @Test
+    public void testLaunchAsync() throws DSiteException {
+        DMemorySite site = new DMemorySite();
+        long[] ids = new long[20];
+        for (int i = 0; i < ids.length; i++) {
+            Bindings input = new SimpleBindings();
+            input.put("ping", "hello" + i);
+            ids[i] = site.createRecord(new DRecord("computing", "Echo", "UnitTest Echo Command", input));
+        }
+
+        DApplication application = new DApplication("computing", site) {
+            @Override
+            protected Properties declareCommandMapping() {
+                Properties commandMapping = new Properties();
+                commandMapping.put("Echo", "org.drupal.project.computing.common.EchoCommand");
+                return commandMapping;
+            }
+        };
+        System.setProperty("dcomp.processing.async", "true");
+        System.setProperty("dcomp.processing.threads", "4");
+        try {
+            application.launch();
+        } finally {
+            System.clearProperty("dcomp.processing.async");
+            System.clearProperty("dcomp.processing.threads");
+        }
+
+        for (int i = 0; i < ids.length; i++) {
+            DRecord record = site.getRecord(ids[i]);
+            assertEquals(DRecord.Status.SCF, record.getStatus());
+            assertEquals("hello" + i, record.getOutput().get("pong"));
+        }
+        assertEquals(ids.length, site.getCalls("finishRecord"));
+    }
+}
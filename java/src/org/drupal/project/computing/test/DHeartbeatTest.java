@@ -0,0 +1,79 @@
+package org.drupal.project.computing.test;
+
+import org.drupal.project.computing.DHeartbeat;
+import org.drupal.project.computing.DRecord;
+import org.drupal.project.computing.exception.DNotFoundException;
+import org.drupal.project.computing.exception.DSiteException;
+import org.junit.Before;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Test lease heartbeats and the stale record sweeper.
+ */
+public class DHeartbeatTest {
+
+    private DMemorySite site;
+
+    @Before
+    public void setUp() throws DSiteException {
+        site = new DMemorySite();
+        for (int i = 0; i < 3; i++) {
+            site.createRecord(new DRecord("computing", "Echo", "UnitTest Echo Command", null));
+        }
+    }
+
+    @Test
+    public void testBeat() throws DSiteException, DNotFoundException {
+        DHeartbeat heartbeat = new DHeartbeat(site, "computing", 60, 0);
+        DRecord r1 = site.claimRecord("computing");
+        DRecord r2 = site.claimRecord("computing");
+        r1.setChanged(100L);
+        heartbeat.register(r1);
+        heartbeat.register(r2);
+        assertEquals(2, heartbeat.getInflight().size());
+
+        // all in-flight records are touched in one call.
+        heartbeat.beat();
+        assertEquals(1, site.getCalls("touchRecords"));
+        assertEquals(2, site.getCalls("updateRecordField"));
+        // the record being processed is not changed by the heartbeat thread.
+        assertEquals(100L, (long) r1.getChanged());
+        assertTrue(site.getRecord(r1.getId()).getChanged() > 100L);
+
+        heartbeat.unregister(r1);
+        heartbeat.unregister(r2);
+        heartbeat.beat();
+        assertEquals(1, site.getCalls("touchRecords"));
+    }
+
+    @Test
+    public void testSweep() throws DSiteException, DNotFoundException {
+        DHeartbeat heartbeat = new DHeartbeat(site, "computing", 0, 60);
+        DRecord stale = site.claimRecord("computing");
+        DRecord live = site.claimRecord("computing");
+
+        // the agent of the first record died 2 minutes ago.
+        stale.setChanged(site.getTimestamp() - 120);
+        site.updateRecordField(stale, "changed");
+
+        heartbeat.sweep();
+        assertEquals(DRecord.Status.RDY, site.getRecord(stale.getId()).getStatus());
+        assertEquals(DRecord.Status.RUN, site.getRecord(live.getId()).getStatus());
+
+        // the released record can be claimed again.
+        assertEquals(stale.getId(), site.claimRecord("computing").getId());
+    }
+
+    @Test
+    public void testStart() throws DSiteException, DNotFoundException, InterruptedException {
+        DHeartbeat heartbeat = new DHeartbeat(site, "computing", 1, 0);
+        heartbeat.register(site.claimRecord("computing"));
+        heartbeat.start();
+        Thread.sleep(2500);
+        heartbeat.stop();
+        assertTrue(site.getCalls("touchRecords") >= 1);
+    }
+}
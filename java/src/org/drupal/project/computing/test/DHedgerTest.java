@@ -0,0 +1,141 @@
+package org.drupal.project.computing.test;
+
+import org.drupal.project.computing.DHedger;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Test hedging slow requests.
+ */
+public class DHedgerTest {
+
+    /**
+     * Responds after "delay" milliseconds, or fails when aborted.
+     */
+    private static class SlowRequest implements DHedger.Request<Integer> {
+        final AtomicInteger attempts = new AtomicInteger();
+        final AtomicInteger aborted = new AtomicInteger();
+        volatile long firstDelay;
+        volatile long otherDelay;
+
+        SlowRequest(long firstDelay, long otherDelay) {
+            this.firstDelay = firstDelay;
+            this.otherDelay = otherDelay;
+        }
+
+        @Override
+        public Integer call(DHedger.Attempt attempt) throws Exception {
+            final int number = attempts.incrementAndGet();
+            final CountDownLatch abort = new CountDownLatch(1);
+            attempt.onAbort(new Runnable() {
+                @Override
+                public void run() {
+                    abort.countDown();
+                }
+            });
+            if (abort.await(number == 1 ? firstDelay : otherDelay, TimeUnit.MILLISECONDS)) {
+                aborted.incrementAndGet();
+                throw new Exception("Aborted.");
+            }
+            return number;
+        }
+    }
+
+    private void warmUp(DHedger hedger) throws Exception {
+        for (int i = 0; i < DHedger.MIN_SAMPLES; i++) {
+            hedger.call(new SlowRequest(1, 1));
+        }
+        assertTrue(hedger.getDelay() >= 0);
+    }
+
+    @Test
+    public void testHedge() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        DHedger hedger = new DHedger(executor, 20, 0.5);
+
+        // no hedge before latencies are observed.
+        SlowRequest request = new SlowRequest(100, 1);
+        assertEquals(1, (int) hedger.call(request));
+        assertEquals(1, request.attempts.get());
+
+        warmUp(hedger);
+        assertEquals(20, hedger.getDelay());
+
+        // the hedge wins, and the slow request is aborted.
+        request = new SlowRequest(5000, 1);
+        long start = System.currentTimeMillis();
+        assertEquals(2, (int) hedger.call(request));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        Thread.sleep(100);
+        assertEquals(2, request.attempts.get());
+        assertEquals(1, request.aborted.get());
+
+        // a fast request is not hedged.
+        request = new SlowRequest(1, 1);
+        assertEquals(1, (int) hedger.call(request));
+        assertEquals(1, request.attempts.get());
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void testPrimaryFails() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        DHedger hedger = new DHedger(executor, 20, 0.5);
+        warmUp(hedger);
+
+        // the request fails after the hedge is sent, and the result waits for the hedge.
+        final AtomicInteger attempts = new AtomicInteger();
+        int value = hedger.call(new DHedger.Request<Integer>() {
+            @Override
+            public Integer call(DHedger.Attempt attempt) throws Exception {
+                int number = attempts.incrementAndGet();
+                if (number == 1) {
+                    Thread.sleep(50);
+                    throw new Exception("Request failed.");
+                }
+                Thread.sleep(100);
+                return number;
+            }
+        });
+        assertEquals(2, value);
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        // 10% of requests get a hedge.
+        DHedger hedger = new DHedger(executor, 10, 0.1);
+        warmUp(hedger);
+
+        // the burst is used up by a run of slow requests.
+        int hedged = 0;
+        for (int i = 0; i < 10; i++) {
+            SlowRequest request = new SlowRequest(50, 50);
+            hedger.call(request);
+            hedged += request.attempts.get() - 1;
+        }
+        assertTrue(hedged > 0);
+        assertTrue(hedged <= DHedger.BURST);
+
+        // then about 1 hedge for 10 requests.
+        hedged = 0;
+        for (int i = 0; i < 20; i++) {
+            SlowRequest request = new SlowRequest(50, 50);
+            hedger.call(request);
+            hedged += request.attempts.get() - 1;
+        }
+        assertTrue(hedged <= 2);
+
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,156 @@
+package org.drupal.project.computing.test;
+
+import org.drupal.project.computing.DRecord;
+import org.drupal.project.computing.DSite;
+import org.drupal.project.computing.exception.DNotFoundException;
+import org.drupal.project.computing.exception.DSiteException;
+
+import javax.script.Bindings;
+import java.util.*;
+
+/**
+ * DSite that keeps records in memory, for unit tests that don't need a Drupal site. Claims the ready record with the
+ * lowest ID, and counts the calls of each method.
+ */
+public class DMemorySite extends DSite {
+
+    protected final SortedMap<Long, DRecord> records = new TreeMap<>();
+    protected final Map<String, Integer> calls = new HashMap<>();
+    private long nextId = 1;
+
+    protected synchronized void count(String method) {
+        Integer count = calls.get(method);
+        calls.put(method, count == null ? 1 : count + 1);
+    }
+
+    public synchronized int getCalls(String method) {
+        Integer count = calls.get(method);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return a copy of the record as saved in the site.
+     */
+    public synchronized DRecord getRecord(long id) {
+        return copy(records.get(id));
+    }
+
+    protected DRecord copy(DRecord record) {
+        return DRecord.fromBindings(record.toBindings());
+    }
+
+    @Override
+    public synchronized DRecord claimRecord(String appName) throws DSiteException, DNotFoundException {
+        count("claimRecord");
+        for (DRecord record : records.values()) {
+            if (record.getApplication().equals(appName) && record.getStatus() == DRecord.Status.RDY) {
+                record.setStatus(DRecord.Status.RUN);
+                record.setChanged(getTimestamp());
+                return copy(record);
+            }
+        }
+        throw new DNotFoundException("No record available to be claimed.");
+    }
+
+    @Override
+    public synchronized void finishRecord(DRecord record) throws DSiteException {
+        count("finishRecord");
+        DRecord saved = records.get(record.getId());
+        saved.setStatus(record.getStatus());
+        saved.setMessage(record.getMessage());
+        saved.setOutput(record.getOutput());
+        saved.setChanged(getTimestamp());
+    }
+
+    @Override
+    public void finishRecords(Collection<DRecord> records) throws DSiteException {
+        count("finishRecords");
+        super.finishRecords(records);
+    }
+
+    @Override
+    public synchronized void updateRecord(DRecord record) throws DSiteException {
+        count("updateRecord");
+        records.put(record.getId(), copy(record));
+    }
+
+    @Override
+    public synchronized void updateRecordField(DRecord record, String fieldName) throws DSiteException {
+        count("updateRecordField");
+        Bindings saved = records.get(record.getId()).toBindings();
+        saved.put(fieldName, record.toBindings().get(fieldName));
+        records.put(record.getId(), DRecord.fromBindings(saved));
+    }
+
+    @Override
+    public synchronized long createRecord(DRecord record) throws DSiteException {
+        count("createRecord");
+        Bindings bindings = record.toBindings();
+        bindings.put("id", nextId);
+        DRecord saved = DRecord.fromBindings(bindings);
+        if (saved.getStatus() == null) {
+            saved.setStatus(DRecord.Status.RDY);
+        }
+        saved.setCreated(getTimestamp());
+        saved.setChanged(getTimestamp());
+        records.put(nextId, saved);
+        return nextId++;
+    }
+
+    @Override
+    public synchronized DRecord loadRecord(long id) throws DSiteException {
+        count("loadRecord");
+        if (!records.containsKey(id)) {
+            DSiteException e = new DSiteException("Record not found: " + id);
+            e.setErrorCode(404);
+            throw e;
+        }
+        return getRecord(id);
+    }
+
+    @Override
+    public synchronized void touchRecords(Collection<DRecord> records) throws DSiteException {
+        count("touchRecords");
+        super.touchRecords(records);
+    }
+
+    @Override
+    public synchronized Map<Long, DRecord.Status> loadRecordStatuses(Collection<Long> ids) throws DSiteException {
+        count("loadRecordStatuses");
+        Map<Long, DRecord.Status> statuses = new HashMap<>();
+        for (long id : ids) {
+            if (records.containsKey(id)) {
+                statuses.put(id, records.get(id).getStatus());
+            }
+        }
+        return statuses;
+    }
+
+    public synchronized void deleteRecord(long id) {
+        records.remove(id);
+    }
+
+    @Override
+    public synchronized int releaseStaleRecords(String appName, long lease) throws DSiteException {
+        count("releaseStaleRecords");
+        int released = 0;
+        for (DRecord record : records.values()) {
+            if (record.getApplication().equals(appName) && record.getStatus() == DRecord.Status.RUN
+                    && record.getChanged() < getTimestamp() - lease) {
+                record.setStatus(DRecord.Status.RDY);
+                released++;
+            }
+        }
+        return released;
+    }
+
+    @Override
+    public String getDrupalVersion() throws DSiteException {
+        return "7.x";
+    }
+
+    @Override
+    public long getTimestamp() throws DSiteException {
+        return System.currentTimeMillis() / 1000;
+    }
+}
@@ -0,0 +1,146 @@
+package org.drupal.project.computing.test;
+
+import org.drupal.project.computing.*;
+import org.drupal.project.computing.exception.DSiteException;
+import org.junit.Test;
+
+import javax.script.Bindings;
+import javax.script.SimpleBindings;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Test claiming records on demand with DRecordPublisher and finishing them with DRecordFinisher.
+ */
+public class DRecordPublisherTest {
+
+    private DMemorySite createSite(int count) throws DSiteException {
+        DMemorySite site = new DMemorySite();
+        for (int i = 0; i < count; i++) {
+            Bindings input = new SimpleBindings();
+            input.put("ping", "hello" + i);
+            site.createRecord(new DRecord("computing", "Echo", "UnitTest Echo Command", input));
+        }
+        return site;
+    }
+
+    @Test
+    public void testDemand() throws DSiteException {
+        DMemorySite site = createSite(5);
+        DRecordPublisher publisher = new DRecordPublisher(site, "computing", 100);
+        final List<DRecord> received = new ArrayList<>();
+        final DFlow.Subscription[] subscription = new DFlow.Subscription[1];
+        final AtomicInteger completed = new AtomicInteger();
+
+        publisher.subscribe(new DFlow.Subscriber<DRecord>() {
+            @Override
+            public void onSubscribe(DFlow.Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(DRecord item) {
+                received.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fail(throwable.getMessage());
+            }
+
+            @Override
+            public void onComplete() {
+                completed.incrementAndGet();
+            }
+        });
+
+        // nothing is claimed without demand.
+        assertEquals(0, site.getCalls("claimRecord"));
+        subscription[0].request(2);
+        assertEquals(2, received.size());
+        assertEquals(2, publisher.getClaimed());
+        assertEquals(DRecord.Status.RUN, site.getRecord(received.get(0).getId()).getStatus());
+        assertEquals(DRecord.Status.RDY, site.getRecord(received.get(0).getId() + 2).getStatus());
+
+        subscription[0].request(10);
+        assertEquals(5, received.size());
+        assertEquals(1, completed.get());
+
+        // no more signals after completion.
+        subscription[0].request(1);
+        assertEquals(5, received.size());
+        assertEquals(1, completed.get());
+    }
+
+    @Test
+    public void testLimit() throws Exception {
+        DMemorySite site = createSite(5);
+        DRecordPublisher publisher = new DRecordPublisher(site, "computing", 3);
+        DRecordFinisher finisher = new DRecordFinisher(site, 1);
+        publisher.subscribe(finisher);
+        finisher.await();
+        assertNull(finisher.getError());
+        assertEquals(3, finisher.getFinished());
+        assertEquals(3, site.getCalls("finishRecord"));
+        assertEquals(3, site.getCalls("claimRecord"));
+    }
+
+    @Test
+    public void testInflight() throws Exception {
+        DMemorySite site = createSite(20);
+        final AtomicInteger current = new AtomicInteger();
+        final AtomicInteger maximum = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            DRecordFinisher finisher = new DRecordFinisher(site, 3, executor) {
+                @Override
+                protected void finish(DRecord record) throws DSiteException {
+                    int running = current.incrementAndGet();
+                    synchronized (maximum) {
+                        maximum.set(Math.max(maximum.get(), running));
+                    }
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    current.decrementAndGet();
+                    record.setStatus(DRecord.Status.SCF);
+                    super.finish(record);
+                }
+            };
+            new DRecordPublisher(site, "computing", 100).subscribe(finisher);
+            finisher.await();
+            assertNull(finisher.getError());
+            assertEquals(20, finisher.getFinished());
+            assertTrue(maximum.get() > 1);
+            assertTrue(maximum.get() <= 3);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testLaunchSingleThread() throws DSiteException {
+        DMemorySite site = createSite(5);
+        DApplication application = new DApplication("computing", site) {
+            @Override
+            protected Properties declareCommandMapping() {
+                Properties commandMapping = new Properties();
+                commandMapping.put("Echo", "org.drupal.project.computing.common.EchoCommand");
+                return commandMapping;
+            }
+        };
+        application.launch();
+        for (long id = 1; id <= 5; id++) {
+            assertEquals(DRecord.Status.SCF, site.getRecord(id).getStatus());
+        }
+        assertEquals(5, site.getCalls("finishRecord"));
+    }
+}
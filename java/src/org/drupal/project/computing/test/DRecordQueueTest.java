@@ -0,0 +1,89 @@
+package org.drupal.project.computing.test;
+
+import org.drupal.project.computing.DApplication;
+import org.drupal.project.computing.DRecord;
+import org.drupal.project.computing.DRecordQueue;
+import org.drupal.project.computing.exception.DSiteException;
+import org.junit.Test;
+
+import javax.script.Bindings;
+import javax.script.SimpleBindings;
+import java.util.Properties;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+/**
+ * Test priority dispatching of claimed records, and the multi-thread launcher.
+ */
+public class DRecordQueueTest {
+
+    private DRecord createRecord(long id, long weight, long created) {
+        Bindings bindings = new SimpleBindings();
+        bindings.put("id", id);
+        bindings.put("application", "computing");
+        bindings.put("command", "Echo");
+        bindings.put("weight", weight);
+        bindings.put("created", created);
+        return DRecord.fromBindings(bindings);
+    }
+
+    @Test
+    public void testPriority() {
+        DRecordQueue queue = new DRecordQueue(0);
+        queue.offer(createRecord(1, 10, 100));
+        queue.offer(createRecord(2, 0, 300));
+        queue.offer(createRecord(3, 0, 200));
+        queue.offer(createRecord(4, -5, 400));
+
+        assertEquals(4, (long) queue.poll().getId());
+        assertEquals(3, (long) queue.poll().getId());
+        assertEquals(2, (long) queue.poll().getId());
+        assertEquals(1, (long) queue.poll().getId());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testAging() throws InterruptedException {
+        // each millisecond of waiting offsets one unit of weight.
+        DRecordQueue queue = new DRecordQueue(1);
+        queue.offer(createRecord(1, 10, 100));
+        Thread.sleep(50);
+        queue.offer(createRecord(2, 0, 200));
+        assertEquals(1, (long) queue.poll().getId());
+        assertEquals(2, (long) queue.poll().getId());
+    }
+
+    @Test
+    public void testLaunchMultiThread() throws DSiteException {
+        DMemorySite site = new DMemorySite();
+        long[] ids = new long[20];
+        for (int i = 0; i < ids.length; i++) {
+            Bindings input = new SimpleBindings();
+            input.put("ping", "hello" + i);
+            ids[i] = site.createRecord(new DRecord("computing", "Echo", "UnitTest Echo Command", input));
+        }
+
+        DApplication application = new DApplication("computing", site) {
+            @Override
+            protected Properties declareCommandMapping() {
+                Properties commandMapping = new Properties();
+                commandMapping.put("Echo", "org.drupal.project.computing.common.EchoCommand");
+                return commandMapping;
+            }
+        };
+        System.setProperty("dcomp.processing.threads", "4");
+        try {
+            application.launch();
+        } finally {
+            System.clearProperty("dcomp.processing.threads");
+        }
+
+        for (int i = 0; i < ids.length; i++) {
+            DRecord record = site.getRecord(ids[i]);
+            assertEquals(DRecord.Status.SCF, record.getStatus());
+            assertEquals("hello" + i, record.getOutput().get("pong"));
+        }
+        assertEquals(ids.length, site.getCalls("finishRecord"));
+    }
+}
@@ -1,14 +1,29 @@
 package org.drupal.project.computing.test;
 
 
+import org.drupal.project.computing.DRecord;
 import org.drupal.project.computing.DRestfulJsonServices;
+import org.drupal.project.computing.DServicesSite;
 import org.drupal.project.computing.DUtils;
 import org.drupal.project.computing.exception.DConfigException;
+import org.drupal.project.computing.exception.DNotFoundException;
 import org.drupal.project.computing.exception.DSiteException;
 import org.junit.Test;
 
+import com.sun.net.httpserver.HttpExchange;
 import javax.script.Bindings;
+import javax.script.SimpleBindings;
+import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -23,6 +38,271 @@ public class DRestfulJsonServicesTest {
         System.out.println(token);
     }
 
+    @Test
+    public void testRelogin() throws Exception {
+        DServicesStub stub = new DServicesStub().start();
+        try {
+            final DRestfulJsonServices services = new DRestfulJsonServices(stub.getBaseUrl(), DServicesStub.ENDPOINT, "agent", "pass");
+            // not logged in yet: no automatic login.
+            try {
+                services.request("system/connect.json", null, "POST");
+                fail("Request without login should be denied.");
+            } catch (DSiteException e) {
+                assertEquals(HttpURLConnection.HTTP_FORBIDDEN, e.getErrorCode());
+            }
+            assertEquals(0, stub.getLogins());
+
+            // concurrent callers login only once.
+            final int threads = 8;
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger errors = new AtomicInteger();
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        services.ensureLogin();
+                        for (int i = 0; i < 5; i++) {
+                            services.request("system/connect.json", null, "POST");
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        errors.incrementAndGet();
+                    }
+                }
+            };
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            for (int i = 0; i < threads; i++) {
+                executor.execute(task);
+            }
+            start.countDown();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(0, errors.get());
+            assertEquals(1, stub.getLogins());
+
+            // expired session is renewed by one login.
+            stub.expireSession();
+            final CountDownLatch restart = new CountDownLatch(1);
+            executor = Executors.newFixedThreadPool(threads);
+            for (int i = 0; i < threads; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            restart.await();
+                            services.request("system/connect.json", null, "POST");
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            errors.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            restart.countDown();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(0, errors.get());
+            assertEquals(2, stub.getLogins());
+
+            // a permission denied to the logged in user doesn't login again.
+            stub.setHandler("computing/denied.json", new DServicesStub.Handler() {
+                @Override
+                public void handle(HttpExchange exchange, String body) throws IOException {
+                    DServicesStub.respond(exchange, 403, "[\"Access denied for user agent\"]");
+                }
+            });
+            int requests = stub.getRequests();
+            try {
+                services.request("computing/denied.json", null, "POST");
+                fail("Request should be denied.");
+            } catch (DSiteException e) {
+                assertEquals(HttpURLConnection.HTTP_FORBIDDEN, e.getErrorCode());
+            }
+            assertEquals(2, stub.getLogins());
+            assertEquals(requests + 1, stub.getRequests());
+
+            // no automatic login after logout.
+            services.userLogout();
+            assertFalse(services.isAuthenticated());
+            try {
+                services.request("system/connect.json", null, "POST");
+                fail("Request after logout should be denied.");
+            } catch (DSiteException e) {
+                assertEquals(HttpURLConnection.HTTP_FORBIDDEN, e.getErrorCode());
+            }
+            assertEquals(2, stub.getLogins());
+        } finally {
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        DServicesStub stub = new DServicesStub().start();
+        try {
+            stub.setHandler("computing/echo.json", new DServicesStub.Handler() {
+                @Override
+                public void handle(HttpExchange exchange, String body) throws IOException {
+                    DServicesStub.respond(exchange, 200, body);
+                }
+            });
+            DRestfulJsonServices services = new DRestfulJsonServices(stub.getBaseUrl(), DServicesStub.ENDPOINT, "agent", "pass");
+            services.setCompressThreshold(1024);
+            services.userLogin();
+            int compressedResponses = stub.getCompressedResponses();
+            assertTrue(compressedResponses > 0);
+
+            // small request is not compressed, but the response is.
+            Bindings params = new SimpleBindings();
+            params.put("text", "d\u00e9j\u00e0 vu \u4e2d\u6587");
+            Bindings result = (Bindings) services.request("computing/echo.json", params, "POST");
+            assertEquals("d\u00e9j\u00e0 vu \u4e2d\u6587", result.get("text"));
+            assertEquals(0, stub.getCompressedRequests());
+            assertEquals(compressedResponses + 1, stub.getCompressedResponses());
+
+            // large request is compressed.
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                text.append("\u00e9t\u00e9 ").append(i).append(' ');
+            }
+            params.put("text", text.toString());
+            result = (Bindings) services.request("computing/echo.json", params, "POST");
+            assertEquals(text.toString(), result.get("text"));
+            assertEquals(1, stub.getCompressedRequests());
+        } finally {
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void testLongPollClaim() throws Exception {
+        final DServicesStub stub = new DServicesStub().start();
+        try {
+            DRestfulJsonServices services = new DRestfulJsonServices(stub.getBaseUrl(), DServicesStub.ENDPOINT, "agent", "pass");
+            DServicesSite site = new DServicesSite(services);
+            site.setClaimWait(10);
+            site.connect();
+
+            // the record created while the claim is waiting is returned right away.
+            new Timer(true).schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    stub.addRecord("{\"id\":\"12\",\"application\":\"computing\",\"command\":\"echo\",\"status\":\"RDY\"}");
+                }
+            }, 300);
+            long start = System.currentTimeMillis();
+            DRecord record = site.claimRecord("computing");
+            long elapsed = System.currentTimeMillis() - start;
+            assertEquals(12L, (long) record.getId());
+            assertTrue(elapsed >= 250 && elapsed < 5000);
+            assertEquals(1, stub.getClaims());
+
+            // empty queue: one request per wait.
+            site.setClaimWait(1);
+            start = System.currentTimeMillis();
+            try {
+                site.claimRecord("computing");
+                fail("No record to claim.");
+            } catch (DNotFoundException e) {
+                assertTrue(System.currentTimeMillis() - start >= 900);
+            }
+            assertEquals(2, stub.getClaims());
+        } finally {
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void testLoadRecordStatuses() throws Exception {
+        DServicesStub stub = new DServicesStub().start();
+        try {
+            stub.setHandler("computing/1.json", new DServicesStub.Handler() {
+                @Override
+                public void handle(HttpExchange exchange, String body) throws IOException {
+                    DServicesStub.respond(exchange, 200, "{\"id\":\"1\",\"application\":\"computing\",\"command\":\"echo\",\"status\":\"RUN\"}");
+                }
+            });
+            DRestfulJsonServices services = new DRestfulJsonServices(stub.getBaseUrl(), DServicesStub.ENDPOINT, "agent", "pass");
+            DServicesSite site = new DServicesSite(services);
+            site.connect();
+
+            // without computing/statuses.json: one request per record, and record 2 (404) is skipped.
+            Map<Long, DRecord.Status> statuses = site.loadRecordStatuses(Arrays.asList(1L, 2L));
+            assertEquals(1, statuses.size());
+            assertEquals(DRecord.Status.RUN, statuses.get(1L));
+
+            // one request for all records.
+            stub.setHandler("computing/statuses.json", new DServicesStub.Handler() {
+                @Override
+                public void handle(HttpExchange exchange, String body) throws IOException {
+                    assertTrue(body.contains("\"ids\""));
+                    DServicesStub.respond(exchange, 200, "{\"1\":\"ABD\",\"3\":\"RUN\"}");
+                }
+            });
+            site = new DServicesSite(services);
+            int requests = stub.getRequests();
+            statuses = site.loadRecordStatuses(Arrays.asList(1L, 2L, 3L));
+            assertEquals(1, stub.getRequests() - requests);
+            assertEquals(2, statuses.size());
+            assertEquals(DRecord.Status.ABD, statuses.get(1L));
+            assertFalse(statuses.containsKey(2L));
+        } finally {
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void testTouchRecords() throws Exception {
+        DServicesStub stub = new DServicesStub().start();
+        try {
+            final AtomicInteger fields = new AtomicInteger();
+            for (final String id : new String[]{"1", "2"}) {
+                stub.setHandler("computing/" + id + "/field.json", new DServicesStub.Handler() {
+                    @Override
+                    public void handle(HttpExchange exchange, String body) throws IOException {
+                        assertTrue(body.contains("\"changed\""));
+                        fields.incrementAndGet();
+                        DServicesStub.respond(exchange, 200, "[true]");
+                    }
+                });
+            }
+            stub.setHandler("computing/info.json", new DServicesStub.Handler() {
+                @Override
+                public void handle(HttpExchange exchange, String body) throws IOException {
+                    DServicesStub.respond(exchange, 200, "{\"drupal_version\":\"7.0\",\"drupal_time\":1000}");
+                }
+            });
+            DRestfulJsonServices services = new DRestfulJsonServices(stub.getBaseUrl(), DServicesStub.ENDPOINT, "agent", "pass");
+            DServicesSite site = new DServicesSite(services);
+            site.connect();
+            DRecord r1 = DRecord.fromJson("{\"id\":\"1\",\"application\":\"computing\",\"command\":\"echo\",\"status\":\"RUN\",\"changed\":\"100\"}");
+            DRecord r2 = DRecord.fromJson("{\"id\":\"2\",\"application\":\"computing\",\"command\":\"echo\",\"status\":\"RUN\",\"changed\":\"100\"}");
+
+            // without computing/touch.json: one request per record.
+            site.touchRecords(Arrays.asList(r1, r2));
+            assertEquals(2, fields.get());
+            assertEquals(100L, (long) r1.getChanged());
+
+            // one request for all records.
+            final AtomicInteger touches = new AtomicInteger();
+            stub.setHandler("computing/touch.json", new DServicesStub.Handler() {
+                @Override
+                public void handle(HttpExchange exchange, String body) throws IOException {
+                    assertTrue(body.contains("\"ids\""));
+                    touches.incrementAndGet();
+                    DServicesStub.respond(exchange, 200, "[2]");
+                }
+            });
+            site = new DServicesSite(services);
+            site.touchRecords(Arrays.asList(r1, r2));
+            assertEquals(1, touches.get());
+            assertEquals(2, fields.get());
+        } finally {
+            stub.stop();
+        }
+    }
+
     @Test
     public void testAuthentication() throws DConfigException, DSiteException {
         DRestfulJsonServices services = DRestfulJsonServices.loadDefault();
@@ -0,0 +1,199 @@
+package org.drupal.project.computing.test;
+
+import org.drupal.project.computing.DMetrics;
+import org.drupal.project.computing.DResultCache;
+import org.drupal.project.computing.exception.DCommandExecutionException;
+import org.junit.Test;
+
+import javax.script.Bindings;
+import javax.script.SimpleBindings;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DResultCacheTest {
+
+    private DResultCache.Entry entry(String pong) {
+        Bindings output = new SimpleBindings();
+        output.put("pong", pong);
+        return new DResultCache.Entry("Echo successful.", output);
+    }
+
+    @Test
+    public void testKey() {
+        Bindings input1 = new SimpleBindings();
+        input1.put("a", 1);
+        input1.put("b", Arrays.asList(1.0, "x"));
+        Bindings input2 = new SimpleBindings();
+        input2.put("b", Arrays.asList(1L, "x"));
+        input2.put("a", 1.00);
+
+        assertEquals(DResultCache.computeKey("echo", input1), DResultCache.computeKey("echo", input2));
+        assertNotEquals(DResultCache.computeKey("echo", input1), DResultCache.computeKey("echo2", input1));
+        assertNotEquals(DResultCache.computeKey("echo", input1), DResultCache.computeKey("echo", null));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        DResultCache cache = new DResultCache(2, 1 << 20, 0);
+        cache.put("k1", entry("1"));
+        cache.put("k2", entry("2"));
+        assertNotNull(cache.getIfPresent("k1"));
+        cache.put("k3", entry("3"));
+
+        // k2 is least recently used.
+        assertEquals(2, cache.size());
+        assertNull(cache.getIfPresent("k2"));
+        assertEquals("1", cache.getIfPresent("k1").getOutput().get("pong"));
+
+        // cached output can't be changed by callers.
+        cache.getIfPresent("k1").getOutput().put("pong", "changed");
+        assertEquals("1", cache.getIfPresent("k1").getOutput().get("pong"));
+
+        // bounded by bytes.
+        DResultCache small = new DResultCache(100, 200, 0);
+        small.put("k1", entry("1"));
+        small.put("k2", entry("2"));
+        assertEquals(1, small.size());
+        assertTrue(small.getBytes() <= 200);
+
+        // expired.
+        DResultCache expiring = new DResultCache(100, 1 << 20, 1);
+        expiring.put("k1", entry("1"));
+        Thread.sleep(5);
+        assertNull(expiring.getIfPresent("k1"));
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        final DResultCache cache = new DResultCache(10, 1 << 20, 0);
+        final AtomicInteger executions = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Callable<DResultCache.Entry> loader = new Callable<DResultCache.Entry>() {
+            @Override
+            public DResultCache.Entry call() throws Exception {
+                executions.incrementAndGet();
+                started.countDown();
+                release.await();
+                return entry("slow");
+            }
+        };
+
+        DMetrics metrics = DMetrics.getInstance();
+        long misses = metrics.get("cache.miss");
+        long coalesced = metrics.get("cache.coalesced");
+        long hits = metrics.get("cache.hit");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        Future<DResultCache.Entry> first = executor.submit(new Callable<DResultCache.Entry>() {
+            @Override
+            public DResultCache.Entry call() throws Exception {
+                return cache.get("k", loader);
+            }
+        });
+        started.await();
+        Future<DResultCache.Entry> second = executor.submit(new Callable<DResultCache.Entry>() {
+            @Override
+            public DResultCache.Entry call() throws Exception {
+                return cache.get("k", loader);
+            }
+        });
+        Thread.sleep(50);
+        release.countDown();
+
+        assertEquals("slow", first.get().getOutput().get("pong"));
+        assertEquals("slow", second.get().getOutput().get("pong"));
+        assertEquals("slow", cache.get("k", loader).getOutput().get("pong"));
+        assertEquals(1, executions.get());
+        assertEquals(1, metrics.get("cache.miss") - misses);
+        assertEquals(1, metrics.get("cache.coalesced") - coalesced);
+        assertEquals(1, metrics.get("cache.hit") - hits);
+        executor.shutdown();
+    }
+
+    @Test
+    public void testLeaderAborted() throws Exception {
+        final DResultCache cache = new DResultCache(10, 1 << 20, 0);
+        final AtomicInteger executions = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        long aborted = DMetrics.getInstance().get("cache.leader_aborted");
+
+        // the first execution runs until interrupted, e.g. at timeout.
+        final Callable<DResultCache.Entry> loader = new Callable<DResultCache.Entry>() {
+            @Override
+            public DResultCache.Entry call() throws Exception {
+                if (executions.incrementAndGet() == 1) {
+                    started.countDown();
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException e) {
+                        throw new DCommandExecutionException("Command interrupted.", e);
+                    }
+                }
+                return entry("done");
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<DResultCache.Entry> leader = executor.submit(new Callable<DResultCache.Entry>() {
+            @Override
+            public DResultCache.Entry call() throws Exception {
+                return cache.get("k", loader);
+            }
+        });
+        started.await();
+        Future<DResultCache.Entry> follower = executor.submit(new Callable<DResultCache.Entry>() {
+            @Override
+            public DResultCache.Entry call() throws Exception {
+                return cache.get("k", loader);
+            }
+        });
+        Thread.sleep(50);
+        leader.cancel(true);
+
+        // the follower runs the command again instead of failing.
+        assertEquals("done", follower.get(5, TimeUnit.SECONDS).getOutput().get("pong"));
+        assertEquals(2, executions.get());
+        assertEquals(1, DMetrics.getInstance().get("cache.leader_aborted") - aborted);
+        assertEquals("done", cache.getIfPresent("k").getOutput().get("pong"));
+
+        // other failures are passed to the followers.
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<DResultCache.Entry> failing = new Callable<DResultCache.Entry>() {
+            @Override
+            public DResultCache.Entry call() throws Exception {
+                executions.incrementAndGet();
+                release.await();
+                throw new DCommandExecutionException("Command failed.");
+            }
+        };
+        executions.set(0);
+        List<Future<DResultCache.Entry>> futures = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            futures.add(executor.submit(new Callable<DResultCache.Entry>() {
+                @Override
+                public DResultCache.Entry call() throws Exception {
+                    return cache.get("k2", failing);
+                }
+            }));
+        }
+        Thread.sleep(50);
+        release.countDown();
+        for (Future<DResultCache.Entry> future : futures) {
+            try {
+                future.get();
+                fail("Command should fail.");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof DCommandExecutionException);
+            }
+        }
+        assertEquals(1, executions.get());
+        executor.shutdown();
+    }
+}
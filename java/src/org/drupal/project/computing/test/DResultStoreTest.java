@@ -0,0 +1,178 @@
+package org.drupal.project.computing.test;
+
+import org.drupal.project.computing.DResultCache;
+import org.drupal.project.computing.DResultStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.script.Bindings;
+import javax.script.SimpleBindings;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class DResultStoreTest {
+
+    private File storeDir;
+
+    @Before
+    public void setUp() throws IOException {
+        storeDir = Files.createTempDirectory("dcomp-store").toFile();
+    }
+
+    private DResultCache.Entry entry(String pong) {
+        Bindings output = new SimpleBindings();
+        output.put("pong", pong);
+        return new DResultCache.Entry("Echo successful.", output);
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        DResultStore store = new DResultStore(storeDir, 1 << 20, 0, false);
+        store.put("k1", entry("1"));
+        store.put("k2", entry("2"));
+        store.put("k1", entry("1 again"));
+        store.put("k3", new DResultCache.Entry("No output.", null, System.currentTimeMillis()));
+        assertEquals("1 again", store.get("k1").getOutput().get("pong"));
+        store.close();
+
+        // reopen, as in the next agent run.
+        store = new DResultStore(storeDir, 1 << 20, 0, false);
+        assertEquals(3, store.size());
+        assertEquals("1 again", store.get("k1").getOutput().get("pong"));
+        assertEquals("2", store.get("k2").getOutput().get("pong"));
+        assertNull(store.get("k3").getOutputJson());
+        assertEquals("No output.", store.get("k3").getMessage());
+        assertNull(store.get("k4"));
+
+        // only one process can use the store.
+        try {
+            new DResultStore(storeDir, 1 << 20, 0, false);
+            fail("Store should be locked.");
+        } catch (IOException e) {
+            assertTrue(true);
+        }
+        store.close();
+    }
+
+    @Test
+    public void testRecovery() throws IOException {
+        DResultStore store = new DResultStore(storeDir, 1 << 20, 0, false);
+        store.put("k1", entry("1"));
+        long goodSize = store.getBytes();
+        store.put("k2", entry("2"));
+        store.close();
+
+        // simulate a crash in the middle of writing the last entry.
+        File logFile = new File(storeDir, "results.log");
+        try (FileOutputStream out = new FileOutputStream(logFile, true)) {
+            out.getChannel().truncate(logFile.length() - 3);
+        }
+
+        store = new DResultStore(storeDir, 1 << 20, 0, false);
+        assertEquals(1, store.size());
+        assertEquals(goodSize, store.getBytes());
+        assertEquals("1", store.get("k1").getOutput().get("pong"));
+
+        // the store is still writable after recovery.
+        store.put("k2", entry("2"));
+        store.close();
+        store = new DResultStore(storeDir, 1 << 20, 0, false);
+        assertEquals("2", store.get("k2").getOutput().get("pong"));
+        store.close();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        DResultStore store = new DResultStore(storeDir, 4096, 0, false);
+        for (int i = 0; i < 100; i++) {
+            store.put("k" + (i % 10), entry(Integer.toString(i)));
+            assertTrue(store.getBytes() <= 4096);
+        }
+        // the latest values are kept.
+        assertEquals("99", store.get("k9").getOutput().get("pong"));
+        assertEquals("98", store.get("k8").getOutput().get("pong"));
+
+        // the directory stays locked after the log is swapped.
+        try {
+            new DResultStore(storeDir, 4096, 0, false);
+            fail("Store should be locked.");
+        } catch (IOException e) {
+            assertTrue(store.isOpen());
+        }
+        store.close();
+        assertFalse(store.isOpen());
+        assertNull(store.get("k9"));
+
+        store = new DResultStore(storeDir, 4096, 0, false);
+        assertEquals("99", store.get("k9").getOutput().get("pong"));
+        store.close();
+    }
+
+    @Test
+    public void testManyWrites() throws IOException {
+        DResultStore store = new DResultStore(storeDir, 64 << 20, 0, false);
+        // entries are read from the mapping, or from the file past the mapped end.
+        for (int i = 0; i < 2000; i++) {
+            store.put(DResultCache.computeKey("Echo", bindings(i)), entry(Integer.toString(i)));
+            assertEquals(Integer.toString(i / 2), store.get(DResultCache.computeKey("Echo", bindings(i / 2))).getOutput().get("pong"));
+        }
+        assertEquals(2000, store.size());
+        store.close();
+
+        store = new DResultStore(storeDir, 64 << 20, 0, false);
+        assertEquals(2000, store.size());
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(Integer.toString(i), store.get(DResultCache.computeKey("Echo", bindings(i))).getOutput().get("pong"));
+        }
+        store.close();
+    }
+
+    @Test
+    public void testPrefixCollision() throws IOException {
+        DResultStore store = new DResultStore(storeDir, 1 << 20, 0, false);
+        // keys are indexed by the first 64 bits of the digest.
+        String key1 = "0123456789abcdef" + "11";
+        String key2 = "0123456789abcdef" + "22";
+        store.put(key1, entry("1"));
+        assertEquals("1", store.get(key1).getOutput().get("pong"));
+        store.put(key2, entry("2"));
+        assertEquals("2", store.get(key2).getOutput().get("pong"));
+        // the older key is a miss instead of returning the other key's result.
+        assertNull(store.get(key1));
+        store.close();
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        DResultStore store = new DResultStore(storeDir, 1 << 20, 200, false);
+        for (int i = 0; i < 100; i++) {
+            store.put("k" + i, entry(Integer.toString(i)));
+        }
+        Thread.sleep(300);
+        // expired entries are removed from the index, and the others are still found.
+        for (int i = 0; i < 100; i += 2) {
+            assertNull(store.get("k" + i));
+            store.put("k" + i, entry("new " + i));
+        }
+        assertEquals(100, store.size());
+        for (int i = 0; i < 100; i++) {
+            if (i % 2 == 0) {
+                assertEquals("new " + i, store.get("k" + i).getOutput().get("pong"));
+            } else {
+                assertNull(store.get("k" + i));
+            }
+        }
+        assertEquals(50, store.size());
+        store.close();
+    }
+
+    private Bindings bindings(int i) {
+        Bindings input = new SimpleBindings();
+        input.put("ping", i);
+        return input;
+    }
+}
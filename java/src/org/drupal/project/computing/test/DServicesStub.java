@@ -0,0 +1,221 @@
+package org.drupal.project.computing.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.drupal.project.computing.DUtils;
+
+import javax.script.Bindings;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A stub of Drupal Services REST server for unit tests, using the JDK's built-in HTTP server. It handles login, logout
+ * and system/connect at endpoint "api" with session cookies and CSRF tokens, and tests could add handlers of other
+ * directives. expireSession() makes the server reject the current session with 403, as Drupal does. Responses are
+ * compressed with gzip if the client accepts it, and gzip request bodies are decompressed, as Apache with mod_deflate.
+ *
+ * computing/claim.json returns records added with addRecord(), and supports long-poll: with "wait" in the request, it
+ * holds the request until a record is added or the wait (at most MAX_WAIT seconds) is over.
+ */
+public class DServicesStub {
+
+    public static final String ENDPOINT = "api";
+    public static final int MAX_WAIT = 30;
+
+    private final HttpServer server;
+    private final Map<String, Handler> handlers = new ConcurrentHashMap<>();
+    private final AtomicInteger logins = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger compressedRequests = new AtomicInteger();
+    private final AtomicInteger compressedResponses = new AtomicInteger();
+    private final LinkedBlockingQueue<String> records = new LinkedBlockingQueue<>();
+    private final AtomicInteger claims = new AtomicInteger();
+    private volatile String session;
+    private volatile String token;
+
+    public DServicesStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                        compressedRequests.incrementAndGet();
+                    }
+                    // counted before responding, see respond().
+                    if (acceptsGzip(exchange)) {
+                        compressedResponses.incrementAndGet();
+                    }
+                    dispatch(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public DServicesStub start() {
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * Handle requests of the directive, e.g. "computing/claim.json", with a valid session.
+     */
+    public void setHandler(String directive, Handler handler) {
+        handlers.put(directive, handler);
+    }
+
+    public void expireSession() {
+        session = null;
+    }
+
+    public int getLogins() {
+        return logins.get();
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Add a READY record to claim.
+     *
+     * @param json the record in JSON, as Drupal returns from computing/claim.json.
+     */
+    public void addRecord(String json) {
+        records.offer(json);
+    }
+
+    public int getClaims() {
+        return claims.get();
+    }
+
+    public int getCompressedRequests() {
+        return compressedRequests.get();
+    }
+
+    public int getCompressedResponses() {
+        return compressedResponses.get();
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String path = exchange.getRequestURI().getPath();
+        String prefix = "/" + ENDPOINT + "/";
+        String directive = path.startsWith(prefix) ? path.substring(prefix.length()) : path;
+
+        if (directive.equals("user/login.json")) {
+            readBody(exchange);
+            synchronized (this) {
+                session = UUID.randomUUID().toString();
+                token = UUID.randomUUID().toString();
+                logins.incrementAndGet();
+                exchange.getResponseHeaders().add("Set-Cookie", "SESS1=" + session + "; path=/");
+                respond(exchange, 200, "{\"sessid\":\"" + session + "\",\"token\":\"" + token + "\"}");
+            }
+            return;
+        }
+
+        String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+        String currentSession = session;
+        boolean valid = currentSession != null && cookie != null && cookie.contains("SESS1=" + currentSession)
+                && token.equals(exchange.getRequestHeaders().getFirst("X-CSRF-Token"));
+        if (!valid) {
+            respond(exchange, 403, "[\"Access denied for user anonymous\"]");
+        } else if (directive.equals("user/logout.json")) {
+            session = null;
+            respond(exchange, 200, "[true]");
+        } else if (directive.equals("system/connect.json")) {
+            respond(exchange, 200, "{\"sessid\":\"" + currentSession + "\",\"user\":{\"uid\":\"1\"}}");
+        } else if (handlers.containsKey(directive)) {
+            handlers.get(directive).handle(exchange, readBody(exchange));
+        } else if (directive.equals("computing/claim.json")) {
+            claim(exchange, readBody(exchange));
+        } else {
+            respond(exchange, 404, "[\"Could not find resource\"]");
+        }
+    }
+
+    private void claim(HttpExchange exchange, String body) throws IOException {
+        claims.incrementAndGet();
+        Bindings params = (Bindings) DUtils.Json.getInstance().fromJson(body);
+        long wait = params.containsKey("wait") ? DUtils.getInstance().getLong(params.get("wait")) : 0;
+        String record;
+        try {
+            record = records.poll(Math.min(wait, MAX_WAIT), TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            record = null;
+        }
+        respond(exchange, 200, record == null ? "[false]" : record);
+    }
+
+    public static String readBody(HttpExchange exchange) throws IOException {
+        InputStream body = exchange.getRequestBody();
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            body = new GZIPInputStream(body);
+        }
+        try (InputStream input = body) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+            return content.toString("UTF-8");
+        }
+    }
+
+    public static void respond(HttpExchange exchange, int code, String json) throws IOException {
+        byte[] bytes = json.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        if (acceptsGzip(exchange)) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(bytes);
+            }
+            bytes = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    private static boolean acceptsGzip(HttpExchange exchange) {
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        return acceptEncoding != null && acceptEncoding.contains("gzip");
+    }
+
+    /**
+     * Handles a Services directive.
+     */
+    public interface Handler {
+        void handle(HttpExchange exchange, String body) throws IOException;
+    }
+}
@@ -3,13 +3,27 @@ package org.drupal.project.computing.test;
 import org.apache.commons.exec.CommandLine;
 import org.drupal.project.computing.DConfig;
 import org.drupal.project.computing.DDrush;
+import org.drupal.project.computing.DFuture;
+import org.drupal.project.computing.DMetrics;
+import org.drupal.project.computing.DProcessResult;
 import org.drupal.project.computing.DUtils;
+import org.drupal.project.computing.exception.DSiteException;
+import org.drupal.project.computing.exception.DSystemExecutionException;
 import org.junit.Test;
 
 import javax.script.Bindings;
 import javax.script.SimpleBindings;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Logger;
 
@@ -49,6 +63,183 @@ public class DUtilsTest {
     }
 
 
+    @Test
+    public void testExecuteShellAsync() throws Exception {
+        DMetrics metrics = DMetrics.getInstance();
+        long started = metrics.get("exec.started");
+        long failed = metrics.get("exec.failed");
+        long timedOut = metrics.get("exec.timeout");
+        long stdinBytes = metrics.get("exec.stdin_bytes");
+
+        // several processes run at the same time.
+        long start = System.currentTimeMillis();
+        List<DFuture<DProcessResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(DUtils.getInstance().executeShellAsync(CommandLine.parse("sleep 0.5"), null, null));
+        }
+        for (DFuture<DProcessResult> future : futures) {
+            assertTrue(future.get().isSuccessful());
+        }
+        assertTrue(System.currentTimeMillis() - start < 2000);
+
+        DProcessResult result = DUtils.getInstance().executeShellAsync(CommandLine.parse("cat"), null, "hello, world".getBytes()).get();
+        assertEquals("hello, world", result.getStdout(Charset.defaultCharset()));
+        assertEquals(0, result.getExitValue());
+
+        // input larger than the pipe buffer is written while STDOUT is read.
+        byte[] large = new byte[1 << 20];
+        Arrays.fill(large, (byte) 'x');
+        result = DUtils.getInstance().executeShellAsync(CommandLine.parse("cat"), null, large).get(5, TimeUnit.SECONDS);
+        assertTrue(Arrays.equals(large, result.getStdout()));
+
+        result = DUtils.getInstance().executeShellAsync(CommandLine.parse("ls /computing-not-exist"), null, null).get();
+        assertEquals(2, result.getExitValue());
+        assertTrue(result.getStderr().length > 0);
+        try {
+            result.check();
+            fail("Failed process should throw exception.");
+        } catch (DSystemExecutionException e) {
+            // expected.
+        }
+
+        long timeout = DUtils.getInstance().getExecTimeout();
+        DUtils.getInstance().setExecTimeout(200);
+        try {
+            result = DUtils.getInstance().executeShellAsync(CommandLine.parse("sleep 10"), null, null).get(5, TimeUnit.SECONDS);
+            assertTrue(result.isTimedOut());
+            assertFalse(result.isSuccessful());
+        } finally {
+            DUtils.getInstance().setExecTimeout(timeout);
+        }
+
+        assertEquals(9, metrics.get("exec.started") - started);
+        assertEquals(2, metrics.get("exec.failed") - failed);
+        assertEquals(1, metrics.get("exec.timeout") - timedOut);
+        assertEquals("hello, world".length() + large.length, metrics.get("exec.stdin_bytes") - stdinBytes);
+    }
+
+    @Test
+    public void testDrushPayload() throws Exception {
+        final List<String[]> commands = new ArrayList<>();
+        final List<String> inputs = new ArrayList<>();
+        DDrush drush = new DDrush("drush", "@self") {
+            @Override
+            public <T> T execute(String[] command, String input, DUtils.StreamParser<T> parser) throws DSiteException {
+                commands.add(command);
+                inputs.add(input);
+                try {
+                    return parser.parse(new ByteArrayInputStream("true".getBytes()));
+                } catch (IOException e) {
+                    throw new DSiteException(e);
+                }
+            }
+        };
+        drush.setPayloadThreshold(20);
+
+        // small parameters go through command line arguments.
+        drush.computingCall("computing_finish", 1, "SCF");
+        assertEquals("computing-call", commands.get(0)[0]);
+        assertEquals("\"SCF\"", commands.get(0)[4]);
+        assertNull(inputs.get(0));
+
+        // large parameters go through STDIN.
+        Bindings output = new SimpleBindings();
+        output.put("text", "line 1\nline 2 with 'quotes' and \\ backslash");
+        drush.computingCall("computing_finish", 1, "SCF", output);
+        assertEquals("computing-eval", commands.get(1)[0]);
+        String phpCode = inputs.get(1);
+        assertTrue(phpCode.startsWith("$dcomp_payload = <<<'DCOMP_PAYLOAD'\n[\"computing_finish\",[1,\"SCF\",{"));
+        assertTrue(phpCode.contains("}]]\nDCOMP_PAYLOAD;\n$dcomp_call = json_decode($dcomp_payload, TRUE);\n"));
+        assertTrue(phpCode.endsWith("return call_user_func_array($dcomp_call[0], $dcomp_call[1]);"));
+        // JSON escapes line breaks, so the payload stays on one line.
+        assertEquals(6, phpCode.split("\n").length);
+
+        // pretty-printed JSON and any function name are sent as data, not PHP code.
+        drush.computingCall(new String[] {"computing_finish'); evil(", "{\n  \"text\": \"a long enough value\"\n}\r\n"});
+        phpCode = inputs.get(2);
+        assertTrue(phpCode.contains("[\"computing_finish\\u0027); evil(\",[{   \"text\": \"a long enough value\" }  ]]\nDCOMP_PAYLOAD;\n"));
+        assertEquals(6, phpCode.split("\n").length);
+    }
+
+    @Test
+    public void testDrushBatch() throws Exception {
+        final List<String> inputs = new ArrayList<>();
+        DDrush drush = new DDrush("drush", "@self") {
+            @Override
+            public <T> T execute(String[] command, String input, DUtils.StreamParser<T> parser) throws DSiteException {
+                assertEquals("computing-eval", command[0]);
+                inputs.add(input);
+                try {
+                    return parser.parse(new ByteArrayInputStream("[{\"result\":true},{\"error\":\"Function not found: x\"}]".getBytes()));
+                } catch (IOException e) {
+                    throw new DSiteException(e);
+                }
+            }
+        };
+
+        DDrush.Batch batch = drush.newBatch();
+        assertEquals(0, batch.add("computing_update_field", 12, "message", "it's done"));
+        assertEquals(1, batch.addEncoded(new String[] {"x"}));
+        assertEquals(2, batch.size());
+        List<DDrush.BatchResult> results = batch.flush();
+
+        // one drush call for the whole batch.
+        assertEquals(1, inputs.size());
+        assertEquals(0, batch.size());
+        assertTrue(inputs.get(0).startsWith("$dcomp_payload = <<<'DCOMP_PAYLOAD'\n[[\"computing_update_field\",[12,\"message\",\"it\\u0027s done\"]],[\"x\",[]]]\nDCOMP_PAYLOAD;\n"));
+        assertEquals(Boolean.TRUE, results.get(0).get());
+        assertTrue(results.get(1).isError());
+        try {
+            results.get(1).get();
+            fail("Failed call should throw exception.");
+        } catch (DSiteException e) {
+            // expected.
+        }
+
+        // empty batch doesn't call drush.
+        assertTrue(drush.newBatch().flush().isEmpty());
+        assertEquals(1, inputs.size());
+    }
+
+    @Test
+    public void testExecuteShellStreaming() throws Exception {
+        // JSON is decoded from STDOUT as it's read.
+        Object json = DUtils.getInstance().executeShell(CommandLine.parse("cat"), null,
+                "{\"id\": 1, \"output\": {\"list\": [1, \"a\", true, null]}}".getBytes(), DUtils.getInstance().getJsonParser(), Charset.defaultCharset());
+        assertTrue(json instanceof Bindings);
+        assertEquals(1, ((Number) ((Bindings) json).get("id")).intValue());
+        List list = (List) ((Bindings) ((Bindings) json).get("output")).get("list");
+        assertEquals(4, list.size());
+        assertEquals("a", list.get(1));
+        assertEquals(Boolean.TRUE, list.get(2));
+        assertNull(list.get(3));
+        DUtils.Json jsonUtils = DUtils.Json.getInstance();
+        assertEquals(jsonUtils.toJson(jsonUtils.fromJson("{\"a\": [1.5, \"b\"]}")),
+                jsonUtils.toJson(jsonUtils.fromJson(new StringReader("{\"a\": [1.5, \"b\"]}"))));
+        assertNull(DUtils.Json.getInstance().fromJson(new StringReader("")));
+
+        // invalid JSON fails a successful process.
+        try {
+            DUtils.getInstance().executeShell(CommandLine.parse("echo {invalid"), null, null, DUtils.getInstance().getJsonParser(), Charset.defaultCharset());
+            fail("Invalid JSON should throw exception.");
+        } catch (DSystemExecutionException e) {
+            // expected.
+        }
+
+        // STDERR is bounded, and STDOUT is read even when the parser stops early.
+        CommandLine commandLine = new CommandLine("sh");
+        commandLine.addArguments(new String[] {"-c", "head -c 200000 /dev/zero >&2; echo 1; head -c 200000 /dev/zero"}, false);
+        DProcessResult result = DUtils.getInstance().executeShellAsync(commandLine, null, null, new DUtils.StreamParser<Integer>() {
+            @Override
+            public Integer parse(InputStream stdout) throws IOException {
+                return stdout.read();
+            }
+        }).get(10, TimeUnit.SECONDS);
+        assertTrue(result.isSuccessful());
+        assertEquals('1', (int) result.<Integer>getParsed());
+        assertTrue(result.getStderr().length < DUtils.STDERR_LIMIT + 100);
+    }
+
     @Test
     public void testDrush() throws Exception {
         // test drush version